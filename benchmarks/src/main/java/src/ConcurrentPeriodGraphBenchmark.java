@@ -0,0 +1,91 @@
+package src;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * <h1>ConcurrentPeriodGraphBenchmark</h1>
+ * Measures <code>ConcurrentPeriodGraph.addTransaction</code> from several
+ * producer threads sharing one graph, to be run with the JMH option -t for the
+ * number of threads. Every thread replays its own interleaved slice of the
+ * workload in laps, as <code>PeriodGraphBenchmark</code> does, so the threads
+ * drift apart in time and the transactions of a thread behind the others are
+ * more often refreshes or too old. <code>readMedian</code> adds a lock-free
+ * read of the published median after every transaction.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentPeriodGraphBenchmark {
+	@Param({"100000"})
+	public int vertices;
+	@Param({"60", "3600"})
+	public int window;
+	@Param({"0", "1.1"})
+	public double skew;
+	@Param({"0"})
+	public int shards;
+
+	private Workload workload;
+	private ConcurrentPeriodGraph graph;
+	private final AtomicInteger slices = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void generate(){
+		workload = new Workload( 1<<20, vertices, window, 0.1, skew, 42 );
+	}
+
+	@Setup(Level.Iteration)
+	public void reset(){
+		graph = shards>0 ? new ConcurrentPeriodGraph( window, shards ) : new ConcurrentPeriodGraph( window );
+		slices.set( 0 );
+	}
+
+	/**
+	 * The slice of the workload replayed by one thread
+	 */
+	@State(Scope.Thread)
+	public static class Producer {
+		int next;
+		int stride;
+		long lap;
+
+		@Setup(Level.Iteration)
+		public void reset( ConcurrentPeriodGraphBenchmark benchmark, BenchmarkParams params ){
+			next = benchmark.slices.getAndIncrement();
+			stride = params.getThreads();
+			lap = 0;
+		}
+
+		int advance( int records ){
+			int i = next;
+			next += stride;
+			if( next>=records ){
+				next -= records;
+				lap++;
+			}
+			return i;
+		}
+	}
+
+	@Benchmark
+	public boolean addTransaction( Producer producer ){
+		int i = producer.advance( workload.actor.length );
+		return graph.addTransaction( workload.actor[i], workload.target[i], workload.time(i, producer.lap) );
+	}
+
+	@Benchmark
+	public double readMedian( Producer producer ){
+		int i = producer.advance( workload.actor.length );
+		graph.addTransaction( workload.actor[i], workload.target[i], workload.time(i, producer.lap) );
+		return graph.getMedian();
+	}
+}
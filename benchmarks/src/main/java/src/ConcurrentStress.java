@@ -0,0 +1,129 @@
+package src;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <h1>ConcurrentStress</h1>
+ * A linearizability-style stress check of <code>ConcurrentPeriodGraph</code>.
+ * The producer threads apply the transactions of a <code>Workload</code> one
+ * second of time stamps at a time, each second split between them and shuffled,
+ * so every interleaving of the same second is a valid serial order. After each
+ * second the graph is published with every producer out of it, and its median,
+ * vertice, edges and window must be those of a <code>PeriodGraph</code> given
+ * the same transactions in file order. Meanwhile a reader thread takes the
+ * published snapshots without locking and checks that the window and the
+ * counters never go back and that there are never more vertice than edge ends.
+ * <p>
+ * Run with <code>java -cp benchmarks/target/benchmarks.jar src.ConcurrentStress
+ * [threads] [records] [vertices] [window] [skew] [shards]</code>; it prints the
+ * number of checks and exits with status 1 at the first mismatch.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+public class ConcurrentStress {
+	public static void main( String[] args ) throws Exception {
+		final int threads = args.length>0 ? Integer.parseInt(args[0]) : 4;
+		int records = args.length>1 ? Integer.parseInt(args[1]) : 1000000;
+		int vertices = args.length>2 ? Integer.parseInt(args[2]) : 1000;
+		int window = args.length>3 ? Integer.parseInt(args[3]) : 60;
+		double skew = args.length>4 ? Double.parseDouble(args[4]) : 1.1;
+		int shards = args.length>5 ? Integer.parseInt(args[5]) : 4*threads;
+
+		final Workload workload = new Workload( records, vertices, window, 0, skew, 42 );
+		final ConcurrentPeriodGraph graph = new ConcurrentPeriodGraph( window, shards );
+		PeriodGraph serial = new PeriodGraph( window );
+		final CyclicBarrier barrier = new CyclicBarrier( threads+1 );
+		final int[] range = new int[2];
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread[] producers = new Thread[threads];
+		for( int k=0; k<threads; k++ ){
+			final int slice = k;
+			producers[k] = new Thread( new Runnable(){
+				public void run(){
+					Random random = new Random( slice );
+					int[] order = new int[0];
+					try {
+						while( true ){
+							barrier.await();
+							if( range[0]<0 ) return;
+							int n = 0;
+							for( int i=range[0]+slice; i<range[1]; i+=threads ){
+								if( n==order.length ) order = Arrays.copyOf( order, Math.max(16, n*2) );
+								order[n++] = i;
+							}
+							for( int i=n-1; i>0; i-- ){
+								int j = random.nextInt( i+1 );
+								int t = order[i];
+								order[i] = order[j];
+								order[j] = t;
+							}
+							for( int m=0; m<n; m++ ){
+								int i = order[m];
+								graph.addTransaction( workload.actor[i], workload.target[i], workload.time[i] );
+							}
+							barrier.await();
+						}
+					} catch( InterruptedException | BrokenBarrierException ex ){
+						failure.compareAndSet( null, "Producer "+slice+" stopped: "+ex );
+					}
+				}
+			}, "producer-"+k );
+			producers[k].start();
+		}
+
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread( new Runnable(){
+			public void run(){
+				GraphStats last = graph.getStats();
+				long reads = 0;
+				while( !done.get() && failure.get()==null ){
+					GraphStats stats = graph.getStats();
+					reads++;
+					if( stats.windowEnd<last.windowEnd || stats.records<last.records || stats.accepted<last.accepted
+							|| stats.vertexCount>2L*stats.edgeCount || (stats.edgeCount>0 && stats.median<1) )
+						failure.compareAndSet( null, "Inconsistent snapshot "+stats.toJson()+" after "+last.toJson() );
+					last = stats;
+				}
+				System.out.println( reads+" lock-free reads" );
+			}
+		}, "reader" );
+		reader.setDaemon( true );
+		reader.start();
+
+		long start = System.nanoTime();
+		int checks = 0;
+		for( int from=0; from<records && failure.get()==null; ){
+			int to = from;
+			while( to<records && workload.time[to]==workload.time[from] ) to++;
+			range[0] = from;
+			range[1] = to;
+			barrier.await();
+			barrier.await();
+			for( int i=from; i<to; i++ ) serial.addTransaction( workload.actor[i], workload.target[i], workload.time[i] );
+			GraphStats stats = graph.publish();
+			if( stats.median!=serial.getMedian() || stats.vertexCount!=serial.getVertexCount()
+					|| stats.edgeCount!=serial.getEdgeCount() || stats.windowEnd!=serial.getLastTime() )
+				failure.compareAndSet( null, "Mismatch after record "+to+": "+stats.toJson()+" instead of median "
+						+serial.getMedian()+", "+serial.getVertexCount()+" vertices, "+serial.getEdgeCount()
+						+" edges, window end "+serial.getLastTime() );
+			checks++;
+			from = to;
+		}
+		range[0] = -1;
+		if( failure.get()==null ) barrier.await();
+		done.set( true );
+		reader.join();
+
+		if( failure.get()!=null ){
+			System.out.println( failure.get() );
+			System.exit( 1 );
+		}
+		System.out.format( "%d checks of %d records with %d threads and %d shards passed in %.2f seconds%n",
+				checks, records, threads, graph.shards(), (System.nanoTime()-start)/1e9 );
+	}
+}
@@ -0,0 +1,66 @@
+package src;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <h1>DegreeHistogramBenchmark</h1>
+ * Measures the median engine, which replaced <code>MedianCalculator</code>:
+ * one degree change (a remove and an add, as <code>PeriodGraph</code> does for
+ * a vertex) followed by <code>findMedian()</code>, on a histogram holding the
+ * degrees of the given number of vertice. The degrees follow the degree skew.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DegreeHistogramBenchmark {
+	private static final int CHANGES = 1<<16;
+
+	@Param({"1000", "100000"})
+	public int vertices;
+	@Param({"0", "1.1"})
+	public double skew;
+
+	private DegreeHistogram histogram;
+	private int[] degrees;
+	private int[] vertex;
+	private boolean[] up;
+	private int next;
+
+	@Setup(Level.Iteration)
+	public void fill(){
+		Random random = new Random( 42 );
+		histogram = new DegreeHistogram();
+		degrees = new int[vertices];
+		for( int i=0; i<vertices; i++ ){
+			degrees[i] = 1+(int)(10/Math.pow( random.nextDouble()*vertices/(i+1.0)+1, skew ));
+			histogram.add( degrees[i] );
+		}
+		vertex = new int[CHANGES];
+		up = new boolean[CHANGES];
+		for( int i=0; i<CHANGES; i++ ){
+			vertex[i] = random.nextInt( vertices );
+			up[i] = random.nextBoolean();
+		}
+		next = 0;
+	}
+
+	@Benchmark
+	public double changeAndMedian(){
+		int i = next++ & (CHANGES-1);
+		int v = vertex[i];
+		int degree = degrees[v];
+		int updated = up[i] || degree==1 ? degree+1 : degree-1;
+		histogram.remove( degree );
+		histogram.add( updated );
+		degrees[v] = updated;
+		return histogram.findMedian();
+	}
+}
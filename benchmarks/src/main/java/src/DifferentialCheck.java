@@ -0,0 +1,454 @@
+package src;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * <h1>DifferentialCheck</h1>
+ * Runs several engines of <code>median_degree</code> over the same inputs and
+ * checks that their outputs are byte for byte the one of the reference engine,
+ * the first one listed: by default the memory-mapped mode with a
+ * <code>PeriodGraph</code>. Every run is a JVM of its own, so the records per
+ * second and the peak resident memory (VmHWM) are the ones of the engine
+ * alone; the time is taken around <code>median_degree.main</code>, without the
+ * start of the JVM. At the first output line where an engine diverges, the
+ * input is replayed through a <code>PeriodGraph</code> up to that line and
+ * the state of its window is reported: the input line, the median, the vertex
+ * and edge counts, the window bounds and the persons with the highest degrees.
+ * <p>
+ * The inputs are a generated <code>Workload</code>, with late transactions and
+ * an invalid line every N lines, and any recorded files in JSON, gzip or
+ * binary log format; an engine which cannot read a format is skipped for it.
+ * A reference output where every median is the same cannot tell a wrong
+ * median from a right one, so it fails the check on the generated input and
+ * is warned about on a recorded one.
+ * The results are written as JSON to the report. Given the report of an
+ * earlier run as the baseline, an engine whose records per second fall by more
+ * than the threshold below the baseline fails the check.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar src.DifferentialCheck [options]
+ * --engines=A,B,...     the engines to run, the first one is the reference:
+ *                       mapped, json-simple, pipeline, parallel, offheap,
+ *                       windows, gzip, log (all of them)
+ * --custom=NAME:ARGS;.. more engines, each with its median_degree options
+ * --inputs=FILE,...     recorded inputs to check besides the generated one
+ * --records=N           the lines of the generated input, 0 for none (200000)
+ * --vertices=N          the persons of the generated input (300)
+ * --skew=X              the Zipf exponent of the persons (0.5)
+ * --out-of-order=X      the ratio of late transactions (0.1)
+ * --invalid-every=N     replace every N-th generated line by an invalid one (1000)
+ * --seed=N              the seed of the generated input (42)
+ * --window=N            the window in seconds (60)
+ * --runs=N              run every engine N times and keep the fastest (1)
+ * --jvm=ARGS            the space separated options of the engine JVMs
+ * --work-dir=DIR        where the inputs and outputs are written (a temporary one)
+ * --report=FILE         the JSON report (differential-report.json)
+ * --baseline=FILE       the report to compare the throughputs with
+ * --threshold=N         the allowed throughput drop in percent (20)
+ * </pre>
+ * It exits with status 1 if any engine diverges or regresses.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+public class DifferentialCheck {
+	/** The built-in engines: the name, the median_degree options and the input formats read */
+	private static final String[][] ENGINES = {
+		{ "mapped", "", "json gzip log" },
+		{ "json-simple", "--json-simple", "json gzip" },
+		{ "pipeline", "--pipeline", "json gzip" },
+		{ "parallel", "--parallel --chunk-size=1048576", "json" },
+		{ "offheap", "--offheap", "json gzip log" },
+		{ "windows", "--windows=%d", "json gzip log" },
+		{ "gzip", "", "json" },
+		{ "log", "", "json gzip" },
+	};
+	private static final int TOP_DEGREES = 5;
+
+	public static void main( String[] args ) throws Exception {
+		if( args.length>0 && args[0].equals("child") ){
+			child( args );
+			return;
+		}
+		Options options = new Options( args );
+		List<Engine> engines;
+		try {
+			options.check( "engines", "custom", "inputs", "records", "vertices", "skew", "out-of-order", "invalid-every", "seed",
+					"window", "runs", "jvm", "work-dir", "report", "baseline", "threshold" );
+			engines = engines( options );
+		} catch( IllegalArgumentException ex ){
+			System.err.println( ex.getMessage() );
+			System.exit( 2 );
+			return;
+		}
+		int window = options.getInt( "window", 60 );
+		int runs = Math.max( 1, options.getInt("runs", 1) );
+		double threshold = options.getInt( "threshold", 20 )/100.0;
+		List<String> jvm = new ArrayList<String>();
+		for( String arg: options.get("jvm", "").split(" ") ) if( !arg.isEmpty() ) jvm.add( arg );
+		Path work = options.has("work-dir") ? Files.createDirectories( Paths.get(options.get("work-dir", "")) )
+				: Files.createTempDirectory( "differential" );
+		Map<String, Double> baseline = options.has("baseline") ? baseline( Paths.get(options.get("baseline", "")) )
+				: new HashMap<String, Double>();
+
+		Map<String, Path> inputs = new LinkedHashMap<String, Path>();
+		String generated = null;
+		int records = options.getInt( "records", 200000 );
+		if( records>0 ){
+			// A few hundred persons give degrees of a few tens, so the medians keep changing
+			int vertices = options.getInt( "vertices", 300 );
+			double skew = options.getDouble( "skew", 0.5 );
+			double outOfOrder = options.getDouble( "out-of-order", 0.1 );
+			int invalidEvery = options.getInt( "invalid-every", 1000 );
+			long seed = options.getInt( "seed", 42 );
+			String name = String.format( "generated-%d-%d-%s-%s-%d-%d", records, vertices, skew, outOfOrder, invalidEvery, seed );
+			Path file = work.resolve( name+".txt" );
+			generate( new Workload(records, vertices, window, outOfOrder, skew, seed), invalidEvery, file );
+			inputs.put( name, file );
+			generated = name;
+		}
+		for( String input: options.get("inputs", "").split(",") )
+			if( !input.isEmpty() ) inputs.put( Paths.get(input).getFileName().toString(), Paths.get(input) );
+
+		boolean failed = false;
+		StringBuilder report = new StringBuilder();
+		report.append( "{\"window\": " ).append( window ).append( ", \"runs\": " ).append( runs );
+		report.append( ", \"threshold\": " ).append( threshold ).append( ", \"inputs\": [" );
+		int inputCount = 0;
+		for( Map.Entry<String, Path> entry: inputs.entrySet() ){
+			String name = entry.getKey();
+			Path input = entry.getValue();
+			String format = TransactionLogReader.isLog(input) ? "log" : TransactionReader.isGzip(input) ? "gzip" : "json";
+			long lines = countLines( input );
+			System.out.format( "%s: %d lines (%s)%n", name, lines, format );
+			if( inputCount++>0 ) report.append( ", " );
+			report.append( "{\"input\": \"" ).append( JSONObject.escape(name) ).append( "\", \"format\": \"" ).append( format );
+			report.append( "\", \"records\": " ).append( lines ).append( ", \"engines\": [" );
+
+			Engine reference = null;
+			Path expected = null;
+			int engineCount = 0;
+			for( Engine engine: engines ){
+				if( !engine.formats.contains(format) ){
+					System.out.format( "  %-12s skipped, it cannot read %s%n", engine.name, format );
+					continue;
+				}
+				Path in = engine.prepare( input, work.resolve(name+"."+engine.name) );
+				Path output = work.resolve( name+"."+engine.name+".out" );
+				Path stderr = work.resolve( name+"."+engine.name+".err" );
+				long nanos = Long.MAX_VALUE;
+				long rss = -1;
+				for( int run=0; run<runs; run++ ){
+					long[] result = run( engine, in, output, stderr, window, jvm, work );
+					nanos = Math.min( nanos, result[0] );
+					rss = Math.max( rss, result[1] );
+				}
+				double perSecond = lines/(nanos/1e9);
+				String key = name+" "+engine.name;
+				Double base = baseline.get( key );
+				boolean regression = base!=null && perSecond<base*(1-threshold);
+
+				String divergence = null;
+				String status = "reference";
+				long distinct = countDistinct( output );
+				if( reference==null ){
+					reference = engine;
+					expected = output;
+					// An output of a single median matches any engine which gets the line count right
+					if( distinct<=1 ){
+						if( name.equals(generated) ){
+							status += ", FAILS: every median is the same, change the workload so it can catch a wrong median";
+							failed = true;
+						} else
+							status += ", WARNING: every median is the same, a wrong median cannot be caught on this input";
+					}
+				} else {
+					long line = firstDifference( expected, output );
+					status = "matches "+reference.name;
+					if( line>0 ){
+						String[] pair = linesAt( expected, output, line );
+						String state = windowState( input, window, line );
+						divergence = "{\"output_line\": "+line+", \"expected\": "+quote(pair[0])+", \"actual\": "+quote(pair[1])
+								+", \"state\": "+state+"}";
+						status = String.format( "DIVERGES from %s at output line %d: expected %s, got %s%n      %s%s", reference.name,
+								line, quote(pair[0]), quote(pair[1]), state, firstLine(stderr) );
+						failed = true;
+					}
+				}
+				if( regression ){
+					status += String.format( ", REGRESSION from %.0f records/s", base );
+					failed = true;
+				}
+				System.out.format( "  %-12s %,12.0f records/s %,8d KB peak RSS  %s%n", engine.name, perSecond, rss, status );
+
+				if( engineCount++>0 ) report.append( ", " );
+				report.append( "{\"engine\": \"" ).append( JSONObject.escape(engine.name) );
+				report.append( "\", \"options\": \"" ).append( JSONObject.escape(String.format(engine.options, window)) );
+				report.append( "\", \"seconds\": " ).append( String.format(Locale.ROOT, "%.3f", nanos/1e9) );
+				report.append( ", \"records_per_second\": " ).append( String.format(Locale.ROOT, "%.0f", perSecond) );
+				report.append( ", \"peak_rss_kb\": " ).append( rss );
+				report.append( ", \"output_lines\": " ).append( countText(output) );
+				report.append( ", \"distinct_lines\": " ).append( distinct );
+				report.append( ", \"divergence\": " ).append( divergence );
+				report.append( ", \"baseline_records_per_second\": " ).append( base==null ? "null" : String.format(Locale.ROOT, "%.0f", base) );
+				report.append( ", \"regression\": " ).append( regression ).append( '}' );
+			}
+			report.append( "]}" );
+		}
+		report.append( "], \"failed\": " ).append( failed ).append( "}\n" );
+		Path reportFile = Paths.get( options.get("report", "differential-report.json") );
+		Files.write( reportFile, report.toString().getBytes(StandardCharsets.UTF_8) );
+		System.out.println( (failed ? "FAILED" : "PASSED")+", the report is "+reportFile+" and the outputs are in "+work );
+		if( failed ) System.exit( 1 );
+	}
+
+	/**
+	 * This method runs one engine in the JVM started by <code>run</code> and
+	 * writes its time in nanoseconds and its peak RSS in KB to the file of the
+	 * second argument
+	 */
+	private static void child( String[] args ) throws IOException {
+		long start = System.nanoTime();
+		median_degree.main( Arrays.copyOfRange(args, 2, args.length) );
+		long nanos = System.nanoTime()-start;
+		long rss = -1;
+		Path status = Paths.get( "/proc/self/status" );
+		if( Files.exists(status) )
+			for( String line: Files.readAllLines(status, StandardCharsets.UTF_8) )
+				if( line.startsWith("VmHWM:") ) rss = Long.parseLong( line.replaceAll("[^0-9]", "") );
+		Files.write( Paths.get(args[1]), (nanos+" "+rss+"\n").getBytes(StandardCharsets.UTF_8) );
+	}
+
+	/**
+	 * @return The time in nanoseconds and the peak RSS in KB of one run of the engine
+	 */
+	private static long[] run( Engine engine, Path input, Path output, Path stderr, int window, List<String> jvm, Path work )
+			throws IOException, InterruptedException {
+		Path stats = work.resolve( "child.stats" );
+		Files.deleteIfExists( stats );
+		List<String> command = new ArrayList<String>();
+		command.add( Paths.get(System.getProperty("java.home"), "bin", "java").toString() );
+		command.addAll( jvm );
+		command.add( "-Duser.timezone=UTC" );
+		command.add( "-cp" );
+		command.add( System.getProperty("java.class.path") );
+		command.add( DifferentialCheck.class.getName() );
+		command.add( "child" );
+		command.add( stats.toString() );
+		command.add( "--input="+input );
+		command.add( "--output="+output );
+		command.add( "--window="+window );
+		command.addAll( engine.args(window) );
+		ProcessBuilder builder = new ProcessBuilder( command );
+		// The messages of the invalid lines go to the standard output, which is not compared
+		builder.redirectOutput( work.resolve("child.stdout").toFile() );
+		builder.redirectError( stderr.toFile() );
+		int exit = builder.start().waitFor();
+		if( exit!=0 || !Files.exists(stats) )
+			throw new IOException( engine.name+" exited with status "+exit+firstLine(stderr) );
+		String[] values = new String( Files.readAllBytes(stats), StandardCharsets.UTF_8 ).trim().split( " " );
+		return new long[]{ Long.parseLong(values[0]), Long.parseLong(values[1]) };
+	}
+
+	/**
+	 * @return The engines of the options, the reference first
+	 */
+	private static List<Engine> engines( Options options ){
+		Map<String, Engine> known = new LinkedHashMap<String, Engine>();
+		for( String[] engine: ENGINES ) known.put( engine[0], new Engine(engine[0], engine[1], engine[2]) );
+		List<Engine> engines = new ArrayList<Engine>();
+		if( options.has("engines") ){
+			for( String name: options.get("engines", "").split(",") ){
+				Engine engine = known.get( name.trim() );
+				if( engine==null ) throw new IllegalArgumentException("Unknown engine "+name+", the engines are "+known.keySet());
+				engines.add( engine );
+			}
+		} else engines.addAll( known.values() );
+		for( String custom: options.get("custom", "").split(";") ){
+			if( custom.isEmpty() ) continue;
+			int colon = custom.indexOf( ':' );
+			if( colon<=0 ) throw new IllegalArgumentException("The option --custom needs NAME:ARGS: "+custom);
+			engines.add( new Engine(custom.substring(0, colon), custom.substring(colon+1), "json gzip log") );
+		}
+		if( engines.isEmpty() ) throw new IllegalArgumentException("No engine to run");
+		return engines;
+	}
+
+	/**
+	 * This method writes the JSON lines of a workload, replacing every N-th line
+	 * by one without an actor
+	 */
+	private static void generate( Workload workload, int invalidEvery, Path file ) throws IOException {
+		String[] lines = workload.lines();
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for( int i=0; i<lines.length; i++ ){
+				if( invalidEvery>0 && i%invalidEvery==invalidEvery-1 )
+					writer.write( lines[i].substring(0, lines[i].indexOf(", \"actor\""))+"}" );
+				else writer.write( lines[i] );
+				writer.write( '\n' );
+			}
+		}
+	}
+
+	/**
+	 * @return The throughputs of a report by input and engine
+	 */
+	private static Map<String, Double> baseline( Path file ) throws IOException {
+		Map<String, Double> throughputs = new HashMap<String, Double>();
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			JSONObject report = (JSONObject)new JSONParser().parse( reader );
+			for( Object input: (JSONArray)report.get("inputs") )
+				for( Object engine: (JSONArray)((JSONObject)input).get("engines") )
+					throughputs.put( ((JSONObject)input).get("input")+" "+((JSONObject)engine).get("engine"),
+							((Number)((JSONObject)engine).get("records_per_second")).doubleValue() );
+		} catch( ParseException | ClassCastException | NullPointerException ex ){
+			throw new IOException( file+" is not a report: "+ex );
+		}
+		return throughputs;
+	}
+
+	/**
+	 * @return The state of the window of a <code>PeriodGraph</code> after the
+	 * transaction of the given output line, or after the last one, as JSON
+	 */
+	private static String windowState( Path input, int window, long outputLine ) throws IOException {
+		PeriodGraph graph = new PeriodGraph( window );
+		graph.trackTopDegrees();
+		long accepted = 0;
+		long line = 0;
+		try (TransactionSource source = TransactionSource.open(input, graph.getDictionary())) {
+			while( accepted<outputLine && source.next() ){
+				line = source.lineNumber();
+				if( source.status()==TransactionParser.VALID && graph.addTransaction(source.actor(), source.target(), source.time()) )
+					accepted++;
+			}
+		}
+		int[] vertices = new int[TOP_DEGREES];
+		int[] degrees = new int[TOP_DEGREES];
+		int k = graph.topDegrees( TOP_DEGREES, vertices, degrees );
+		StringBuilder sb = new StringBuilder();
+		sb.append( "{\"input_line\": " ).append( line ).append( ", \"graph\": " ).append( new GraphStats(graph, line, accepted).toJson() );
+		sb.append( ", \"top_degrees\": {" );
+		for( int i=0; i<k; i++ ){
+			if( i>0 ) sb.append( ", " );
+			sb.append( quote(graph.getDictionary().name(vertices[i])) ).append( ": " ).append( degrees[i] );
+		}
+		return sb.append( "}}" ).toString();
+	}
+
+	/**
+	 * @return The 1-based number of the first line where the files differ, 0 if they are the same
+	 */
+	private static long firstDifference( Path expected, Path actual ) throws IOException {
+		try (BufferedReader a = Files.newBufferedReader(expected, StandardCharsets.UTF_8);
+				BufferedReader b = Files.newBufferedReader(actual, StandardCharsets.UTF_8)) {
+			for( long line=1; ; line++ ){
+				String x = a.readLine();
+				String y = b.readLine();
+				if( x==null && y==null ) return 0;
+				if( x==null || !x.equals(y) ) return line;
+			}
+		}
+	}
+
+	/**
+	 * @return The given line of both files, null past the end of a file
+	 */
+	private static String[] linesAt( Path expected, Path actual, long line ) throws IOException {
+		String[] pair = new String[2];
+		Path[] files = { expected, actual };
+		for( int f=0; f<2; f++ ){
+			try (BufferedReader reader = Files.newBufferedReader(files[f], StandardCharsets.UTF_8)) {
+				for( long i=1; i<=line && (pair[f] = reader.readLine())!=null; i++ );
+			}
+		}
+		return pair;
+	}
+
+	private static long countLines( Path input ) throws IOException {
+		try (TransactionSource source = TransactionSource.open(input, new VertexDictionary())) {
+			long lines = 0;
+			while( source.next() ) lines++;
+			return lines;
+		}
+	}
+
+	private static long countText( Path file ) throws IOException {
+		if( !Files.exists(file) ) return 0;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			long lines = 0;
+			while( reader.readLine()!=null ) lines++;
+			return lines;
+		}
+	}
+
+	private static long countDistinct( Path file ) throws IOException {
+		if( !Files.exists(file) ) return 0;
+		Set<String> lines = new HashSet<String>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			for( String line; (line = reader.readLine())!=null; ) lines.add( line );
+		}
+		return lines.size();
+	}
+
+	private static String firstLine( Path file ) throws IOException {
+		if( !Files.exists(file) ) return "";
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			return line==null ? "" : "\n      stderr: "+line;
+		}
+	}
+
+	private static String quote( String value ){
+		return value==null ? "null" : "\""+JSONObject.escape(value)+"\"";
+	}
+
+	/**
+	 * An engine: the options of <code>median_degree</code> and the formats of
+	 * the inputs it reads. The gzip and log engines run the default mode over
+	 * a gzip or log copy of the input.
+	 */
+	private static final class Engine {
+		final String name;
+		final String options;
+		final List<String> formats;
+
+		Engine( String name, String options, String formats ){
+			this.name = name;
+			this.options = options;
+			this.formats = Arrays.asList( formats.split(" ") );
+		}
+
+		List<String> args( int window ){
+			List<String> args = new ArrayList<String>();
+			for( String arg: String.format(options, window).split(" ") ) if( !arg.isEmpty() ) args.add( arg );
+			return args;
+		}
+
+		/**
+		 * @return The input in the format this engine is meant to read
+		 */
+		Path prepare( Path input, Path prefix ) throws IOException {
+			if( name.equals("gzip") ){
+				Path gzip = Paths.get( prefix+".gz" );
+				try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip), 1<<16)) {
+					Files.copy( input, out );
+				}
+				return gzip;
+			}
+			if( name.equals("log") ){
+				Path log = Paths.get( prefix+".log" );
+				TransactionLogWriter.convert( input, log, TransactionLogWriter.BLOCK_RECORDS );
+				return log;
+			}
+			return input;
+		}
+	}
+}
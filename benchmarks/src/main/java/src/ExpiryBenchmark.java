@@ -0,0 +1,54 @@
+package src;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <h1>ExpiryBenchmark</h1>
+ * Measures the expiry of a whole window at once: the graph is filled with a
+ * window of transactions before every invocation, then one transaction a
+ * window later makes <code>removeOldEntries</code>/<code>removeCounts</code>
+ * remove every edge. The result is the time of one such jump.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpiryBenchmark {
+	@Param({"1000", "100000"})
+	public int vertices;
+	@Param({"60", "600"})
+	public int window;
+	@Param({"0", "0.1"})
+	public double outOfOrder;
+	@Param({"0", "1.1"})
+	public double skew;
+
+	private Workload workload;
+	private PeriodGraph graph;
+	private long jump;
+
+	@Setup(Level.Trial)
+	public void generate(){
+		workload = new Workload( window*Workload.RATE, vertices, window, outOfOrder, skew, 42 );
+		jump = Workload.START+workload.span+window;
+	}
+
+	@Setup(Level.Invocation)
+	public void fill(){
+		graph = new PeriodGraph( window );
+		for( int i=0; i<workload.actor.length; i++ )
+			graph.addTransaction( workload.actor[i], workload.target[i], workload.time[i] );
+	}
+
+	@Benchmark
+	public double expireWindow(){
+		graph.addTransaction( 0, 1, jump );
+		return graph.getMedian();
+	}
+}
@@ -0,0 +1,80 @@
+package src;
+import java.nio.ByteBuffer;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <h1>ParserBenchmark</h1>
+ * Measures the parsing of one input line into the actor, the target and the
+ * time in seconds with each of the parsers: json-simple and
+ * <code>VemonTransParser</code> with <code>SimpleDateFormat</code>, as the
+ * first versions did, and the byte-level <code>TransactionParser</code>.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+	private static final int LINES = 1<<16;
+
+	@Param({"1000", "100000"})
+	public int vertices;
+	@Param({"0", "1.1"})
+	public double skew;
+
+	private String[] lines;
+	private ByteBuffer packed;
+	private int[] offsets;
+	private JSONParser jsonParser;
+	private SimpleDateFormat dateFormat;
+	private TransactionParser parser;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void generate(){
+		lines = new Workload( LINES, vertices, 60, 0, skew, 42 ).lines();
+		offsets = new int[LINES+1];
+		packed = Workload.pack( lines, offsets );
+		jsonParser = new JSONParser();
+		dateFormat = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss'Z'" );
+		dateFormat.setTimeZone( TimeZone.getTimeZone("UTC") );
+		parser = new TransactionParser( new VertexDictionary() );
+		next = 0;
+	}
+
+	@Benchmark
+	public long jsonSimple() throws ParseException, java.text.ParseException {
+		JSONObject json = (JSONObject) jsonParser.parse( lines[next()] );
+		String actor = (String) json.get( "actor" );
+		String target = (String) json.get( "target" );
+		return dateFormat.parse( (String) json.get("created_time") ).getTime()+actor.length()+target.length();
+	}
+
+	@Benchmark
+	public long vemonTransParser() throws java.text.ParseException {
+		VemonTransParser trans = new VemonTransParser( lines[next()] );
+		return dateFormat.parse( trans.getTime() ).getTime()+trans.getActor().length()+trans.getTarget().length();
+	}
+
+	@Benchmark
+	public long transactionParser(){
+		int i = next();
+		parser.parse( packed, offsets[i], offsets[i+1]-1 );
+		return parser.time()+parser.actor()+parser.target();
+	}
+
+	private int next(){
+		return next++ & (LINES-1);
+	}
+}
@@ -0,0 +1,110 @@
+package src;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <h1>PeriodGraphBenchmark</h1>
+ * Measures <code>PeriodGraph.addTransaction</code> in its steady state, with
+ * the expiry of <code>removeOldEntries</code>/<code>removeCounts</code> as it
+ * happens while the time goes on, with and without reading the median after
+ * every transaction as <code>median_degree</code> does, and through
+ * <code>addTransactions</code> in batches with a median per record or per batch.
+ * The workload is replayed
+ * in laps, each lap moved forward in time, and a new graph is started for
+ * every iteration.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeriodGraphBenchmark {
+	private static final int BATCH = 4096;
+
+	@Param({"1000", "100000"})
+	public int vertices;
+	@Param({"60", "3600"})
+	public int window;
+	@Param({"0", "0.1"})
+	public double outOfOrder;
+	@Param({"0", "1.1"})
+	public double skew;
+
+	private Workload workload;
+	private PeriodGraph graph;
+	private int next;
+	private long lap;
+	private TransactionBatch batch;
+
+	@Setup(Level.Trial)
+	public void generate(){
+		workload = new Workload( 1<<20, vertices, window, outOfOrder, skew, 42 );
+		batch = new TransactionBatch( BATCH );
+	}
+
+	@Setup(Level.Iteration)
+	public void reset(){
+		graph = new PeriodGraph( window );
+		next = 0;
+		lap = 0;
+	}
+
+	@Benchmark
+	public boolean addTransaction(){
+		int i = advance();
+		return graph.addTransaction( workload.actor[i], workload.target[i], workload.time(i, lap) );
+	}
+
+	@Benchmark
+	public double addTransactionAndMedian(){
+		int i = advance();
+		graph.addTransaction( workload.actor[i], workload.target[i], workload.time(i, lap) );
+		return graph.getMedian();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int addTransactionsMedianPerRecord(){
+		fill();
+		return graph.addTransactions( batch, true );
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int addTransactionsMedianPerBatch(){
+		fill();
+		return graph.addTransactions( batch, false );
+	}
+
+	/**
+	 * This method fills the batch with the next transactions of the workload
+	 */
+	private void fill(){
+		batch.clear();
+		while( !batch.isFull() ){
+			int i = advance();
+			int k = batch.size++;
+			batch.status[k] = TransactionParser.VALID;
+			batch.actor[k] = workload.actor[i];
+			batch.target[k] = workload.target[i];
+			batch.time[k] = workload.time( i, lap );
+		}
+	}
+
+	/**
+	 * @return The index of the next transaction of the workload
+	 */
+	private int advance(){
+		int i = next++;
+		if( next==workload.actor.length ){
+			next = 0;
+			lap++;
+		}
+		return i;
+	}
+}
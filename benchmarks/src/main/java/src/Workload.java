@@ -0,0 +1,120 @@
+package src;
+import java.util.*;
+import java.text.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>Workload</h1>
+ * Generates the transactions the benchmarks replay, as vertex IDs with time
+ * stamps in seconds and as the JSON lines of the input file. The time goes
+ * forward by one second every <code>RATE</code> transactions, so a window of
+ * W seconds holds about W*RATE transactions. A given ratio of the
+ * transactions arrive late, up to 1.5 windows behind, so some of them are
+ * refreshes or too old to be kept. The persons are drawn from a Zipf
+ * distribution: a skew of 0 is uniform, larger skews give a few persons most
+ * of the transactions and so a few large degrees.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param actor The actor ID of each transaction
+ * @param target The target ID of each transaction
+ * @param time The time stamp in seconds of each transaction
+ * @param span The number of seconds from the first to the last time stamp, plus one
+ */
+
+public class Workload {
+	/** The number of transactions per second */
+	public static final int RATE = 100;
+	/** The time stamp of the first transaction, 2016-03-29T00:00:00Z */
+	public static final long START = 1459209600L;
+
+	public final int[] actor;
+	public final int[] target;
+	public final long[] time;
+	public final long span;
+
+	/**
+	 * @param records The number of transactions
+	 * @param vertices The number of persons
+	 * @param window The length of the time window in seconds
+	 * @param outOfOrder The ratio of the late transactions, between 0 and 1
+	 * @param skew The exponent of the Zipf distribution of the persons
+	 * @param seed The seed of the random numbers
+	 */
+	public Workload( int records, int vertices, int window, double outOfOrder, double skew, long seed ){
+		if( vertices<2 ) throw new IllegalArgumentException("At least two persons are needed");
+		Random random = new Random( seed );
+		double[] cdf = zipf( vertices, skew );
+		actor = new int[records];
+		target = new int[records];
+		time = new long[records];
+		for( int i=0; i<records; i++ ){
+			actor[i] = draw( cdf, random );
+			do target[i] = draw( cdf, random ); while( target[i]==actor[i] );
+			time[i] = START+i/RATE;
+			if( random.nextDouble()<outOfOrder ) time[i] -= (long)(random.nextDouble()*window*1.5);
+		}
+		span = records/RATE+1;
+	}
+
+	/**
+	 * @return The time stamp of a transaction replayed for the given lap over the
+	 * workload, moved forward so the time keeps going on from one lap to the next
+	 */
+	public long time( int i, long lap ){
+		return time[i]+lap*span;
+	}
+
+	/**
+	 * @return The JSON line of each transaction, in the format of the input file
+	 */
+	public String[] lines(){
+		SimpleDateFormat format = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss'Z'" );
+		format.setTimeZone( TimeZone.getTimeZone("UTC") );
+		String[] lines = new String[actor.length];
+		for( int i=0; i<lines.length; i++ )
+			lines[i] = "{\"created_time\": \""+format.format(new Date(time[i]*1000))
+					+"\", \"target\": \"user-"+target[i]+"\", \"actor\": \"user-"+actor[i]+"\"}";
+		return lines;
+	}
+
+	/**
+	 * @return The lines one after another in a direct buffer, with the start of
+	 * each line and the end of the last one in offsets
+	 */
+	public static ByteBuffer pack( String[] lines, int[] offsets ){
+		byte[][] bytes = new byte[lines.length][];
+		int total = 0;
+		for( int i=0; i<lines.length; i++ ){
+			bytes[i] = lines[i].getBytes( StandardCharsets.UTF_8 );
+			total += bytes[i].length+1;
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect( total );
+		for( int i=0; i<lines.length; i++ ){
+			offsets[i] = buf.position();
+			buf.put( bytes[i] ).put( (byte)'\n' );
+		}
+		offsets[lines.length] = buf.position();
+		return buf;
+	}
+
+	/**
+	 * @return The cumulative distribution of the Zipf distribution
+	 */
+	private static double[] zipf( int vertices, double skew ){
+		double[] cdf = new double[vertices];
+		double sum = 0;
+		for( int i=0; i<vertices; i++ ){
+			sum += 1/Math.pow( i+1, skew );
+			cdf[i] = sum;
+		}
+		for( int i=0; i<vertices; i++ ) cdf[i] /= sum;
+		return cdf;
+	}
+
+	private static int draw( double[] cdf, Random random ){
+		int i = Arrays.binarySearch( cdf, random.nextDouble() );
+		return Math.min( i<0 ? -i-1 : i, cdf.length-1 );
+	}
+}
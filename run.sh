@@ -1,6 +1,6 @@
 #!/usr/bin/env bash
 
-javac -cp ".:src/json-simple-1.1.1.jar" src/MedianCalculator.java src/PeriodGraph.java src/median_degree.java
+javac -cp ".:src/json-simple-1.1.1.jar" src/LatencyHistogramMBean.java src/LatencyHistogram.java src/GraphMetricsMBean.java src/GraphMetrics.java src/DegreeHistogram.java src/TopDegrees.java src/TimeWheel.java src/LongIntHashMap.java src/VertexDictionary.java src/TimestampDecoder.java src/PeriodGraph.java src/SketchGraph.java src/OffHeapBuffer.java src/OffHeapLongIntMap.java src/OffHeapTimeWheel.java src/OffHeapGraph.java src/MultiWindowGraph.java src/GraphStats.java src/ConcurrentPeriodGraph.java src/GraphCheckpoint.java src/TransactionParser.java src/TransactionReader.java src/TransactionSource.java src/TransactionLogWriter.java src/TransactionLogReader.java src/ReorderBuffer.java src/Options.java src/SpscQueue.java src/TransactionBatch.java src/ChunkReader.java src/MedianWriter.java src/PipelinedIngest.java src/ParallelIngest.java src/PartitionedEngine.java src/StreamService.java src/median_degree.java
 [ ! -d venmo_output ] && mkdir venmo_output;
-java -cp ".:src/json-simple-1.1.1.jar" src.median_degree
+java -cp ".:src/json-simple-1.1.1.jar" src.median_degree "$@"
 
@@ -0,0 +1,72 @@
+package src;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <h1>ChunkReader</h1>
+ * Reads a channel (a file, the standard input or a socket) into buffers which
+ * always end at a line boundary, so every chunk can be parsed on its own. The
+ * partial line at the end of a read is carried over to the start of the next
+ * chunk. A chunk is returned as soon as it holds a complete line, so a slow
+ * stream is processed as it arrives.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param channel The channel to read
+ * @param carry The partial line left over from the last chunk
+ * @param eof If the end of the channel has been reached
+ */
+
+public class ChunkReader implements Closeable {
+	private final ReadableByteChannel channel;
+	private final ByteBuffer carry;
+	private boolean eof;
+
+	/**
+	 * @param channel The channel to read
+	 * @param chunkSize The size of the chunk buffers, longer than any line
+	 */
+	public ChunkReader( ReadableByteChannel channel, int chunkSize ){
+		this.channel = channel;
+		carry = ByteBuffer.allocate( chunkSize );
+		eof = false;
+	}
+
+	/**
+	 * This method fills a buffer with the next complete lines. The last line of
+	 * the channel does not need a trailing newline.
+	 * @param dst The buffer to fill, of the chunk size; it is flipped on return,
+	 * with the lines from its position to its limit
+	 * @return If any line has been read, false at the end of the channel
+	 * @throws IOException if the channel cannot be read or a line is longer than
+	 * the chunk size
+	 */
+	public boolean read( ByteBuffer dst ) throws IOException {
+		dst.clear();
+		carry.flip();
+		dst.put( carry );
+		carry.clear();
+		int scanned = 0;
+		int newline = -1;
+		while( newline<0 && !eof && dst.hasRemaining() ){
+			if( channel.read(dst)<0 ) eof = true;
+			// Only the newly read bytes need to be looked at
+			for( int i=dst.position()-1; i>=scanned; i-- )
+				if( dst.get(i)=='\n' ){ newline = i; break; }
+			scanned = dst.position();
+		}
+		dst.flip();
+		if( eof ) return dst.hasRemaining();
+		if( newline<0 ) throw new IOException("A line is longer than the chunk size of "+dst.capacity()+" bytes");
+		// Keep the partial line after the last newline for the next chunk
+		for( int i=newline+1; i<dst.limit(); i++ ) carry.put( dst.get(i) );
+		dst.limit( newline+1 );
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,315 @@
+package src;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>ConcurrentPeriodGraph</h1>
+ * The graph of <code>PeriodGraph</code>, with the same rules, updated by
+ * several producer threads at once while any thread reads the median without
+ * locking.
+ * <p>
+ * The edges are sharded by their packed key, each shard with its own lock,
+ * <code>LongIntHashMap</code>, <code>TimeWheel</code> and edge handles, so two
+ * producers only wait for each other when their edges fall in the same shard.
+ * The degrees are an <code>AtomicIntegerArray</code>, as the two ends of an
+ * edge are shared with the edges of other shards, and each shard counts the
+ * changes it made to the number of vertice of every degree; the sum over the
+ * shards is the degree histogram. A transaction which does not move the time
+ * forward and whose persons are known only takes the lock of its shard.
+ * <p>
+ * The time is kept by one timekeeper at a time: a transaction which moves the
+ * time forward, or brings a person beyond the degree array, takes the locks of
+ * all the shards in order, expires the old edges of every shard, and publishes
+ * a new <code>GraphStats</code> of the quiescent graph through a volatile
+ * field. Any thread can publish one with <code>publish()</code>, for example
+ * a timer. The published snapshots are consistent: each one is the state after
+ * some serial order of the transactions applied so far.
+ * <p>
+ * Every shard has a <code>TimeWheel</code> of about 4*period slots, so many
+ * shards with a long window take a lot of memory.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param period The length of the time window in seconds
+ * @param lastTime The time stamp of the latest transaction, only written with all the shards locked
+ * @param shards The shards of the edges
+ * @param degrees The degree of each vertex, only replaced with all the shards locked
+ * @param stats The latest published snapshot
+ * @param records The number of transactions given
+ * @param accepted The number of transactions accepted
+ */
+
+public class ConcurrentPeriodGraph {
+	private final int period;
+	private volatile long lastTime;
+	private final Shard[] shards;
+	private final int shardMask;
+	private AtomicIntegerArray degrees;
+	private volatile GraphStats stats;
+	private final LongAdder records;
+	private final LongAdder accepted;
+
+	/**
+	 * The constructor uses four shards per processor
+	 * @param period The length of the time in seconds to keep transaction records
+	 */
+	public ConcurrentPeriodGraph( int period ){
+		this( period, 4*Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * @param period The length of the time in seconds to keep transaction records
+	 * @param shards The number of shards, rounded up to a power of two
+	 */
+	public ConcurrentPeriodGraph( int period, int shards ){
+		if( period<=0 ) throw new IllegalArgumentException("The period must be positive: "+period);
+		if( shards<=0 ) throw new IllegalArgumentException("The number of shards must be positive: "+shards);
+		this.period = period;
+		lastTime = 0;
+		int n = Integer.highestOneBit( Math.max(shards, 2)-1 )<<1;
+		this.shards = new Shard[n];
+		for( int i=0; i<n; i++ ) this.shards[i] = new Shard( period );
+		shardMask = n-1;
+		degrees = new AtomicIntegerArray( 16 );
+		records = new LongAdder();
+		accepted = new LongAdder();
+		stats = new GraphStats( 0, 0, 0, 0, period, 0, 0 );
+	}
+
+	/**
+	 * This method adds a transaction with the rules of
+	 * <code>PeriodGraph.addTransaction(int, int, long)</code>, from any thread
+	 * @param actor The actor ID, negative if empty
+	 * @param target The target ID, negative if empty
+	 * @param timeInSeconds The time in seconds, or <code>PeriodGraph.INVALID_TIME</code>
+	 * @return The add operation is successful or not
+	 */
+	public boolean addTransaction( int actor, int target, long timeInSeconds ){
+		records.increment();
+		if( actor<0 || target<0 || actor==target || timeInSeconds==PeriodGraph.INVALID_TIME ) return false;
+		long key = actor<target ? ((long)actor<<32)|target : ((long)target<<32)|actor;
+		Shard shard = shards[shard(key)];
+		int vertex = Math.max( actor, target );
+
+		shard.lock.lock();
+		try {
+			if( lastTime-timeInSeconds>=period ) return accept(); // Do nothing if the new item is more than period seconds ago
+			if( shard.refresh(key, timeInSeconds) ) return accept();
+			if( timeInSeconds<=lastTime && vertex<degrees.length() ){
+				shard.insert( key, actor, target, timeInSeconds, degrees );
+				return accept();
+			}
+		} finally {
+			shard.lock.unlock();
+		}
+
+		// The time goes forward or the degrees grow: the same again with every shard locked
+		lockAll();
+		try {
+			if( lastTime-timeInSeconds>=period ) return accept();
+			if( shard.refresh(key, timeInSeconds) ) return accept();
+			if( timeInSeconds>lastTime ){
+				lastTime = timeInSeconds;
+				for( Shard s : shards ) s.expire( lastTime, degrees );
+			}
+			ensureVertex( vertex );
+			shard.insert( key, actor, target, timeInSeconds, degrees );
+			accepted.increment();
+			publishLocked();
+			return true;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * This method returns the median of the latest published snapshot, without locking
+	 * @return The median of the vertice's degrees
+	 */
+	public double getMedian(){
+		return stats.median;
+	}
+
+	/**
+	 * @return The latest published snapshot, read without locking
+	 */
+	public GraphStats getStats(){
+		return stats;
+	}
+
+	/**
+	 * This method waits for the producers to leave the graph and publishes a
+	 * new snapshot of it
+	 * @return The new snapshot
+	 */
+	public GraphStats publish(){
+		lockAll();
+		try {
+			publishLocked();
+			return stats;
+		} finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * @return The length of the time window in seconds
+	 */
+	public int getPeriod(){
+		return period;
+	}
+
+	/**
+	 * @return The time stamp in seconds of the latest transaction which moved the time forward
+	 */
+	public long getLastTime(){
+		return lastTime;
+	}
+
+	/**
+	 * @return The number of shards
+	 */
+	public int shards(){
+		return shards.length;
+	}
+
+	private boolean accept(){
+		accepted.increment();
+		return true;
+	}
+
+	/**
+	 * @return The shard of a packed edge, from its high bits after Fibonacci hashing
+	 */
+	private int shard( long key ){
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int)(h>>>40) & shardMask;
+	}
+
+	private void lockAll(){
+		for( Shard s : shards ) s.lock.lock();
+	}
+
+	private void unlockAll(){
+		for( int i=shards.length-1; i>=0; i-- ) shards[i].lock.unlock();
+	}
+
+	/**
+	 * This method makes sure the degree array covers a vertex ID, with all the shards locked
+	 */
+	private void ensureVertex( int vertex ){
+		int length = degrees.length();
+		if( vertex<length ) return;
+		while( length<=vertex ) length <<= 1;
+		AtomicIntegerArray grown = new AtomicIntegerArray( length );
+		for( int i=0; i<degrees.length(); i++ ) grown.set( i, degrees.get(i) );
+		degrees = grown;
+	}
+
+	/**
+	 * This method sums the degree counts of the shards and publishes the
+	 * median, with all the shards locked
+	 */
+	private void publishLocked(){
+		int length = 0;
+		int edgeCount = 0;
+		for( Shard s : shards ){
+			length = Math.max( length, s.counts.length );
+			edgeCount += s.edges.size();
+		}
+		long[] counts = new long[length];
+		for( Shard s : shards )
+			for( int d=1; d<s.counts.length; d++ ) counts[d] += s.counts[d];
+		long size = 0;
+		for( int d=1; d<length; d++ ) size += counts[d];
+
+		double median = 0;
+		if( size>0 ){
+			int lower = select( counts, (size+1)/2 );
+			int upper = (size&1)==1 ? lower : select( counts, size/2+1 );
+			median = (lower+upper)/2.;
+		}
+		stats = new GraphStats( median, (int)size, edgeCount, lastTime, period, records.sum(), accepted.sum() );
+	}
+
+	/**
+	 * @return The k-th smallest degree of the counts
+	 */
+	private static int select( long[] counts, long k ){
+		for( int d=1; d<counts.length; d++ ){
+			k -= counts[d];
+			if( k<=0 ) return d;
+		}
+		return counts.length-1;
+	}
+
+	/**
+	 * <h1>Shard</h1>
+	 * The edges of one shard, with the changes it made to the degree counts;
+	 * only used with its lock held
+	 */
+	private static final class Shard {
+		final ReentrantLock lock = new ReentrantLock();
+		final LongIntHashMap edges = new LongIntHashMap();
+		final TimeWheel timeMap;
+		long[] pairs = new long[16];
+		int edgeCount = 0;
+		int[] freeEdges = new int[16];
+		int freeCount = 0;
+		long[] counts = new long[16];
+
+		Shard( int period ){
+			timeMap = new TimeWheel( period );
+		}
+
+		/**
+		 * @return True if the edge is in the shard, with its time stamp moved to the newer time
+		 */
+		boolean refresh( long key, long timeInSeconds ){
+			int edge = edges.get( key );
+			if( edge==LongIntHashMap.MISSING ) return false;
+			if( timeMap.time(edge)<timeInSeconds ) timeMap.move( edge, timeInSeconds );
+			return true;
+		}
+
+		/**
+		 * This method adds a new edge and the degrees of its ends
+		 */
+		void insert( long key, int actor, int target, long timeInSeconds, AtomicIntegerArray degrees ){
+			int edge = freeCount>0 ? freeEdges[--freeCount] : edgeCount++;
+			if( edge>=pairs.length ) pairs = Arrays.copyOf( pairs, pairs.length*2 );
+			pairs[edge] = key;
+			edges.put( key, edge );
+			timeMap.add( edge, timeInSeconds );
+			changeDegree( degrees, actor, 1 );
+			changeDegree( degrees, target, 1 );
+		}
+
+		/**
+		 * This method removes the edges more than period seconds before the time
+		 */
+		void expire( long lastTime, AtomicIntegerArray degrees ){
+			timeMap.advance( lastTime );
+			int edge;
+			while( (edge = timeMap.pollExpired())>=0 ){
+				long key = pairs[edge];
+				if( freeCount==freeEdges.length ) freeEdges = Arrays.copyOf( freeEdges, freeCount*2 );
+				freeEdges[freeCount++] = edge;
+				edges.remove( key );
+				changeDegree( degrees, (int)(key>>>32), -1 );
+				changeDegree( degrees, (int)key, -1 );
+			}
+		}
+
+		private void changeDegree( AtomicIntegerArray degrees, int vertex, int delta ){
+			int degree = degrees.getAndAdd( vertex, delta );
+			int updated = degree+delta;
+			if( Math.max(degree, updated)>=counts.length )
+				counts = Arrays.copyOf( counts, Integer.highestOneBit(Math.max(degree, updated))<<1 );
+			counts[degree]--;
+			counts[updated]++;
+		}
+	}
+}
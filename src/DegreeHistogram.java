@@ -0,0 +1,166 @@
+package src;
+import java.util.*;
+
+/**
+ * <h1>DegreeHistogram</h1>
+ * Returns the median of a multiset of vertex degrees, supporting adding,
+ * removing and bulk-adjusting operations. Degrees are small positive integers,
+ * so the multiset is kept as a count per degree value with a Fenwick (binary
+ * indexed) tree over the counts to find the k-th smallest degree.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param tree the Fenwick tree over the degree counts, 1-based
+ * @param counts the plain count of each degree value
+ * @param size the total number of degrees in this instance
+ * @param median the cached median, recomputed only after a change
+ */
+
+public class DegreeHistogram {
+	private long[] tree;
+	private long[] counts;
+	private long size;
+	private double median;
+	private boolean dirty;
+
+	/**
+	 * The constructor initials the structure for degrees up to 64, it grows
+	 * automatically when a larger degree is added
+	 */
+	public DegreeHistogram() {
+		this( 64 );
+	}
+
+	/**
+	 * @param capacity the largest degree expected, used as the initial size
+	 */
+	public DegreeHistogram( int capacity ) {
+		int n = Integer.highestOneBit( Math.max(capacity, 2)-1 )<<1;
+		tree = new long[n+1];
+		counts = new long[n+1];
+		size = 0;
+		median = 0;
+		dirty = false;
+	}
+
+	/**
+	 * This method adds a degree to this instance.
+	 * The time complexity is O(logD) where D is the largest degree
+	 * @param degree the degree to be added
+	 */
+	public void add( int degree ){
+		adjust( degree, 1 );
+	}
+
+	/**
+	 * This method removes a degree from this instance. If it is not in this
+	 * instance, no action is taken.
+	 * The time complexity is O(logD) where D is the largest degree
+	 * @param degree the degree to be removed
+	 */
+	public void remove( int degree ){
+		adjust( degree, -1 );
+	}
+
+	/**
+	 * This method adds (positive delta) or removes (negative delta) several copies
+	 * of a degree at once. Non-positive degrees are not counted, and a removal
+	 * is limited to the copies actually stored.
+	 * The time complexity is O(logD) where D is the largest degree
+	 * @param degree the degree to be updated
+	 * @param delta the number of copies to be added or removed
+	 */
+	public void adjust( int degree, long delta ){
+		if( degree<=0 || delta==0 ) return;
+		if( degree>=tree.length ){
+			if( delta<0 ) return;
+			grow( degree );
+		}
+		if( counts[degree]+delta<0 ) delta = -counts[degree];
+		if( delta==0 ) return;
+		counts[degree] += delta;
+		size += delta;
+		for( int i=degree; i<tree.length; i+=i&(-i) )
+			tree[i] += delta;
+		dirty = true;
+	}
+
+	/**
+	 * @return The total number of degrees in this instance
+	 */
+	public long size(){
+		return size;
+	}
+
+	/**
+	 * @param degree the degree to look up
+	 * @return The number of copies of the degree in this instance
+	 */
+	public long count( int degree ){
+		if( degree<=0 || degree>=counts.length ) return 0;
+		return counts[degree];
+	}
+
+	/**
+	 * This method removes all degrees from this instance, keeping its capacity
+	 */
+	public void clear(){
+		Arrays.fill( tree, 0 );
+		Arrays.fill( counts, 0 );
+		size = 0;
+		median = 0;
+		dirty = false;
+	}
+
+	/**
+	 * This method returns the median of the current degrees. The value is cached,
+	 * so repeated calls without changes are O(1), otherwise it is O(logD).
+	 * @return The current median, or 0 if this instance is empty
+	 */
+	public double findMedian() {
+		if( dirty ){
+			if( size==0 ) median = 0;
+			else if( (size&1)==1 ) median = (double)select( (size+1)/2 );
+			else{
+				double x = (double)select( size/2 );
+				double y = (double)select( size/2+1 );
+				median = (x+y)/2.;
+			}
+			dirty = false;
+		}
+		return median;
+	}
+
+	/**
+	 * This method finds the k-th smallest degree by descending the Fenwick tree
+	 * @param k the 1-based rank of the degree
+	 * @return The degree with rank k
+	 */
+	private int select( long k ){
+		int pos = 0;
+		for( int step=Integer.highestOneBit(tree.length-1); step>0; step>>=1 ){
+			int next = pos+step;
+			if( next<tree.length && tree[next]<k ){
+				pos = next;
+				k -= tree[next];
+			}
+		}
+		return pos+1;
+	}
+
+	/**
+	 * This method doubles the capacity until the degree fits and rebuilds the tree
+	 * from the plain counts in O(D)
+	 */
+	private void grow( int degree ){
+		int n = tree.length-1;
+		while( n<degree ) n <<= 1;
+		counts = Arrays.copyOf( counts, n+1 );
+		tree = new long[n+1];
+		for( int i=1; i<=n; i++ ){
+			tree[i] += counts[i];
+			int parent = i+(i&(-i));
+			if( parent<=n ) tree[parent] += tree[i];
+		}
+	}
+}
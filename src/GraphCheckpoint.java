@@ -0,0 +1,439 @@
+package src;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * <h1>GraphCheckpoint</h1>
+ * Makes a <code>PeriodGraph</code> survive a restart without reading the input
+ * again. The whole state is written from time to time to a binary snapshot
+ * file, and every transaction applied since then is appended to a log next to
+ * it (the snapshot path with <code>.log</code> added). At startup the snapshot
+ * is memory-mapped and loaded, then the log is replayed on top of it.
+ * <p>
+ * The snapshot holds, in this order and in big-endian:
+ * <pre>
+ * int magic "PGS2", int period, long lastTime, long sequence
+ * int names,    then the name of each ID as int length and its UTF-8 bytes,
+ *               or int -1 for a free ID
+ * int vertices, then the degree of each vertex as int
+ * long edges,   then each live edge as long packed pair and long time stamp
+ * int magic "PGS2"
+ * </pre>
+ * The degrees are the adjacency the graph keeps, and the
+ * <code>DegreeHistogram</code> is rebuilt from them. The log starts with
+ * <code>int magic "PGL2", long sequence, int names</code>, the number of
+ * transactions and IDs before its first entry, followed by the entries:
+ * <pre>
+ * byte 'N', int id, int length, UTF-8 bytes  the name of an ID, new or reused
+ * byte 'T', int actor, int target, long time a transaction, with vertex IDs
+ * </pre>
+ * The name of an ID is logged before the first transaction using it, and again
+ * if the ID is released and handed out to another name.
+ * Both files are replaced through a temporary file and an atomic move, and the
+ * snapshot records the sequence number of the transactions it includes, so a
+ * crash at any point leaves a snapshot and a log which replay to the same
+ * state. A partial entry at the end of the log is dropped.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param snapshot The path of the snapshot file
+ * @param log The path of the log file
+ * @param graph The recovered graph
+ * @param buffer The buffer of the log entries not written yet
+ * @param sequence The number of transactions applied since the very first start
+ * @param loggedVersions The version of each ID whose name is in the snapshot or the log
+ */
+
+public class GraphCheckpoint implements Closeable {
+	private static final int SNAPSHOT_MAGIC = 0x50475332;
+	private static final int LOG_MAGIC = 0x50474c32;
+	private static final int LOG_HEADER = 16;
+	private static final byte NAME = 'N';
+	private static final byte TRANSACTION = 'T';
+	private static final int BUFFER_SIZE = 1<<20;
+	private static final int REGION_SIZE = 1<<30;
+
+	private final Path snapshot;
+	private final Path log;
+	private PeriodGraph graph;
+	private FileChannel logChannel;
+	private final ByteBuffer buffer;
+	private long sequence;
+	private int[] loggedVersions;
+
+	/**
+	 * @param snapshot The path of the snapshot file, which does not need to exist
+	 */
+	public GraphCheckpoint( Path snapshot ){
+		this.snapshot = snapshot;
+		log = snapshot.resolveSibling( snapshot.getFileName()+".log" );
+		buffer = ByteBuffer.allocateDirect( BUFFER_SIZE );
+	}
+
+	/**
+	 * This method loads the snapshot, if there is one, replays the log and opens
+	 * it for the next transactions
+	 * @param period The length of the time window in seconds, which must be the
+	 * one of the snapshot
+	 * @return The recovered graph, or an empty one if there is no snapshot
+	 * @throws IOException if the files cannot be read or are corrupted
+	 * @throws IllegalArgumentException if the snapshot has another period
+	 */
+	public PeriodGraph recover( int period ) throws IOException {
+		if( graph!=null ) throw new IllegalStateException("The graph is already recovered");
+		long snapshotSequence = 0;
+		if( Files.exists(snapshot) ){
+			try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+				snapshotSequence = readSnapshot( new MappedInput(channel), period );
+			}
+		} else
+			graph = new PeriodGraph( period );
+		sequence = snapshotSequence;
+		if( !Files.exists(log) || Files.size(log)<LOG_HEADER ) startLog();
+		else replay( snapshotSequence );
+		return graph;
+	}
+
+	/**
+	 * @return The number of transactions applied since the very first start
+	 */
+	public long sequence(){
+		return sequence;
+	}
+
+	/**
+	 * This method logs a transaction applied to the graph. The names of the IDs
+	 * not logged yet with their current version are logged before it.
+	 * @param actor The actor ID in the dictionary of the graph
+	 * @param target The target ID in the dictionary of the graph
+	 * @param timeInSeconds The time stamp in seconds
+	 * @throws IOException if the log cannot be written
+	 */
+	public void append( int actor, int target, long timeInSeconds ) throws IOException {
+		VertexDictionary dictionary = graph.getDictionary();
+		logName( dictionary, actor );
+		logName( dictionary, target );
+		reserve( logChannel, 17 );
+		buffer.put( TRANSACTION ).putInt( actor ).putInt( target ).putLong( timeInSeconds );
+		sequence++;
+	}
+
+	/**
+	 * This method writes the buffered log entries to the log file
+	 * @throws IOException if the log cannot be written
+	 */
+	public void flush() throws IOException {
+		drain( logChannel );
+	}
+
+	/**
+	 * This method writes a new snapshot of the graph and starts a new, empty log
+	 * @throws IOException if the files cannot be written
+	 */
+	public void checkpoint() throws IOException {
+		flush();
+		Path tmp = snapshot.resolveSibling( snapshot.getFileName()+".tmp" );
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeSnapshot( channel );
+			channel.force( true );
+		}
+		Files.move( tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		startLog();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if( logChannel==null ) return;
+		try {
+			flush();
+		} finally {
+			logChannel.close();
+			logChannel = null;
+		}
+	}
+
+	/**
+	 * This method loads the snapshot into a new graph
+	 * @return The sequence number of the snapshot
+	 */
+	private long readSnapshot( MappedInput in, int period ) throws IOException {
+		ByteBuffer buf = in.need( 24 );
+		if( buf.getInt()!=SNAPSHOT_MAGIC ) throw new IOException(snapshot+" is not a graph snapshot");
+		int snapshotPeriod = buf.getInt();
+		if( snapshotPeriod!=period )
+			throw new IllegalArgumentException("The snapshot "+snapshot+" has a window of "+snapshotPeriod+" seconds, not "+period);
+		long lastTime = buf.getLong();
+		long snapshotSequence = buf.getLong();
+		graph = new PeriodGraph( period );
+		graph.restoreLastTime( lastTime );
+
+		VertexDictionary dictionary = graph.getDictionary();
+		int names = in.need( 4 ).getInt();
+		for( int i=0; i<names; i++ ) readName( in, dictionary, i, true );
+		int vertices = in.need( 4 ).getInt();
+		long degrees = 0;
+		for( int i=0; i<vertices; i++ ){
+			int degree = in.need( 4 ).getInt();
+			if( degree>0 && (i>=dictionary.size() || dictionary.isFree(i)) )
+				throw new IOException("The snapshot "+snapshot+" is corrupted");
+			graph.restoreDegree( i, degree );
+			degrees += degree;
+		}
+		long edges = in.need( 8 ).getLong();
+		for( long i=0; i<edges; i++ ){
+			buf = in.need( 16 );
+			long pair = buf.getLong();
+			graph.restoreEdge( pair, buf.getLong() );
+		}
+		if( in.need(4).getInt()!=SNAPSHOT_MAGIC || degrees!=2*edges )
+			throw new IOException("The snapshot "+snapshot+" is corrupted");
+		return snapshotSequence;
+	}
+
+	/**
+	 * This method writes the state of the graph through the buffer
+	 */
+	private void writeSnapshot( FileChannel channel ) throws IOException {
+		VertexDictionary dictionary = graph.getDictionary();
+		reserve( channel, 24 );
+		buffer.putInt( SNAPSHOT_MAGIC ).putInt( graph.getPeriod() ).putLong( graph.getLastTime() ).putLong( sequence );
+		int names = dictionary.size();
+		reserve( channel, 4 );
+		buffer.putInt( names );
+		for( int i=0; i<names; i++ ) writeName( channel, dictionary, i );
+		reserve( channel, 4 );
+		buffer.putInt( names );
+		for( int i=0; i<names; i++ ){
+			reserve( channel, 4 );
+			buffer.putInt( graph.degree(i) );
+		}
+		reserve( channel, 8 );
+		buffer.putLong( graph.getEdgeCount() );
+		int handles = graph.edgeHandles();
+		for( int i=0; i<handles; i++ ){
+			long pair = graph.edge( i );
+			if( pair==PeriodGraph.FREE ) continue;
+			reserve( channel, 16 );
+			buffer.putLong( pair ).putLong( graph.edgeTime(i) );
+		}
+		reserve( channel, 4 );
+		buffer.putInt( SNAPSHOT_MAGIC );
+		drain( channel );
+	}
+
+	/**
+	 * This method replays the log entries after the snapshot and keeps the log
+	 * open for appending after its last complete entry
+	 */
+	private void replay( long snapshotSequence ) throws IOException {
+		FileChannel channel = FileChannel.open( log, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		try {
+			MappedInput in = new MappedInput( channel );
+			ByteBuffer buf = in.need( LOG_HEADER );
+			if( buf.getInt()!=LOG_MAGIC ) throw new IOException(log+" is not a graph log");
+			long logSequence = buf.getLong();
+			int names = buf.getInt();
+			VertexDictionary dictionary = graph.getDictionary();
+			if( logSequence>snapshotSequence || names>dictionary.size() )
+				throw new IOException("The log "+log+" does not follow the snapshot "+snapshot);
+			long valid = in.position();
+			while( in.has(1) ){
+				byte type = in.need( 1 ).get();
+				if( type==NAME ){
+					if( !in.has(8) ) break;
+					int id = in.need( 8 ).getInt();
+					if( !in.has(4+Math.max(0, in.peekInt())) ) break;
+					// The names of the transactions already in the snapshot may have been released since
+					readName( in, dictionary, id, logSequence>=snapshotSequence );
+				} else if( type==TRANSACTION ){
+					if( !in.has(16) ) break;
+					buf = in.need( 16 );
+					int actor = buf.getInt();
+					int target = buf.getInt();
+					long time = buf.getLong();
+					// The transactions already in the snapshot are skipped
+					if( logSequence++>=snapshotSequence ){
+						if( Math.min(actor, target)<0 || Math.max(actor, target)>=dictionary.size()
+								|| dictionary.isFree(actor) || dictionary.isFree(target) )
+							throw new IOException("The log "+log+" is corrupted");
+						graph.addTransaction( actor, target, time );
+					}
+				} else
+					throw new IOException("The log "+log+" is corrupted");
+				valid = in.position();
+			}
+			// Drop a partial entry left by a crash while appending
+			channel.truncate( valid );
+			channel.position( valid );
+			sequence = Math.max( snapshotSequence, logSequence );
+			markLogged();
+			logChannel = channel;
+		} finally {
+			if( logChannel!=channel ) channel.close();
+		}
+	}
+
+	/**
+	 * This method replaces the log with an empty one starting at the current
+	 * sequence number and dictionary size
+	 */
+	private void startLog() throws IOException {
+		if( logChannel!=null ){
+			logChannel.close();
+			logChannel = null;
+		}
+		Path tmp = log.resolveSibling( log.getFileName()+".tmp" );
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			buffer.clear();
+			buffer.putInt( LOG_MAGIC ).putLong( sequence ).putInt( graph.getDictionary().size() );
+			drain( channel );
+			channel.force( true );
+		}
+		Files.move( tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		markLogged();
+		logChannel = FileChannel.open( log, StandardOpenOption.WRITE );
+		logChannel.position( logChannel.size() );
+	}
+
+	/**
+	 * This method logs the name of an ID, unless it is already logged with the
+	 * current version of the ID
+	 */
+	private void logName( VertexDictionary dictionary, int id ) throws IOException {
+		if( id<loggedVersions.length && loggedVersions[id]==dictionary.version(id) ) return;
+		if( id>=loggedVersions.length )
+			loggedVersions = Arrays.copyOf( loggedVersions, Math.max(id+1, loggedVersions.length*2) );
+		reserve( logChannel, 5 );
+		buffer.put( NAME ).putInt( id );
+		writeName( logChannel, dictionary, id );
+		loggedVersions[id] = dictionary.version( id );
+	}
+
+	/**
+	 * This method records the names of all IDs as logged, once they are all in
+	 * the snapshot or the log
+	 */
+	private void markLogged(){
+		VertexDictionary dictionary = graph.getDictionary();
+		loggedVersions = new int[Math.max( 16, dictionary.size() )];
+		for( int id=0; id<dictionary.size(); id++ ) loggedVersions[id] = dictionary.version( id );
+	}
+
+	/**
+	 * This method reads the name of the given ID, as int length and UTF-8 bytes,
+	 * or a free ID as int -1. Only the name of a vertex without an edge can be
+	 * replaced or moved to the ID, as it was released before the ID was reused.
+	 * @param restore If the name is set in the dictionary, or only skipped
+	 */
+	private void readName( MappedInput in, VertexDictionary dictionary, int id, boolean restore ) throws IOException {
+		int length = in.need( 4 ).getInt();
+		ByteBuffer buf = length<0 ? null : in.need( length );
+		if( restore ){
+			if( id<0 || graph.degree(id)>0 )
+				throw new IOException("The names of "+snapshot+" do not match the dictionary");
+			int previous = dictionary.restore( id, buf, buf==null ? 0 : buf.position(), length );
+			if( previous!=VertexDictionary.MISSING && graph.degree(previous)>0 )
+				throw new IOException("The names of "+snapshot+" do not match the dictionary");
+		}
+		if( buf!=null ) buf.position( buf.position()+length );
+	}
+
+	/**
+	 * This method writes a name as int length and UTF-8 bytes through the
+	 * buffer, or int -1 for a free ID
+	 */
+	private void writeName( FileChannel channel, VertexDictionary dictionary, int id ) throws IOException {
+		if( dictionary.isFree(id) ){
+			reserve( channel, 4 );
+			buffer.putInt( -1 );
+			return;
+		}
+		int length = dictionary.length( id );
+		if( length+4>buffer.capacity() ){
+			// A name longer than the buffer is written directly
+			drain( channel );
+			ByteBuffer large = ByteBuffer.allocate( length+4 );
+			large.putInt( length );
+			dictionary.copy( id, large );
+			large.flip();
+			while( large.hasRemaining() ) channel.write( large );
+			return;
+		}
+		reserve( channel, length+4 );
+		buffer.putInt( length );
+		dictionary.copy( id, buffer );
+	}
+
+	/**
+	 * This method makes room in the buffer for n bytes, writing it out if needed
+	 */
+	private void reserve( FileChannel channel, int n ) throws IOException {
+		if( buffer.remaining()<n ) drain( channel );
+	}
+
+	private void drain( FileChannel channel ) throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() ) channel.write( buffer );
+		buffer.clear();
+	}
+
+	/**
+	 * A file read through memory-mapped regions of up to 1GB, remapped from the
+	 * current position when the next value runs over the region
+	 */
+	private static class MappedInput {
+		private final FileChannel channel;
+		private final long size;
+		private MappedByteBuffer region;
+		private long regionStart;
+
+		MappedInput( FileChannel channel ) throws IOException {
+			this.channel = channel;
+			size = channel.size();
+			map( 0 );
+		}
+
+		long position(){
+			return regionStart+region.position();
+		}
+
+		/**
+		 * @return If the file has n more bytes, which are then in the region
+		 */
+		boolean has( int n ) throws IOException {
+			if( position()+n>size ) return false;
+			if( region.remaining()<n ) map( position() );
+			return true;
+		}
+
+		/**
+		 * @return The region, with at least n bytes remaining
+		 * @throws EOFException if the file ends before
+		 */
+		ByteBuffer need( int n ) throws IOException {
+			if( !has(n) ) throw new EOFException("Unexpected end of file at "+position());
+			return region;
+		}
+
+		/**
+		 * @return The next int, without moving past it; <code>has(4)</code> must be true
+		 */
+		int peekInt(){
+			return region.getInt( region.position() );
+		}
+
+		private void map( long start ) throws IOException {
+			regionStart = start;
+			region = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min((long)REGION_SIZE, size-start) );
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package src;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * <h1>GraphMetrics</h1>
+ * Counts what happens to the transactions and how long each stage takes. The
+ * <code>TransactionParser</code>s and the <code>PeriodGraph</code> given this
+ * instance record into it:
+ * <pre>
+ * parse        a whole line, including the time stamp decoding
+ * decode       the created_time decoding
+ * edge-update  adding or refreshing the edge, with the degree histogram changes
+ * expiry       removing the edges out of the window
+ * median       finding the median
+ * </pre>
+ * The counters are <code>LongAdder</code>s, so the parsing threads of the
+ * parallel modes do not contend, and nothing is allocated when recording.
+ * Reading the clock twice costs more than most stages, so only one in every
+ * <code>sampleEvery</code> operations of each recorder is timed; the counters
+ * count every operation.
+ * <p>
+ * The counters and the histograms are exposed as MBeans by <code>register()</code>,
+ * and <code>startDump()</code> prints them as text from time to time.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param sampleMask One less than the power of two of the timing sampling
+ * @param stages The <code>LatencyHistogram</code> of each stage
+ * @param graph The graph of the live vertex and edge counts, read racily
+ */
+
+public class GraphMetrics implements GraphMetricsMBean {
+	public static final int PARSE = 0;
+	public static final int DECODE = 1;
+	public static final int EDGE_UPDATE = 2;
+	public static final int EXPIRY = 3;
+	public static final int MEDIAN = 4;
+	private static final String[] STAGES = { "parse", "decode", "edge-update", "expiry", "median" };
+
+	private final int sampleMask;
+	private final LatencyHistogram[] stages;
+	final LongAdder accepted = new LongAdder();
+	final LongAdder malformed = new LongAdder();
+	final LongAdder missingField = new LongAdder();
+	final LongAdder samePerson = new LongAdder();
+	final LongAdder invalidTime = new LongAdder();
+	final LongAdder tooOld = new LongAdder();
+	final LongAdder refreshed = new LongAdder();
+	final LongAdder newEdges = new LongAdder();
+	final LongAdder expiredEdges = new LongAdder();
+	private volatile PeriodGraph graph;
+	private ScheduledExecutorService dumper;
+
+	/**
+	 * @param sampleEvery Time one in this many operations, rounded up to a power of two
+	 */
+	public GraphMetrics( int sampleEvery ){
+		if( sampleEvery<=0 ) throw new IllegalArgumentException("The sampling of the timings must be positive");
+		sampleMask = (sampleEvery==1 ? 1 : Integer.highestOneBit(sampleEvery-1)<<1)-1;
+		stages = new LatencyHistogram[STAGES.length];
+		for( int i=0; i<stages.length; i++ ) stages[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * @param tick The number of operations of a recorder so far
+	 * @return If the operation of this tick is timed
+	 */
+	public boolean sampled( int tick ){
+		return (tick & sampleMask)==0;
+	}
+
+	/**
+	 * @param stage <code>PARSE</code>, <code>DECODE</code>, <code>EDGE_UPDATE</code>,
+	 * <code>EXPIRY</code> or <code>MEDIAN</code>
+	 * @return The <code>LatencyHistogram</code> of the stage
+	 */
+	public LatencyHistogram stage( int stage ){
+		return stages[stage];
+	}
+
+	/**
+	 * This method sets the graph whose live vertice and edges are reported,
+	 * called by <code>PeriodGraph.setMetrics()</code>
+	 */
+	void setGraph( PeriodGraph graph ){
+		this.graph = graph;
+	}
+
+	public long getAccepted(){ return accepted.sum(); }
+	public long getRejectedMalformed(){ return malformed.sum(); }
+	public long getRejectedMissingField(){ return missingField.sum(); }
+	public long getRejectedSamePerson(){ return samePerson.sum(); }
+	public long getRejectedInvalidTime(){ return invalidTime.sum(); }
+	public long getIgnoredTooOld(){ return tooOld.sum(); }
+	public long getRefreshed(){ return refreshed.sum(); }
+	public long getNewEdges(){ return newEdges.sum(); }
+	public long getExpiredEdges(){ return expiredEdges.sum(); }
+
+	public int getLiveVertices(){
+		PeriodGraph g = graph;
+		return g==null ? 0 : g.getVertexCount();
+	}
+
+	public int getLiveEdges(){
+		PeriodGraph g = graph;
+		return g==null ? 0 : g.getEdgeCount();
+	}
+
+	/**
+	 * @return All the counters and the latencies as text, one per line
+	 */
+	public String dump(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("accepted=").append(getAccepted());
+		sb.append(" too-old=").append(getIgnoredTooOld());
+		sb.append(" refreshed=").append(getRefreshed());
+		sb.append(" new-edges=").append(getNewEdges());
+		sb.append(" expired-edges=").append(getExpiredEdges()).append('\n');
+		sb.append("rejected malformed=").append(getRejectedMalformed());
+		sb.append(" missing-field=").append(getRejectedMissingField());
+		sb.append(" same-person=").append(getRejectedSamePerson());
+		sb.append(" invalid-time=").append(getRejectedInvalidTime()).append('\n');
+		sb.append("live vertices=").append(getLiveVertices());
+		sb.append(" edges=").append(getLiveEdges()).append('\n');
+		for( int i=0; i<stages.length; i++ )
+			sb.append(STAGES[i]).append(": ").append(stages[i]).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * This method registers the counters and the stage histograms in the
+	 * platform MBean server, as <code>src:type=GraphMetrics,name=...</code>
+	 * @param name The name of this instance
+	 * @throws IllegalStateException if the MBeans cannot be registered
+	 */
+	public void register( String name ){
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean( this, new ObjectName("src:type=GraphMetrics,name="+name) );
+			for( int i=0; i<stages.length; i++ )
+				server.registerMBean( stages[i], new ObjectName("src:type=GraphMetrics,name="+name+",stage="+STAGES[i]) );
+		} catch( JMException ex ){
+			throw new IllegalStateException( "Cannot register the metrics "+name, ex );
+		}
+	}
+
+	/**
+	 * This method prints <code>dump()</code> on a daemon thread at a fixed rate
+	 * @param out The stream to print to
+	 * @param seconds The number of seconds between two dumps
+	 */
+	public synchronized void startDump( final PrintStream out, long seconds ){
+		if( dumper!=null ) throw new IllegalStateException("The metrics are already dumped");
+		dumper = Executors.newSingleThreadScheduledExecutor( new ThreadFactory(){
+			public Thread newThread( Runnable r ){
+				Thread thread = new Thread( r, "metrics-dump" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		dumper.scheduleAtFixedRate( new Runnable(){
+			public void run(){
+				out.print( dump() );
+				out.flush();
+			}
+		}, seconds, seconds, TimeUnit.SECONDS );
+	}
+
+	/**
+	 * This method stops the periodic dump, if it is started
+	 */
+	public synchronized void stopDump(){
+		if( dumper==null ) return;
+		dumper.shutdownNow();
+		dumper = null;
+	}
+}
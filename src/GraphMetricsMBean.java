@@ -0,0 +1,25 @@
+package src;
+
+/**
+ * <h1>GraphMetricsMBean</h1>
+ * The JMX view of the counters of <code>GraphMetrics</code>. The latencies of
+ * the stages are separate <code>LatencyHistogramMBean</code>s.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+public interface GraphMetricsMBean {
+	long getAccepted();
+	long getRejectedMalformed();
+	long getRejectedMissingField();
+	long getRejectedSamePerson();
+	long getRejectedInvalidTime();
+	long getIgnoredTooOld();
+	long getRefreshed();
+	long getNewEdges();
+	long getExpiredEdges();
+	int getLiveVertices();
+	int getLiveEdges();
+	String dump();
+}
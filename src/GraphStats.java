@@ -0,0 +1,77 @@
+package src;
+import java.util.Locale;
+
+/**
+ * <h1>GraphStats</h1>
+ * An immutable snapshot of the state of a <code>PeriodGraph</code>, published
+ * by the ingesting thread and read by any other one without locking.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param median The median degree
+ * @param vertexCount The number of vertice in the time window
+ * @param edgeCount The number of edges in the time window
+ * @param windowStart The oldest time stamp in seconds still in the window
+ * @param windowEnd The latest time stamp in seconds, 0 before the first transaction
+ * @param records The number of input lines read
+ * @param accepted The number of lines accepted, i.e. with an output
+ * @param publishedAt The wall clock time in milliseconds of the snapshot
+ */
+
+public final class GraphStats {
+	public final double median;
+	public final int vertexCount;
+	public final int edgeCount;
+	public final long windowStart;
+	public final long windowEnd;
+	public final long records;
+	public final long accepted;
+	public final long publishedAt;
+
+	/**
+	 * This constructor takes the snapshot of a graph
+	 * @param graph The graph, only read by the calling thread
+	 * @param records The number of input lines read
+	 * @param accepted The number of lines accepted
+	 */
+	public GraphStats( PeriodGraph graph, long records, long accepted ){
+		this( graph.getMedian(), graph.getVertexCount(), graph.getEdgeCount(), graph.getLastTime(), graph.getPeriod(), records, accepted );
+	}
+
+	/**
+	 * This constructor takes the snapshot of a graph from its values
+	 * @param median The median degree
+	 * @param vertexCount The number of vertice in the time window
+	 * @param edgeCount The number of edges in the time window
+	 * @param windowEnd The latest time stamp in seconds
+	 * @param period The length of the time window in seconds
+	 * @param records The number of input lines read
+	 * @param accepted The number of lines accepted
+	 */
+	public GraphStats( double median, int vertexCount, int edgeCount, long windowEnd, int period, long records, long accepted ){
+		this.median = median;
+		this.vertexCount = vertexCount;
+		this.edgeCount = edgeCount;
+		this.windowEnd = windowEnd;
+		windowStart = windowEnd-period+1;
+		this.records = records;
+		this.accepted = accepted;
+		publishedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The snapshot as a JSON object
+	 */
+	public String toJson(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"median\": ").append(String.format(Locale.ROOT, "%.2f", median));
+		sb.append(", \"vertices\": ").append(vertexCount);
+		sb.append(", \"edges\": ").append(edgeCount);
+		sb.append(", \"window_start\": ").append(windowStart);
+		sb.append(", \"window_end\": ").append(windowEnd);
+		sb.append(", \"records\": ").append(records);
+		sb.append(", \"accepted\": ").append(accepted);
+		sb.append(", \"published_at\": ").append(publishedAt).append('}');
+		return sb.toString();
+	}
+}
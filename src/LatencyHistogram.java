@@ -0,0 +1,103 @@
+package src;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h1>LatencyHistogram</h1>
+ * Counts latencies in nanoseconds in 64 power-of-two buckets: bucket b holds
+ * the latencies from 2^b to 2^(b+1)-1 (bucket 0 also holds 0). Every bucket is
+ * a <code>LongAdder</code>, so several threads can record at the same time
+ * without contending on one counter, and recording allocates nothing once the
+ * adders have settled. The percentiles are the upper bounds of their buckets,
+ * so they are within a factor of two.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param buckets The count of each bucket
+ * @param total The sum of all the recorded latencies
+ * @param max The largest recorded latency
+ */
+
+public class LatencyHistogram implements LatencyHistogramMBean {
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets;
+	private final LongAdder total;
+	private volatile long max;
+
+	/**
+	 * The constructor initializes the empty buckets
+	 */
+	public LatencyHistogram(){
+		buckets = new LongAdder[BUCKETS];
+		for( int i=0; i<BUCKETS; i++ ) buckets[i] = new LongAdder();
+		total = new LongAdder();
+		max = 0;
+	}
+
+	/**
+	 * This method records one latency
+	 * @param nanos The latency in nanoseconds, negative ones count as 0
+	 */
+	public void record( long nanos ){
+		if( nanos<0 ) nanos = 0;
+		buckets[63-Long.numberOfLeadingZeros(nanos|1)].increment();
+		total.add( nanos );
+		// A lost update only makes the maximum a little stale
+		if( nanos>max ) max = nanos;
+	}
+
+	public long getCount(){
+		long count = 0;
+		for( LongAdder bucket: buckets ) count += bucket.sum();
+		return count;
+	}
+
+	public double getMeanNanos(){
+		long count = getCount();
+		return count==0 ? 0 : (double)total.sum()/count;
+	}
+
+	public long getP50Nanos(){
+		return percentile( 0.5 );
+	}
+
+	public long getP90Nanos(){
+		return percentile( 0.9 );
+	}
+
+	public long getP99Nanos(){
+		return percentile( 0.99 );
+	}
+
+	public long getMaxNanos(){
+		return max;
+	}
+
+	/**
+	 * @param p The fraction of the latencies, between 0 and 1
+	 * @return The upper bound of the bucket holding the percentile, or 0 if
+	 * nothing is recorded
+	 */
+	public long percentile( double p ){
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for( int i=0; i<BUCKETS; i++ ){
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if( count==0 ) return 0;
+		long rank = (long)Math.ceil( p*count );
+		long seen = 0;
+		for( int i=0; i<BUCKETS; i++ ){
+			seen += counts[i];
+			if( seen>=Math.max(rank, 1) ) return i==BUCKETS-1 ? Long.MAX_VALUE : (1L<<(i+1))-1;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString(){
+		return String.format( "count=%d mean=%.0fns p50<=%dns p90<=%dns p99<=%dns max=%dns",
+				getCount(), getMeanNanos(), getP50Nanos(), getP90Nanos(), getP99Nanos(), getMaxNanos() );
+	}
+}
@@ -0,0 +1,18 @@
+package src;
+
+/**
+ * <h1>LatencyHistogramMBean</h1>
+ * The JMX view of a <code>LatencyHistogram</code>, all in nanoseconds
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+public interface LatencyHistogramMBean {
+	long getCount();
+	double getMeanNanos();
+	long getP50Nanos();
+	long getP90Nanos();
+	long getP99Nanos();
+	long getMaxNanos();
+}
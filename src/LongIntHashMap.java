@@ -0,0 +1,138 @@
+package src;
+import java.util.*;
+
+/**
+ * <h1>LongIntHashMap</h1>
+ * A map of primitive long keys to primitive int values with open addressing
+ * and linear probing, so no key, value or entry object is allocated. Removed
+ * entries are filled by shifting the following entries back, so there are no
+ * tombstones and the probe sequences stay short.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param keys The keys of the table, -1 for an empty slot
+ * @param values The values of the table
+ * @param size The number of entries in the map
+ */
+
+public class LongIntHashMap {
+	public static final int MISSING = -1;
+	private static final long EMPTY = -1L;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+
+	/**
+	 * The constructor initializes an empty map
+	 */
+	public LongIntHashMap(){
+		this( 16 );
+	}
+
+	/**
+	 * @param capacity The number of entries expected, the table grows beyond it
+	 */
+	public LongIntHashMap( int capacity ){
+		int n = Integer.highestOneBit( Math.max(capacity*2, 4)-1 )<<1;
+		keys = new long[n];
+		values = new int[n];
+		Arrays.fill( keys, EMPTY );
+		mask = n-1;
+		size = 0;
+	}
+
+	/**
+	 * @return The number of entries in the map
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @param key The key to look up, must not be negative
+	 * @return The value of the key, or <code>MISSING</code> if it is not in the map
+	 */
+	public int get( long key ){
+		for( int i=slot(key); ; i=(i+1)&mask ){
+			if( keys[i]==key ) return values[i];
+			if( keys[i]==EMPTY ) return MISSING;
+		}
+	}
+
+	/**
+	 * This method adds or replaces the value of a key
+	 * @param key The key, must not be negative
+	 * @param value The value
+	 */
+	public void put( long key, int value ){
+		int i = slot(key);
+		while( keys[i]!=EMPTY && keys[i]!=key ) i = (i+1)&mask;
+		if( keys[i]==EMPTY ){
+			keys[i] = key;
+			size++;
+		}
+		values[i] = value;
+		if( size*2>keys.length ) rehash( keys.length*2 );
+	}
+
+	/**
+	 * This method removes a key and shifts back the entries probed after it
+	 * @param key The key to be removed
+	 * @return The removed value, or <code>MISSING</code> if it was not in the map
+	 */
+	public int remove( long key ){
+		int i = slot(key);
+		while( keys[i]!=key ){
+			if( keys[i]==EMPTY ) return MISSING;
+			i = (i+1)&mask;
+		}
+		int value = values[i];
+		size--;
+		// Move back every following entry whose home slot is not between the gap and itself
+		int gap = i;
+		for( int j=(gap+1)&mask; keys[j]!=EMPTY; j=(j+1)&mask ){
+			int home = slot(keys[j]);
+			if( ((j-home)&mask)>=((j-gap)&mask) ){
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = EMPTY;
+		return value;
+	}
+
+	/**
+	 * This method removes all entries, keeping the capacity
+	 */
+	public void clear(){
+		Arrays.fill( keys, EMPTY );
+		size = 0;
+	}
+
+	/**
+	 * @return The home slot of the key with Fibonacci hashing
+	 */
+	private int slot( long key ){
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int)(h^(h>>>32)) & mask;
+	}
+
+	private void rehash( int capacity ){
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill( keys, EMPTY );
+		mask = capacity-1;
+		for( int i=0; i<oldKeys.length; i++ ){
+			if( oldKeys[i]==EMPTY ) continue;
+			int j = slot(oldKeys[i]);
+			while( keys[j]!=EMPTY ) j = (j+1)&mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package src;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <h1>MedianWriter</h1>
+ * Writes the medians of the output into a large byte buffer, flushed through
+ * a channel, without going through a <code>Formatter</code> for every line.
+ * A median degree is always an integer or a half, so the "%.2f" text of the
+ * first <code>TABLE_SIZE</code> halves is formatted once into a table and
+ * copied from there; any other value falls back to <code>String.format</code>.
+ * The writer is also a <code>Writer</code> encoding UTF-8 into the same buffer,
+ * so a <code>PrintWriter</code> around it can add any other text in order.
+ * <p>
+ * In the changes-only mode, <code>printlnMedian</code> writes a line only when
+ * the median changes: the previous median and the number of lines it was
+ * repeated for, separated by a tab. The last run is written on close, so the
+ * counts add up to the number of lines of the full output.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param channel The channel of the output
+ * @param buffer The bytes not written to the channel yet
+ * @param changesOnly If only the changes of the median are written
+ * @param run The median of the current run in the changes-only mode
+ * @param runLength The number of lines of the current run
+ */
+
+public class MedianWriter extends Writer {
+	/** The default size of the buffer in bytes */
+	public static final int BUFFER_SIZE = 1<<20;
+	/** The number of halves in the table, from 0.00 to 2047.50 */
+	public static final int TABLE_SIZE = 4096;
+
+	private static final String[] TEXT = new String[TABLE_SIZE];
+	private static final byte[][] LINES = new byte[TABLE_SIZE][];
+	static {
+		for( int i=0; i<TABLE_SIZE; i++ ){
+			TEXT[i] = String.format( "%.2f", i/2.0 );
+			LINES[i] = (TEXT[i]+"\n").getBytes( StandardCharsets.UTF_8 );
+		}
+	}
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private boolean changesOnly;
+	private double run;
+	private long runLength;
+	private boolean closed;
+
+	/**
+	 * @param channel The channel of the output
+	 */
+	public MedianWriter( WritableByteChannel channel ){
+		this( channel, BUFFER_SIZE );
+	}
+
+	/**
+	 * @param channel The channel of the output
+	 * @param bufferSize The size of the buffer in bytes
+	 */
+	public MedianWriter( WritableByteChannel channel, int bufferSize ){
+		if( bufferSize<16 ) throw new IllegalArgumentException("The buffer needs at least 16 bytes: "+bufferSize);
+		this.channel = channel;
+		buffer = ByteBuffer.allocateDirect( bufferSize );
+	}
+
+	/**
+	 * @param path The output file, replaced if it exists
+	 * @return A writer of the file
+	 * @throws IOException if the file cannot be created
+	 */
+	public static MedianWriter open( Path path ) throws IOException {
+		return new MedianWriter( FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING) );
+	}
+
+	/**
+	 * @param median A median degree
+	 * @return The median as "%.2f", from the table if it is a half in it
+	 */
+	public static String format( double median ){
+		int halves = (int)(median*2);
+		if( halves==median*2 && halves>=0 && halves<TABLE_SIZE ) return TEXT[halves];
+		return String.format( "%.2f", median );
+	}
+
+	/**
+	 * This method makes <code>printlnMedian</code> write only the changes of the
+	 * median with their counts, or every median again
+	 */
+	public void setChangesOnly( boolean changesOnly ) throws IOException {
+		endRun();
+		this.changesOnly = changesOnly;
+	}
+
+	/**
+	 * This method writes a median as "%.2f" without a newline
+	 * @param median The median degree
+	 * @throws IOException if the output cannot be written
+	 */
+	public void printMedian( double median ) throws IOException {
+		int halves = (int)(median*2);
+		if( halves==median*2 && halves>=0 && halves<TABLE_SIZE ) put( LINES[halves], 0, LINES[halves].length-1 );
+		else write( String.format("%.2f", median) );
+	}
+
+	/**
+	 * This method writes a median as "%.2f" and a newline, or in the
+	 * changes-only mode counts it in the current run
+	 * @param median The median degree
+	 * @throws IOException if the output cannot be written
+	 */
+	public void printlnMedian( double median ) throws IOException {
+		if( changesOnly ){
+			if( runLength>0 && median==run ){
+				runLength++;
+				return;
+			}
+			endRun();
+			run = median;
+			runLength = 1;
+			return;
+		}
+		int halves = (int)(median*2);
+		if( halves==median*2 && halves>=0 && halves<TABLE_SIZE ) put( LINES[halves], 0, LINES[halves].length );
+		else {
+			write( String.format("%.2f", median) );
+			println();
+		}
+	}
+
+	/**
+	 * This method writes a newline
+	 * @throws IOException if the output cannot be written
+	 */
+	public void println() throws IOException {
+		if( !buffer.hasRemaining() ) drain();
+		buffer.put( (byte)'\n' );
+	}
+
+	@Override
+	public void write( int c ) throws IOException {
+		if( c<0x80 ){
+			if( !buffer.hasRemaining() ) drain();
+			buffer.put( (byte)c );
+		} else write( String.valueOf((char)c) );
+	}
+
+	@Override
+	public void write( char[] chars, int offset, int length ) throws IOException {
+		int end = offset+length;
+		for( int i=offset; i<end; i++ ){
+			char c = chars[i];
+			if( c>=0x80 ){
+				byte[] bytes = new String( chars, i, end-i ).getBytes( StandardCharsets.UTF_8 );
+				put( bytes, 0, bytes.length );
+				return;
+			}
+			if( !buffer.hasRemaining() ) drain();
+			buffer.put( (byte)c );
+		}
+	}
+
+	@Override
+	public void write( String text, int offset, int length ) throws IOException {
+		int end = offset+length;
+		for( int i=offset; i<end; i++ ){
+			char c = text.charAt( i );
+			if( c>=0x80 ){
+				byte[] bytes = text.substring( i, end ).getBytes( StandardCharsets.UTF_8 );
+				put( bytes, 0, bytes.length );
+				return;
+			}
+			if( !buffer.hasRemaining() ) drain();
+			buffer.put( (byte)c );
+		}
+	}
+
+	/**
+	 * This method writes the buffer to the channel; the current run of the
+	 * changes-only mode is kept until the median changes
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+
+	/**
+	 * This method writes the last run of the changes-only mode and the buffer,
+	 * and closes the channel; it can be called again
+	 */
+	@Override
+	public void close() throws IOException {
+		if( closed ) return;
+		closed = true;
+		try {
+			endRun();
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * This method writes the current run of the changes-only mode, if any
+	 */
+	private void endRun() throws IOException {
+		if( runLength==0 ) return;
+		printMedian( run );
+		write( '\t' );
+		write( Long.toString(runLength) );
+		println();
+		runLength = 0;
+	}
+
+	private void put( byte[] bytes, int offset, int length ) throws IOException {
+		while( length>0 ){
+			if( !buffer.hasRemaining() ) drain();
+			int n = Math.min( length, buffer.remaining() );
+			buffer.put( bytes, offset, n );
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while( buffer.hasRemaining() ) channel.write( buffer );
+		buffer.clear();
+	}
+}
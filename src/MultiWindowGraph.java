@@ -0,0 +1,283 @@
+package src;
+import java.util.*;
+
+/**
+ * <h1>MultiWindowGraph</h1>
+ * Maintains the median degree of the transaction graph for several time
+ * windows at once, e.g. 60 seconds, 5 minutes, 1 hour and 24 hours, with every
+ * median exactly the one of a <code>PeriodGraph</code> of that window.
+ * <p>
+ * An edge is stored once, with a single time stamp, and belongs to all the
+ * windows from the shortest one it is still in up to the longest one. It is
+ * kept in the <code>TimeWheel</code> of that shortest window only: when it
+ * expires there, it cascades to the wheel of the next longer window, and it
+ * is freed when it expires from the longest one. All the wheels share their
+ * per-edge arrays, so the edge storage grows with the number of edges, not
+ * with the number of edges times the number of windows. Only the vertex
+ * degrees and the <code>DegreeHistogram</code> are kept per window.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param periods The lengths of the windows in seconds, in ascending order
+ * @param lastTime The time stamp of the latest new edge of each window
+ * @param wheels The <code>TimeWheel</code> of the edges whose shortest window is each window
+ * @param checkMap The map of packed graph edge to its handle
+ * @param edges The packed graph edge of each handle, freed handles are reused
+ * @param lowest The index of the shortest window each edge is in
+ * @param dictionary The <code>VertexDictionary</code> of the person names
+ * @param degrees The degree of each vertex in each window
+ * @param histograms The <code>DegreeHistogram</code> of each window
+ */
+
+public class MultiWindowGraph {
+	private final int[] periods;
+	private final long[] lastTime;
+	private final TimeWheel[] wheels;
+	private final LongIntHashMap checkMap;
+	private long[] edges;
+	private byte[] lowest;
+	private int[] freeEdges;
+	private int freeCount;
+	private int edgeCount;
+	private final VertexDictionary dictionary;
+	private final int[][] degrees;
+	private final int[] vertexCount;
+	private final int[] windowEdges;
+	private final DegreeHistogram[] histograms;
+	// Reused by every removal: the vertice touched and their degree before the removal
+	private int[] touched;
+	private int[] initialCount;
+	private int touchedCount;
+
+	/**
+	 * @param periods The lengths of the windows in seconds, in any order
+	 * @throws IllegalArgumentException if there is no window, more than 127, or
+	 * two windows of the same length
+	 */
+	public MultiWindowGraph( int... periods ){
+		if( periods.length==0 || periods.length>Byte.MAX_VALUE )
+			throw new IllegalArgumentException("The number of windows must be between 1 and "+Byte.MAX_VALUE);
+		this.periods = periods.clone();
+		Arrays.sort( this.periods );
+		int windows = this.periods.length;
+		for( int i=1; i<windows; i++ )
+			if( this.periods[i]==this.periods[i-1] )
+				throw new IllegalArgumentException("The window of "+this.periods[i]+" seconds is given twice");
+		lastTime = new long[windows];
+		wheels = new TimeWheel[windows];
+		wheels[0] = new TimeWheel( this.periods[0] );
+		for( int i=1; i<windows; i++ ) wheels[i] = new TimeWheel( this.periods[i], wheels[0] );
+		checkMap = new LongIntHashMap();
+		edges = new long[16];
+		lowest = new byte[16];
+		freeEdges = new int[16];
+		freeCount = 0;
+		edgeCount = 0;
+		dictionary = new VertexDictionary();
+		degrees = new int[windows][16];
+		vertexCount = new int[windows];
+		windowEdges = new int[windows];
+		histograms = new DegreeHistogram[windows];
+		for( int i=0; i<windows; i++ ) histograms[i] = new DegreeHistogram();
+		touched = new int[16];
+		initialCount = new int[16];
+		Arrays.fill( initialCount, -1 );
+		touchedCount = 0;
+	}
+
+	/**
+	 * This method is the same as <code>PeriodGraph.addTransaction(int, int, long)</code>
+	 * for all the windows at once
+	 * @param actor The actor ID from <code>getDictionary()</code>, negative if empty
+	 * @param target The target ID from <code>getDictionary()</code>, negative if empty
+	 * @param timeInSeconds The time in seconds, or <code>PeriodGraph.INVALID_TIME</code>
+	 * @return The add operation is successful or not
+	 */
+	public boolean addTransaction( int actor, int target, long timeInSeconds ){
+		if( actor<0 || target<0 || actor==target || timeInSeconds==PeriodGraph.INVALID_TIME ) return false;
+		int windows = periods.length;
+		// The windows accepting the time stamp are always the longest ones, as a
+		// longer window is never ahead of a shorter one
+		int first = 0;
+		while( first<windows && lastTime[first]-timeInSeconds>=periods[first] ) first++;
+		if( first==windows ) return true; // Do nothing if the new item is too old for all windows
+
+		long key = actor<target ? ((long)actor<<32)|target : ((long)target<<32)|actor;
+		int edge = checkMap.get( key );
+		int old = edge==LongIntHashMap.MISSING ? windows : lowest[edge];
+		if( first>=old ){
+			// The edge is in all the accepting windows, only refresh its time stamp
+			if( wheels[old].time(edge)<timeInSeconds ) wheels[old].move( edge, timeInSeconds );
+			return true;
+		}
+
+		// The edge is new in the windows from first to old-1, check and remove the
+		// old entries of each of them before the new edge is counted there
+		ensureVertex( Math.max(actor, target) );
+		for( int i=first; i<old; i++ ){
+			if( timeInSeconds>lastTime[i] ){
+				lastTime[i] = timeInSeconds;
+				removeOldEntries( i );
+			}
+			addDegree( i, actor );
+			addDegree( i, target );
+			windowEdges[i]++;
+		}
+		if( edge==LongIntHashMap.MISSING ){
+			edge = newEdge( key );
+			checkMap.put( key, edge );
+		} else
+			wheels[old].remove( edge );
+		// The time stamp is always newer than the one of the edge in the longer windows
+		lowest[edge] = (byte)first;
+		wheels[first].add( edge, timeInSeconds );
+		return true;
+	}
+
+	/**
+	 * @return The <code>VertexDictionary</code> interning the person names of this graph
+	 */
+	public VertexDictionary getDictionary(){
+		return dictionary;
+	}
+
+	/**
+	 * @return The number of windows
+	 */
+	public int windows(){
+		return periods.length;
+	}
+
+	/**
+	 * @param window The index of the window, from the shortest one
+	 * @return The length of the window in seconds
+	 */
+	public int getPeriod( int window ){
+		return periods[window];
+	}
+
+	/**
+	 * @param window The index of the window, from the shortest one
+	 * @return The median of the vertice's degrees in the window
+	 */
+	public double getMedian( int window ){
+		return histograms[window].findMedian();
+	}
+
+	/**
+	 * @param window The index of the window, from the shortest one
+	 * @return The number of vertice with at least one edge in the window
+	 */
+	public int getVertexCount( int window ){
+		return vertexCount[window];
+	}
+
+	/**
+	 * @param window The index of the window, from the shortest one
+	 * @return The number of edges in the window
+	 */
+	public int getEdgeCount( int window ){
+		return windowEdges[window];
+	}
+
+	/**
+	 * @param window The index of the window, from the shortest one
+	 * @return The time stamp in seconds of the latest new edge of the window
+	 */
+	public long getLastTime( int window ){
+		return lastTime[window];
+	}
+
+	/**
+	 * This method counts a new edge of a vertex in a window
+	 */
+	private void addDegree( int window, int vertex ){
+		int prev = degrees[window][vertex]++;
+		if( prev>0 ) histograms[window].remove( prev );
+		else vertexCount[window]++;
+		histograms[window].add( prev+1 );
+	}
+
+	/**
+	 * This method removes the edges expired from a window and cascades them to
+	 * the next longer window, or frees them after the longest one
+	 * @param window The index of the window whose lastTime has advanced
+	 */
+	private void removeOldEntries( int window ){
+		int[] degree = degrees[window];
+		TimeWheel wheel = wheels[window];
+		boolean longest = window==periods.length-1;
+		wheel.advance( lastTime[window] );
+		int edge;
+		while( (edge = wheel.pollExpired())>=0 ){
+			long pair = edges[edge];
+			removeDegree( degree, (int)(pair>>>32) );
+			removeDegree( degree, (int)pair );
+			windowEdges[window]--;
+			if( longest ){
+				checkMap.remove( pair );
+				freeEdge( edge );
+			} else {
+				// The time stamp is still in the next window, whose lastTime is not ahead of this one
+				lowest[edge] = (byte)(window+1);
+				wheels[window+1].add( edge, wheel.time(edge) );
+			}
+		}
+		DegreeHistogram histogram = histograms[window];
+		for( int i=0; i<touchedCount; i++ ){
+			int vertex = touched[i];
+			histogram.remove( initialCount[vertex] );
+			histogram.add( degree[vertex] );
+			if( degree[vertex]==0 ) vertexCount[window]--;
+			initialCount[vertex] = -1;
+		}
+		touchedCount = 0;
+	}
+
+	/**
+	 * This method decreases the degree of a vertex of an expired edge, keeping the
+	 * degree before the removal for the histogram update
+	 */
+	private void removeDegree( int[] degree, int vertex ){
+		if( initialCount[vertex]<0 ){
+			initialCount[vertex] = degree[vertex];
+			if( touchedCount==touched.length ) touched = Arrays.copyOf( touched, touchedCount*2 );
+			touched[touchedCount++] = vertex;
+		}
+		degree[vertex]--;
+	}
+
+	/**
+	 * This method gives a handle to a new edge, reusing the freed ones first
+	 */
+	private int newEdge( long pair ){
+		int edge = freeCount>0 ? freeEdges[--freeCount] : edgeCount++;
+		if( edge>=edges.length ){
+			edges = Arrays.copyOf( edges, edges.length*2 );
+			lowest = Arrays.copyOf( lowest, edges.length );
+		}
+		edges[edge] = pair;
+		return edge;
+	}
+
+	/**
+	 * This method frees the handle of an expired edge to be reused
+	 */
+	private void freeEdge( int edge ){
+		if( freeCount==freeEdges.length ) freeEdges = Arrays.copyOf( freeEdges, freeCount*2 );
+		freeEdges[freeCount++] = edge;
+	}
+
+	/**
+	 * This method makes sure the per-vertex arrays cover a vertex ID
+	 */
+	private void ensureVertex( int vertex ){
+		int length = initialCount.length;
+		if( vertex<length ) return;
+		int n = length;
+		while( n<=vertex ) n <<= 1;
+		for( int i=0; i<degrees.length; i++ ) degrees[i] = Arrays.copyOf( degrees[i], n );
+		initialCount = Arrays.copyOf( initialCount, n );
+		Arrays.fill( initialCount, length, n, -1 );
+	}
+}
@@ -0,0 +1,190 @@
+package src;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * <h1>OffHeapBuffer</h1>
+ * A growable run of bytes outside the Java heap, read and written as ints and
+ * longs at byte offsets, for the off-heap structures of <code>OffHeapGraph</code>.
+ * The memory is either direct <code>ByteBuffer</code>s or the memory-mapped
+ * regions of a temporary file, deleted on <code>close()</code>. Either way the
+ * garbage collector only sees a few buffer objects, whatever the size.
+ * <p>
+ * The bytes are kept in segments of up to 1GB, so the buffer can grow beyond
+ * the 2GB of one <code>ByteBuffer</code> without copying. A direct buffer
+ * starts with one small segment which is copied into a larger one until it
+ * reaches the full segment size; a file is mapped a full segment at a time,
+ * as the pages of a sparse file are only used once they are written. New
+ * bytes are always 0. An int or a long at an aligned offset never spans two
+ * segments.
+ * <p>
+ * A replaced or closed segment is released at once rather than when the
+ * garbage collector finds it, so a growing or rehashed structure does not
+ * keep its old memory reserved. Direct buffers cannot hold more than
+ * -XX:MaxDirectMemorySize in total, the -Xmx heap size by default, while
+ * mapped files are only limited by the disk.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param segments The segments, the last ones possibly null until used
+ * @param capacity The number of bytes available
+ * @param file The temporary file, or null for direct buffers
+ */
+
+public class OffHeapBuffer implements Closeable {
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L<<SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE-1;
+	// Unsafe.invokeCleaner() of Java 9 and later, null before
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> type = Class.forName( "sun.misc.Unsafe" );
+			invokeCleaner = type.getMethod( "invokeCleaner", ByteBuffer.class );
+			Field field = type.getDeclaredField( "theUnsafe" );
+			field.setAccessible( true );
+			unsafe = field.get( null );
+		} catch( ReflectiveOperationException | RuntimeException ex ){
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private ByteBuffer[] segments;
+	private long capacity;
+	private final Path file;
+	private final FileChannel channel;
+
+	/**
+	 * @param directory The directory of the temporary file to map, or null for
+	 * direct buffers
+	 * @param bytes The number of bytes needed at first
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	public OffHeapBuffer( Path directory, long bytes ) throws IOException {
+		segments = new ByteBuffer[4];
+		capacity = 0;
+		if( directory==null ){
+			file = null;
+			channel = null;
+		} else {
+			file = Files.createTempFile( directory, "graph", ".bin" );
+			channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		}
+		ensureCapacity( bytes );
+	}
+
+	/**
+	 * This method makes sure the bytes up to an offset are available
+	 * @param bytes The number of bytes needed
+	 * @throws UncheckedIOException if a region of the file cannot be mapped
+	 */
+	public void ensureCapacity( long bytes ){
+		if( bytes<=capacity ) return;
+		if( channel==null && capacity<SEGMENT_SIZE ){
+			// Grow the single direct segment by doubling, up to a full segment
+			long size = Math.max( capacity, 4096 );
+			while( size<bytes && size<SEGMENT_SIZE ) size <<= 1;
+			ByteBuffer segment = ByteBuffer.allocateDirect( (int)size );
+			segment.order( ByteOrder.nativeOrder() );
+			if( segments[0]!=null ){
+				ByteBuffer old = segments[0].duplicate();
+				old.clear();
+				segment.put( old );
+				segment.clear();
+				release( segments[0] );
+			}
+			segments[0] = segment;
+			capacity = segment.capacity();
+		}
+		while( capacity<bytes ){
+			int index = (int)(capacity>>>SEGMENT_BITS);
+			if( index==segments.length ) segments = Arrays.copyOf( segments, index*2 );
+			segments[index] = newSegment( (long)index<<SEGMENT_BITS );
+			capacity += SEGMENT_SIZE;
+		}
+	}
+
+	/**
+	 * @return The number of bytes available
+	 */
+	public long capacity(){
+		return capacity;
+	}
+
+	public int getInt( long offset ){
+		return segments[(int)(offset>>>SEGMENT_BITS)].getInt( (int)(offset & SEGMENT_MASK) );
+	}
+
+	public void putInt( long offset, int value ){
+		segments[(int)(offset>>>SEGMENT_BITS)].putInt( (int)(offset & SEGMENT_MASK), value );
+	}
+
+	public long getLong( long offset ){
+		return segments[(int)(offset>>>SEGMENT_BITS)].getLong( (int)(offset & SEGMENT_MASK) );
+	}
+
+	public void putLong( long offset, long value ){
+		segments[(int)(offset>>>SEGMENT_BITS)].putLong( (int)(offset & SEGMENT_MASK), value );
+	}
+
+	/**
+	 * This method releases the memory, and deletes the file if there is one.
+	 * The buffer must not be used any more.
+	 */
+	public void close() throws IOException {
+		ByteBuffer[] released = segments;
+		segments = new ByteBuffer[0];
+		for( ByteBuffer segment: released ) release( segment );
+		capacity = 0;
+		if( channel!=null ){
+			channel.close();
+			Files.deleteIfExists( file );
+		}
+	}
+
+	/**
+	 * This method frees the memory of a direct buffer or unmaps a mapped one,
+	 * which must not be used any more; if the JVM does not allow it, the
+	 * garbage collector will
+	 */
+	private static void release( ByteBuffer segment ){
+		if( segment==null ) return;
+		try {
+			if( INVOKE_CLEANER!=null ) INVOKE_CLEANER.invoke( UNSAFE, segment );
+			else {
+				// Java 8: DirectBuffer.cleaner().clean()
+				Method cleaner = segment.getClass().getMethod( "cleaner" );
+				cleaner.setAccessible( true );
+				Object instance = cleaner.invoke( segment );
+				if( instance!=null ) instance.getClass().getMethod( "clean" ).invoke( instance );
+			}
+		} catch( ReflectiveOperationException | RuntimeException ex ){
+			// Left to the garbage collector
+		}
+	}
+
+	private ByteBuffer newSegment( long position ){
+		ByteBuffer segment;
+		if( channel==null ) segment = ByteBuffer.allocateDirect( (int)SEGMENT_SIZE );
+		else {
+			try {
+				segment = channel.map( FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE );
+			} catch( IOException ex ){
+				throw new UncheckedIOException( "Cannot map the region at "+position+" of "+file, ex );
+			}
+		}
+		segment.order( ByteOrder.nativeOrder() );
+		return segment;
+	}
+}
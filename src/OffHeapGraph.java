@@ -0,0 +1,240 @@
+package src;
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * <h1>OffHeapGraph</h1>
+ * The same graph as <code>PeriodGraph</code>, with the same rules and the same
+ * medians, but with the edges, their time stamps, the time slots and the
+ * vertex degrees outside the Java heap, for windows of tens of millions of
+ * live edges. The garbage collector then never scans or copies the graph, so
+ * its pauses do not grow with the window.
+ * <p>
+ * The edge map is an <code>OffHeapLongIntMap</code> and the time index an
+ * <code>OffHeapTimeWheel</code>, in direct buffers or in the memory-mapped
+ * temporary files of a directory. The packed edge of each handle is 8 bytes in
+ * an <code>OffHeapBuffer</code>; a freed handle holds the next freed one
+ * instead, so the free list needs no memory of its own. A vertex is 8 bytes,
+ * its degree and its degree before the current expiry plus one (0 if it is not
+ * touched). Only the <code>VertexDictionary</code> of the names, which grows
+ * with the persons rather than the edges, and the small
+ * <code>DegreeHistogram</code> stay on the heap.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param lastTime The time stamp of the latest transaction
+ * @param checkMap The off-heap map of packed graph edge to its handle
+ * @param timeMap The <code>OffHeapTimeWheel</code> of the edge handles
+ * @param pairs The packed graph edge of each handle, or the next freed handle
+ * @param freeHead The first freed handle, -1 if none
+ * @param vertices The degree and the touched degree of each vertex
+ * @param touched The vertice touched by the current expiry
+ * @param mc <code>DegreeHistogram</code> to calculate the median of the degrees
+ */
+
+public class OffHeapGraph implements Closeable {
+	private static final int NONE = -1;
+
+	private final int period;
+	private long lastTime;
+	private final OffHeapLongIntMap checkMap;
+	private final OffHeapTimeWheel timeMap;
+	private final OffHeapBuffer pairs;
+	private int edgeCount;
+	private int freeHead;
+	private final VertexDictionary dictionary;
+	private final OffHeapBuffer vertices;
+	private int vertexCount;
+	private final OffHeapBuffer touched;
+	private int touchedCount;
+	private final DegreeHistogram mc;
+
+	/**
+	 * @param period The length of the time in seconds to keep transaction records
+	 * @param directory The directory of the memory-mapped files, or null for direct buffers
+	 * @param expectedEdges The number of live edges expected, the buffers grow beyond it
+	 * @throws IOException if the buffers cannot be created
+	 */
+	public OffHeapGraph( int period, Path directory, int expectedEdges ) throws IOException {
+		this.period = period;
+		lastTime = 0;
+		checkMap = new OffHeapLongIntMap( directory, expectedEdges );
+		timeMap = new OffHeapTimeWheel( period, directory, expectedEdges );
+		pairs = new OffHeapBuffer( directory, (long)Math.max(expectedEdges, 16)*8 );
+		edgeCount = 0;
+		freeHead = NONE;
+		dictionary = new VertexDictionary();
+		vertices = new OffHeapBuffer( directory, 16*8 );
+		vertexCount = 0;
+		touched = new OffHeapBuffer( directory, 16*4 );
+		touchedCount = 0;
+		mc = new DegreeHistogram();
+	}
+
+	/**
+	 * This method is the same as <code>PeriodGraph.addTransaction(int, int, long)</code>
+	 * @param actor The actor ID from <code>getDictionary()</code>, negative if empty
+	 * @param target The target ID from <code>getDictionary()</code>, negative if empty
+	 * @param timeInSeconds The time in seconds, or <code>PeriodGraph.INVALID_TIME</code>
+	 * @return The add operation is successful or not
+	 */
+	public boolean addTransaction( int actor, int target, long timeInSeconds ){
+		if( actor<0 || target<0 || actor==target || timeInSeconds==PeriodGraph.INVALID_TIME ) return false;
+		if ( lastTime-timeInSeconds>=period ) return true; // Do nothing if the new item is more than period seconds ago
+
+		long key = actor<target ? ((long)actor<<32)|target : ((long)target<<32)|actor;
+		int handle = checkMap.get( key );
+		if( handle!=OffHeapLongIntMap.MISSING ){
+			if( timeMap.time(handle)<timeInSeconds ) timeMap.move( handle, timeInSeconds );
+			return true;
+		}
+
+		if( timeInSeconds>lastTime ){
+			lastTime = timeInSeconds;
+			removeOldEntries();
+		}
+
+		int edge = newEdge( key );
+		checkMap.put( key, edge );
+		timeMap.add( edge, timeInSeconds );
+
+		ensureVertex( Math.max(actor, target) );
+		int prevActor = degree( actor );
+		int prevTarget = degree( target );
+		setDegree( actor, prevActor+1 );
+		setDegree( target, prevTarget+1 );
+		if( prevActor>0 ) mc.remove( prevActor );
+		else vertexCount++;
+		if( prevTarget>0 ) mc.remove( prevTarget );
+		else vertexCount++;
+		mc.add( prevActor+1 );
+		mc.add( prevTarget+1 );
+		return true;
+	}
+
+	/**
+	 * @return The median of the vertice's degrees
+	 */
+	public double getMedian(){
+		return mc.findMedian();
+	}
+
+	/**
+	 * @return The <code>VertexDictionary</code> interning the person names of this graph
+	 */
+	public VertexDictionary getDictionary(){
+		return dictionary;
+	}
+
+	/**
+	 * @return The number of vertice with at least one edge in the time window
+	 */
+	public int getVertexCount(){
+		return vertexCount;
+	}
+
+	/**
+	 * @return The number of edges in the time window
+	 */
+	public int getEdgeCount(){
+		return checkMap.size();
+	}
+
+	/**
+	 * @return The time stamp in seconds of the latest transaction
+	 */
+	public long getLastTime(){
+		return lastTime;
+	}
+
+	/**
+	 * This method releases the off-heap memory and deletes the mapped files
+	 */
+	public void close() throws IOException {
+		checkMap.close();
+		timeMap.close();
+		pairs.close();
+		vertices.close();
+		touched.close();
+	}
+
+	/**
+	 * This method removes the edges more than period seconds ago, and updates
+	 * the <code>DegreeHistogram</code> once per touched vertex as
+	 * <code>PeriodGraph</code> does
+	 */
+	private void removeOldEntries(){
+		timeMap.advance( lastTime );
+		int edge;
+		while( (edge = timeMap.pollExpired())>=0 ){
+			long pair = pairs.getLong( (long)edge*8 );
+			freeEdge( edge );
+			checkMap.remove( pair );
+			removeDegree( (int)(pair>>>32) );
+			removeDegree( (int)pair );
+		}
+		for( int i=0; i<touchedCount; i++ ){
+			int vertex = touched.getInt( (long)i*4 );
+			int initial = vertices.getInt( (long)vertex*8+4 )-1;
+			int degree = degree( vertex );
+			if( initial!=degree ){
+				mc.remove( initial );
+				mc.add( degree );
+			}
+			vertices.putInt( (long)vertex*8+4, 0 );
+		}
+		touchedCount = 0;
+	}
+
+	private void removeDegree( int vertex ){
+		int degree = degree( vertex );
+		if( vertices.getInt((long)vertex*8+4)==0 ){
+			vertices.putInt( (long)vertex*8+4, degree+1 );
+			long end = ((long)touchedCount+1)*4;
+			if( end>touched.capacity() ) touched.ensureCapacity( touched.capacity()*2 );
+			touched.putInt( (long)touchedCount*4, vertex );
+			touchedCount++;
+		}
+		setDegree( vertex, degree-1 );
+		if( degree==1 ) vertexCount--;
+	}
+
+	private int degree( int vertex ){
+		return vertices.getInt( (long)vertex*8 );
+	}
+
+	private void setDegree( int vertex, int degree ){
+		vertices.putInt( (long)vertex*8, degree );
+	}
+
+	/**
+	 * This method gives a handle to a new edge, reusing the freed ones first
+	 */
+	private int newEdge( long pair ){
+		int edge;
+		if( freeHead!=NONE ){
+			edge = freeHead;
+			freeHead = (int)~pairs.getLong( (long)edge*8 );
+		} else {
+			edge = edgeCount++;
+			long end = (long)edgeCount*8;
+			if( end>pairs.capacity() ) pairs.ensureCapacity( pairs.capacity()*2 );
+		}
+		pairs.putLong( (long)edge*8, pair );
+		return edge;
+	}
+
+	/**
+	 * This method frees the handle of an expired edge, linking it to the free list
+	 */
+	private void freeEdge( int edge ){
+		pairs.putLong( (long)edge*8, ~(long)freeHead );
+		freeHead = edge;
+	}
+
+	private void ensureVertex( int vertex ){
+		long end = ((long)vertex+1)*8;
+		if( end<=vertices.capacity() ) return;
+		vertices.ensureCapacity( Math.max(end, vertices.capacity()*2) );
+	}
+}
@@ -0,0 +1,149 @@
+package src;
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * <h1>OffHeapLongIntMap</h1>
+ * The off-heap counterpart of <code>LongIntHashMap</code>: a map of
+ * non-negative long keys to int values with open addressing, linear probing
+ * and backward-shift removal, kept in an <code>OffHeapBuffer</code>. A slot is
+ * 16 bytes, the key plus one (0 for an empty slot, so a new table needs no
+ * filling) and the value.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param directory The directory of the mapped files, or null for direct buffers
+ * @param table The slots
+ * @param mask The number of slots minus one
+ * @param size The number of entries in the map
+ */
+
+public class OffHeapLongIntMap implements Closeable {
+	public static final int MISSING = LongIntHashMap.MISSING;
+	private static final int SLOT = 16;
+
+	private final Path directory;
+	private OffHeapBuffer table;
+	private int mask;
+	private int size;
+
+	/**
+	 * @param directory The directory of the mapped files, or null for direct buffers
+	 * @param capacity The number of entries expected, the table grows beyond it
+	 * @throws IOException if the table cannot be created
+	 */
+	public OffHeapLongIntMap( Path directory, int capacity ) throws IOException {
+		this.directory = directory;
+		int n = Integer.highestOneBit( Math.max(capacity*2, 4)-1 )<<1;
+		table = new OffHeapBuffer( directory, (long)n*SLOT );
+		mask = n-1;
+		size = 0;
+	}
+
+	/**
+	 * @return The number of entries in the map
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @param key The key to look up, must not be negative
+	 * @return The value of the key, or <code>MISSING</code> if it is not in the map
+	 */
+	public int get( long key ){
+		long stored = key+1;
+		for( int i=slot(key); ; i=(i+1)&mask ){
+			long k = table.getLong( (long)i*SLOT );
+			if( k==stored ) return table.getInt( (long)i*SLOT+8 );
+			if( k==0 ) return MISSING;
+		}
+	}
+
+	/**
+	 * This method adds or replaces the value of a key
+	 * @param key The key, must not be negative
+	 * @param value The value
+	 * @throws UncheckedIOException if the table cannot grow
+	 */
+	public void put( long key, int value ){
+		long stored = key+1;
+		int i = slot(key);
+		long k;
+		while( (k = table.getLong((long)i*SLOT))!=0 && k!=stored ) i = (i+1)&mask;
+		if( k==0 ){
+			table.putLong( (long)i*SLOT, stored );
+			size++;
+		}
+		table.putInt( (long)i*SLOT+8, value );
+		if( (long)size*2>(long)mask+1 ) rehash( (mask+1)*2 );
+	}
+
+	/**
+	 * This method removes a key and shifts back the entries probed after it
+	 * @param key The key to be removed
+	 * @return The removed value, or <code>MISSING</code> if it was not in the map
+	 */
+	public int remove( long key ){
+		long stored = key+1;
+		int i = slot(key);
+		long k;
+		while( (k = table.getLong((long)i*SLOT))!=stored ){
+			if( k==0 ) return MISSING;
+			i = (i+1)&mask;
+		}
+		int value = table.getInt( (long)i*SLOT+8 );
+		size--;
+		// Move back every following entry whose home slot is not between the gap and itself
+		int gap = i;
+		for( int j=(gap+1)&mask; (k = table.getLong((long)j*SLOT))!=0; j=(j+1)&mask ){
+			int home = slot(k-1);
+			if( ((j-home)&mask)>=((j-gap)&mask) ){
+				table.putLong( (long)gap*SLOT, k );
+				table.putInt( (long)gap*SLOT+8, table.getInt((long)j*SLOT+8) );
+				gap = j;
+			}
+		}
+		table.putLong( (long)gap*SLOT, 0 );
+		return value;
+	}
+
+	/**
+	 * This method releases the table
+	 */
+	public void close() throws IOException {
+		table.close();
+	}
+
+	/**
+	 * @return The home slot of the key with Fibonacci hashing
+	 */
+	private int slot( long key ){
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int)(h^(h>>>32)) & mask;
+	}
+
+	private void rehash( int capacity ){
+		OffHeapBuffer old = table;
+		int oldSlots = mask+1;
+		try {
+			table = new OffHeapBuffer( directory, (long)capacity*SLOT );
+		} catch( IOException ex ){
+			throw new UncheckedIOException( "Cannot grow the off-heap map", ex );
+		}
+		mask = capacity-1;
+		for( int i=0; i<oldSlots; i++ ){
+			long k = old.getLong( (long)i*SLOT );
+			if( k==0 ) continue;
+			int j = slot(k-1);
+			while( table.getLong((long)j*SLOT)!=0 ) j = (j+1)&mask;
+			table.putLong( (long)j*SLOT, k );
+			table.putInt( (long)j*SLOT+8, old.getInt((long)i*SLOT+8) );
+		}
+		try {
+			old.close();
+		} catch( IOException ex ){
+			throw new UncheckedIOException( ex );
+		}
+	}
+}
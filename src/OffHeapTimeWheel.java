@@ -0,0 +1,262 @@
+package src;
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * <h1>OffHeapTimeWheel</h1>
+ * The off-heap counterpart of <code>TimeWheel</code>, with the same slots,
+ * overflow list and expiry, for <code>OffHeapGraph</code>. The heads and tails
+ * of the slots and the per-edge links and time stamps are kept in
+ * <code>OffHeapBuffer</code>s; only the bitmap of the occupied slots, one bit
+ * per slot, stays on the heap.
+ * <p>
+ * The slots are 8 bytes, the head and the tail edge. The edges are 16 bytes,
+ * the time stamp and the next and previous edges in the same list.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param period The length of the time window in seconds
+ * @param now The latest time stamp the wheel has advanced to
+ * @param slots The head and the tail edge of each slot
+ * @param occupied The bitmap of the non-empty slots, to skip the empty ones 64 at a time
+ * @param links The time stamp and the next and previous edges of each edge
+ */
+
+public class OffHeapTimeWheel implements Closeable {
+	private static final int NONE = -1;
+	private static final int EDGE = 16;
+
+	private final int period;
+	private final int mask;
+	private final int slotCount;
+	private long now;
+	private final OffHeapBuffer slots;
+	private final long[] occupied;
+	private int overflowHead;
+	private int expiredHead;
+	private final OffHeapBuffer links;
+	private int size;
+
+	/**
+	 * @param period The length of the time window in seconds
+	 * @param directory The directory of the mapped files, or null for direct buffers
+	 * @param edges The number of edge handles expected, the links grow beyond it
+	 * @throws IOException if the buffers cannot be created
+	 */
+	public OffHeapTimeWheel( int period, Path directory, int edges ) throws IOException {
+		if( period<=0 ) throw new IllegalArgumentException("The period must be positive: "+period);
+		this.period = period;
+		slotCount = Integer.highestOneBit( 2*period-1 )<<1;
+		mask = slotCount-1;
+		now = 0;
+		slots = new OffHeapBuffer( directory, (long)slotCount*8 );
+		for( int slot=0; slot<slotCount; slot++ ) slots.putLong( (long)slot*8, -1L );
+		occupied = new long[(slotCount+63)>>>6];
+		overflowHead = NONE;
+		expiredHead = NONE;
+		links = new OffHeapBuffer( directory, (long)Math.max(edges, 16)*EDGE );
+		size = 0;
+	}
+
+	/**
+	 * @return The number of edges in the wheel, including the expired ones
+	 * not polled yet
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @param edge The edge handle
+	 * @return The time stamp of the edge
+	 */
+	public long time( int edge ){
+		return links.getLong( (long)edge*EDGE );
+	}
+
+	/**
+	 * This method adds an edge with its time stamp, which must be more recent
+	 * than now-period. O(1)
+	 * @param edge The edge handle, not in the wheel yet
+	 * @param t The time stamp in seconds
+	 */
+	public void add( int edge, long t ){
+		long end = ((long)edge+1)*EDGE;
+		if( end>links.capacity() ) links.ensureCapacity( Math.max(end, links.capacity()*2) );
+		links.putLong( (long)edge*EDGE, t );
+		link( edge );
+		size++;
+	}
+
+	/**
+	 * This method moves an edge in the wheel to a new time stamp. O(1)
+	 * @param edge The edge handle, already in the wheel
+	 * @param t The new time stamp in seconds
+	 */
+	public void move( int edge, long t ){
+		unlink( edge );
+		links.putLong( (long)edge*EDGE, t );
+		link( edge );
+	}
+
+	/**
+	 * This method advances the wheel to a new time stamp and collects the edges
+	 * which are period seconds or more older than it, to be taken one by one with
+	 * <code>pollExpired()</code>, as <code>TimeWheel.advance()</code> does
+	 * @param t The new time stamp, nothing happens if it is not more recent than now
+	 */
+	public void advance( long t ){
+		if( t<=now ) return;
+		long cutoff = t-period;
+		long first = now-period+1; // The oldest time stamp which can be in a slot
+		long count = Math.min( t-now, (long)slotCount );
+		int start = (int)(first & mask);
+		int end = (int)Math.min( (long)start+count, (long)slotCount );
+		expireSlots( start, end );
+		if( start+count>slotCount ) expireSlots( 0, (int)(start+count-slotCount) );
+		now = t;
+
+		// The overflow edges closer than the wheel's horizon go to their slots now
+		int edge = overflowHead;
+		overflowHead = NONE;
+		while( edge!=NONE ){
+			int following = next( edge );
+			if( time(edge)<=cutoff ){
+				setNext( edge, expiredHead );
+				expiredHead = edge;
+			} else link( edge );
+			edge = following;
+		}
+	}
+
+	/**
+	 * This method takes one of the edges expired by the last <code>advance()</code>
+	 * @return The expired edge handle, or -1 if there is no more
+	 */
+	public int pollExpired(){
+		int edge = expiredHead;
+		if( edge!=NONE ){
+			expiredHead = next( edge );
+			setNext( edge, NONE );
+			setPrev( edge, NONE );
+			size--;
+		}
+		return edge;
+	}
+
+	/**
+	 * This method releases the buffers
+	 */
+	public void close() throws IOException {
+		slots.close();
+		links.close();
+	}
+
+	private int next( int edge ){
+		return links.getInt( (long)edge*EDGE+8 );
+	}
+
+	private void setNext( int edge, int next ){
+		links.putInt( (long)edge*EDGE+8, next );
+	}
+
+	private int prev( int edge ){
+		return links.getInt( (long)edge*EDGE+12 );
+	}
+
+	private void setPrev( int edge, int prev ){
+		links.putInt( (long)edge*EDGE+12, prev );
+	}
+
+	private int head( int slot ){
+		return slots.getInt( (long)slot*8 );
+	}
+
+	private void setHead( int slot, int edge ){
+		slots.putInt( (long)slot*8, edge );
+	}
+
+	private int tail( int slot ){
+		return slots.getInt( (long)slot*8+4 );
+	}
+
+	private void setTail( int slot, int edge ){
+		slots.putInt( (long)slot*8+4, edge );
+	}
+
+	/**
+	 * This method moves all the edges of the occupied slots between start
+	 * (inclusive) and end (exclusive) to the expired list
+	 */
+	private void expireSlots( int start, int end ){
+		int slot = nextOccupied( start, end );
+		while( slot<end ){
+			setNext( tail(slot), expiredHead );
+			expiredHead = head( slot );
+			slots.putLong( (long)slot*8, -1L );
+			occupied[slot>>>6] &= ~(1L<<slot);
+			slot = nextOccupied( slot+1, end );
+		}
+	}
+
+	/**
+	 * @return The first occupied slot between from (inclusive) and end
+	 * (exclusive), or end if there is none
+	 */
+	private int nextOccupied( int from, int end ){
+		if( from>=end ) return end;
+		int word = from>>>6;
+		long bits = occupied[word] & (-1L<<from);
+		while( bits==0 ){
+			word++;
+			if( (word<<6)>=end ) return end;
+			bits = occupied[word];
+		}
+		return Math.min( (word<<6)+Long.numberOfTrailingZeros(bits), end );
+	}
+
+	/**
+	 * This method puts an edge at the front of its slot, or of the overflow list
+	 * if its time stamp is beyond the wheel's horizon
+	 */
+	private void link( int edge ){
+		long t = time( edge );
+		setPrev( edge, NONE );
+		if( t-(now-period)>slotCount ){
+			setNext( edge, overflowHead );
+			if( overflowHead!=NONE ) setPrev( overflowHead, edge );
+			overflowHead = edge;
+			return;
+		}
+		int slot = (int)(t & mask);
+		int head = head( slot );
+		setNext( edge, head );
+		if( head!=NONE ) setPrev( head, edge );
+		else {
+			setTail( slot, edge );
+			occupied[slot>>>6] |= 1L<<slot;
+		}
+		setHead( slot, edge );
+	}
+
+	/**
+	 * This method takes an edge out of its slot or the overflow list
+	 */
+	private void unlink( int edge ){
+		int p = prev( edge );
+		int n = next( edge );
+		long t = time( edge );
+		boolean overflow = t-(now-period)>slotCount;
+		int slot = (int)(t & mask);
+		if( p!=NONE ) setNext( p, n );
+		else if( overflow ) overflowHead = n;
+		else setHead( slot, n );
+		if( n!=NONE ) setPrev( n, p );
+		else if( !overflow ){
+			setTail( slot, p );
+			if( p==NONE ) occupied[slot>>>6] &= ~(1L<<slot);
+		}
+		setPrev( edge, NONE );
+		setNext( edge, NONE );
+	}
+}
@@ -0,0 +1,97 @@
+package src;
+import java.util.*;
+
+/**
+ * <h1>Options</h1>
+ * Parses the command line options of the form <code>--name</code> or
+ * <code>--name=value</code>. The other arguments are kept in order as the
+ * positional arguments.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param values The value of each option, an empty string for a flag
+ * @param positional The arguments which are not options
+ */
+
+public class Options {
+	private final Map<String, String> values;
+	private final List<String> positional;
+
+	/**
+	 * @param args The command line arguments
+	 */
+	public Options( String[] args ){
+		values = new LinkedHashMap<String, String>();
+		positional = new ArrayList<String>();
+		for( String arg: args ){
+			if( !arg.startsWith("--") ){
+				positional.add( arg );
+				continue;
+			}
+			int eq = arg.indexOf( '=' );
+			if( eq<0 ) values.put( arg.substring(2), "" );
+			else values.put( arg.substring(2, eq), arg.substring(eq+1) );
+		}
+	}
+
+	/**
+	 * This method checks that all given options are known
+	 * @param known The names of the known options
+	 * @throws IllegalArgumentException for the first unknown option
+	 */
+	public void check( String... known ){
+		List<String> names = Arrays.asList( known );
+		for( String name: values.keySet() )
+			if( !names.contains(name) ) throw new IllegalArgumentException("Unknown option --"+name);
+	}
+
+	/**
+	 * @return If the option is given
+	 */
+	public boolean has( String name ){
+		return values.containsKey( name );
+	}
+
+	/**
+	 * @return The value of the option, or the default value if it is not given
+	 */
+	public String get( String name, String defaultValue ){
+		String value = values.get( name );
+		return value==null ? defaultValue : value;
+	}
+
+	/**
+	 * @return The integer value of the option, or the default value if it is not given
+	 * @throws IllegalArgumentException if the value is not an integer
+	 */
+	public int getInt( String name, int defaultValue ){
+		String value = values.get( name );
+		if( value==null ) return defaultValue;
+		try {
+			return Integer.parseInt( value );
+		} catch( NumberFormatException ex ){
+			throw new IllegalArgumentException("The option --"+name+" needs an integer value: "+value);
+		}
+	}
+
+	/**
+	 * @return The decimal value of the option, or the default value if it is not given
+	 * @throws IllegalArgumentException if the value is not a number
+	 */
+	public double getDouble( String name, double defaultValue ){
+		String value = values.get( name );
+		if( value==null ) return defaultValue;
+		try {
+			return Double.parseDouble( value );
+		} catch( NumberFormatException ex ){
+			throw new IllegalArgumentException("The option --"+name+" needs a decimal value: "+value);
+		}
+	}
+
+	/**
+	 * @return The arguments which are not options
+	 */
+	public List<String> positional(){
+		return positional;
+	}
+}
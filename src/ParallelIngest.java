@@ -0,0 +1,176 @@
+package src;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <h1>ParallelIngest</h1>
+ * Parses a large input file on all cores while the graph is still updated in
+ * order on one thread. The file is split at line boundaries into chunks, each
+ * chunk is memory-mapped and parsed by a task of a <code>ForkJoinPool</code>
+ * into compact primitive records, and the chunks are applied to the
+ * <code>PeriodGraph</code> in file order as they complete.
+ * <p>
+ * Every task interns the names into its own <code>VertexDictionary</code>, so
+ * the parsing threads share nothing. When a chunk is applied, its names are
+ * merged into the graph's dictionary in their order of first appearance, which
+ * gives every person the same ID as the sequential reading does.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param threads The number of parsing threads
+ * @param chunkSize The approximate size in bytes of a chunk
+ */
+
+public class ParallelIngest {
+	private final int threads;
+	private final int chunkSize;
+
+	/**
+	 * @param threads The number of parsing threads
+	 * @param chunkSize The approximate size in bytes of a chunk, longer than any line
+	 */
+	public ParallelIngest( int threads, int chunkSize ){
+		if( threads<=0 || chunkSize<=0 )
+			throw new IllegalArgumentException("The number of threads and the chunk size must be positive");
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * This method parses the file in parallel and applies the records in order,
+	 * with at most twice as many chunks in memory as there are threads
+	 * @param file The transaction file
+	 * @param graph The <code>PeriodGraph</code> to update
+	 * @param writer The output of the medians
+	 * @throws IOException if the file cannot be read
+	 */
+	public void run( Path file, PeriodGraph graph, MedianWriter writer ) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool( threads );
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			ArrayDeque<Future<ParsedChunk>> pending = new ArrayDeque<Future<ParsedChunk>>();
+			VertexDictionary dictionary = graph.getDictionary();
+			long start = 0;
+			long lineNumber = 0;
+			while( start<size || !pending.isEmpty() ){
+				// Keep the pool busy while the oldest chunk is applied
+				while( start<size && pending.size()<2*threads ){
+					long end = chunkEnd( channel, start, size );
+					pending.add( pool.submit(new ParseTask(channel, start, end, graph.getMetrics())) );
+					start = end;
+				}
+				ParsedChunk chunk = get( pending.poll() );
+				int[] ids = new int[chunk.dictionary.size()];
+				for( int i=0; i<ids.length; i++ ) ids[i] = dictionary.intern( chunk.dictionary, i );
+				for( int i=0; i<chunk.size; i++ ){
+					lineNumber++;
+					if( chunk.status[i]==TransactionParser.VALID
+							&& graph.addTransaction( ids[chunk.actor[i]], ids[chunk.target[i]], chunk.time[i] ) ){
+						writer.printlnMedian( graph.getMedian() );
+					} else
+						System.out.println("Line "+lineNumber+" is not a valid transaction, no new output generated");
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return The file position after the first newline at least chunkSize bytes
+	 * after start, or the file size
+	 */
+	private long chunkEnd( FileChannel channel, long start, long size ) throws IOException {
+		long pos = start+chunkSize;
+		if( pos>=size ) return size;
+		ByteBuffer probe = ByteBuffer.allocate( 4096 );
+		while( pos<size ){
+			probe.clear();
+			int n = channel.read( probe, pos );
+			if( n<0 ) break;
+			for( int i=0; i<n; i++ )
+				if( probe.get(i)=='\n' ) return pos+i+1;
+			pos += n;
+		}
+		return size;
+	}
+
+	private static ParsedChunk get( Future<ParsedChunk> future ) throws IOException {
+		try {
+			return future.get();
+		} catch( InterruptedException ex ){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a parsed chunk");
+		} catch( ExecutionException ex ){
+			if( ex.getCause() instanceof IOException ) throw (IOException)ex.getCause();
+			throw new IOException( "Cannot parse a chunk", ex.getCause() );
+		}
+	}
+
+	/**
+	 * The records of a parsed chunk, with the IDs of its own dictionary
+	 */
+	private static class ParsedChunk {
+		final VertexDictionary dictionary = new VertexDictionary();
+		byte[] status = new byte[1024];
+		int[] actor = new int[1024];
+		int[] target = new int[1024];
+		long[] time = new long[1024];
+		int size = 0;
+
+		void add( int status, int actor, int target, long time ){
+			if( size==this.actor.length ){
+				int n = size*2;
+				this.status = Arrays.copyOf( this.status, n );
+				this.actor = Arrays.copyOf( this.actor, n );
+				this.target = Arrays.copyOf( this.target, n );
+				this.time = Arrays.copyOf( this.time, n );
+			}
+			this.status[size] = (byte)status;
+			this.actor[size] = actor;
+			this.target[size] = target;
+			this.time[size] = time;
+			size++;
+		}
+	}
+
+	/**
+	 * The task mapping and parsing one chunk of lines
+	 */
+	private static class ParseTask implements Callable<ParsedChunk> {
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final GraphMetrics metrics;
+
+		ParseTask( FileChannel channel, long start, long end, GraphMetrics metrics ){
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.metrics = metrics;
+		}
+
+		public ParsedChunk call() throws IOException {
+			ParsedChunk chunk = new ParsedChunk();
+			TransactionParser parser = new TransactionParser( chunk.dictionary );
+			parser.setMetrics( metrics );
+			MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, start, end-start );
+			int limit = buf.limit();
+			int pos = 0;
+			while( pos<limit ){
+				int lineEnd = pos;
+				while( lineEnd<limit && buf.get(lineEnd)!='\n' ) lineEnd++;
+				int status = parser.parse( buf, pos, lineEnd );
+				chunk.add( status, parser.actor(), parser.target(), parser.time() );
+				pos = lineEnd+1;
+			}
+			return chunk;
+		}
+	}
+}
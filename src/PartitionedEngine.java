@@ -0,0 +1,360 @@
+package src;
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * <h1>PartitionedEngine</h1>
+ * Keeps one rolling median degree graph per tenant of a single stream, the
+ * tenant of a transaction being the value of a configurable key field of its
+ * line (a region or a merchant for example). Every tenant has its own
+ * <code>PeriodGraph</code> with the same rules as the single graph, and every
+ * output line is the tenant and its new median, separated by a tab.
+ * <pre>
+ * reader --batches per worker--&gt; worker 0 .. worker N-1 --&gt; writer
+ * </pre>
+ * The reader parses the lines in place, interning the tenant keys and only
+ * hashing the person names with <code>SketchGraph.hash()</code>, and routes
+ * every record to the worker owning its tenant, by the tenant ID modulo the
+ * number of workers, through a <code>SpscQueue</code> per worker. A worker is
+ * the only thread touching its tenants, so there is no lock on any graph; the
+ * persons of a tenant get dense IDs of their own from their hashes. The lines
+ * of a tenant are written in the input order, the tenants of different
+ * workers are interleaved by batch.
+ * <p>
+ * A tenant whose latest transaction is a whole window behind the latest time
+ * stamp of the stream has no edge left, so it is evicted lazily: the workers
+ * keep their tenants in the order they were last used, and after each batch
+ * drop them from the least recent one while they are expired. An evicted
+ * tenant keeps only its name; if it comes back it starts an empty graph.
+ * <p>
+ * The eviction compares the latest time stamp of the tenant with the one of
+ * the stream, not with the time stamp T of the tenant's next transaction, so
+ * the medians after it are the ones of a graph kept forever only if T is at
+ * least a window after the tenant's latest time stamp, which is always true
+ * on a time-ordered stream. On an out-of-order stream they differ for any
+ * earlier T: a T less than a window after it would still find the tenant's
+ * edges newer than T minus the window, and a T before it would be added to
+ * all of the tenant's edges, or ignored as too old, instead of starting an
+ * empty graph. The tenants are never evicted in time for the out-of-order
+ * transactions, as nothing bounds their lateness in this mode.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param period The length of the time window in seconds of every tenant
+ * @param workers The number of worker threads
+ * @param batchSize The maximum number of records in a batch
+ * @param tenants The number of tenants created, including the ones created again
+ * @param evicted The number of tenants evicted
+ */
+
+public class PartitionedEngine {
+	private static final int QUEUE_CAPACITY = 8;
+
+	private final int period;
+	private final int workers;
+	private final int batchSize;
+	private final List<Thread> threads;
+	private volatile Throwable failure;
+	private long tenants;
+	private long evicted;
+
+	/**
+	 * @param period The length of the time window in seconds of every tenant
+	 * @param workers The number of worker threads
+	 * @param batchSize The maximum number of records in a batch
+	 */
+	public PartitionedEngine( int period, int workers, int batchSize ){
+		if( period<=0 || workers<=0 || batchSize<=0 )
+			throw new IllegalArgumentException("The period, the number of workers and the batch size must be positive");
+		this.period = period;
+		this.workers = workers;
+		this.batchSize = batchSize;
+		threads = new ArrayList<Thread>();
+	}
+
+	/**
+	 * This method reads the file on the calling thread, applies the transactions
+	 * on the workers and waits for them to finish
+	 * @param file The transaction file
+	 * @param keyField The name of the field of the tenant key
+	 * @param writer The output of the tenants and their medians
+	 * @throws IOException if the file cannot be read
+	 */
+	public void run( Path file, String keyField, final PrintWriter writer ) throws IOException {
+		tenants = 0;
+		evicted = 0;
+		VertexDictionary keys = new VertexDictionary();
+		final List<SpscQueue<Batch>> queues = new ArrayList<SpscQueue<Batch>>();
+		final List<SpscQueue<Batch>> freeQueues = new ArrayList<SpscQueue<Batch>>();
+		Batch[] current = new Batch[workers];
+		for( int w=0; w<workers; w++ ){
+			queues.add( new SpscQueue<Batch>(QUEUE_CAPACITY) );
+			SpscQueue<Batch> free = new SpscQueue<Batch>( QUEUE_CAPACITY+2 );
+			for( int i=0; i<QUEUE_CAPACITY+1; i++ ) free.offer( new Batch(batchSize) );
+			freeQueues.add( free );
+			current[w] = new Batch( batchSize );
+		}
+		final Worker[] workerStates = new Worker[workers];
+		for( int w=0; w<workers; w++ ){
+			final int index = w;
+			workerStates[w] = new Worker();
+			start( "worker-"+w, new Runnable(){
+				public void run(){
+					try {
+						workerStates[index].run( queues.get(index), freeQueues.get(index), writer );
+					} catch( Throwable ex ){
+						fail( ex );
+					}
+				}
+			} );
+		}
+
+		try (TransactionReader reader = new TransactionReader(file, null)) {
+			reader.setKeyField( keyField, keys );
+			long now = 0;
+			int announced = 0;
+			while( reader.next() ){
+				if( reader.status()!=TransactionParser.VALID ){
+					System.out.println("Line "+reader.lineNumber()+" is not a valid transaction, no new output generated");
+					continue;
+				}
+				int tenant = reader.key();
+				int w = tenant%workers;
+				Batch batch = current[w];
+				// The tenant IDs are given in order of first appearance, so a new one is the next to announce
+				if( tenant==announced ){
+					batch.names.add( keys.name(tenant) );
+					announced++;
+				}
+				if( reader.time()>now && reader.time()!=PeriodGraph.INVALID_TIME ) now = reader.time();
+				int i = batch.size++;
+				batch.tenant[i] = tenant;
+				batch.actor[i] = reader.actorHash();
+				batch.target[i] = reader.targetHash();
+				batch.time[i] = reader.time();
+				batch.line[i] = reader.lineNumber();
+				if( batch.size==batchSize ){
+					batch.now = now;
+					queues.get( w ).put( batch );
+					current[w] = freeQueues.get( w ).take();
+				}
+			}
+			for( int w=0; w<workers; w++ ){
+				current[w].now = now;
+				current[w].last = true;
+				queues.get( w ).put( current[w] );
+			}
+		} catch( InterruptedException ex ){
+			fail( ex );
+			Thread.currentThread().interrupt();
+		} catch( IOException | RuntimeException ex ){
+			fail( ex );
+			throw ex;
+		} finally {
+			join();
+		}
+		writer.flush();
+		for( Worker worker : workerStates ){
+			tenants += worker.created;
+			evicted += worker.evicted;
+		}
+		if( failure instanceof IOException ) throw (IOException)failure;
+		if( failure instanceof RuntimeException ) throw (RuntimeException)failure;
+		if( failure instanceof Error ) throw (Error)failure;
+		if( failure!=null ) throw new IOException( "The partitioned engine has been interrupted", failure );
+	}
+
+	/**
+	 * @return The number of tenant graphs created by the last run, including the ones created again
+	 */
+	public long getTenants(){
+		return tenants;
+	}
+
+	/**
+	 * @return The number of tenant graphs evicted by the last run
+	 */
+	public long getEvicted(){
+		return evicted;
+	}
+
+	private synchronized void start( String name, Runnable task ){
+		Thread thread = new Thread( task, "partition-"+name );
+		threads.add( thread );
+		thread.start();
+		if( failure!=null ) thread.interrupt();
+	}
+
+	private void join(){
+		for( Thread thread: threads ){
+			try {
+				thread.join();
+			} catch( InterruptedException ex ){
+				fail( ex );
+				Thread.currentThread().interrupt();
+			}
+		}
+		threads.clear();
+	}
+
+	/**
+	 * This method keeps the first failure and interrupts all workers, so none of
+	 * them keeps waiting for the reader
+	 */
+	private synchronized void fail( Throwable ex ){
+		if( failure!=null ) return;
+		failure = ex;
+		for( Thread thread: threads ) thread.interrupt();
+	}
+
+	/**
+	 * The records routed to one worker, with the names of the tenants it sees
+	 * for the first time
+	 */
+	private static final class Batch {
+		final int[] tenant;
+		final long[] actor;
+		final long[] target;
+		final long[] time;
+		final long[] line;
+		int size;
+		final List<String> names = new ArrayList<String>();
+		long now;
+		boolean last;
+
+		Batch( int capacity ){
+			tenant = new int[capacity];
+			actor = new long[capacity];
+			target = new long[capacity];
+			time = new long[capacity];
+			line = new long[capacity];
+		}
+
+		void clear(){
+			size = 0;
+			names.clear();
+			last = false;
+		}
+	}
+
+	/**
+	 * The graph of one tenant, linked in the order of the worker's use
+	 */
+	private static final class Tenant {
+		final int index;
+		final PeriodGraph graph;
+		final LongIntHashMap ids = new LongIntHashMap();
+		long latest = Long.MIN_VALUE;
+		Tenant prev;
+		Tenant next;
+
+		Tenant( int index, int period ){
+			this.index = index;
+			graph = new PeriodGraph( period );
+		}
+
+		/**
+		 * @return The dense ID of a person of this tenant from the hash of its name
+		 */
+		int id( long hash ){
+			int id = ids.get( hash );
+			if( id==LongIntHashMap.MISSING ){
+				id = ids.size();
+				ids.put( hash, id );
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * The tenants of one worker, indexed by their tenant ID divided by the
+	 * number of workers
+	 */
+	private final class Worker {
+		Tenant[] tenants = new Tenant[16];
+		String[] names = new String[16];
+		int nameCount = 0;
+		Tenant head;
+		Tenant tail;
+		long created;
+		long evicted;
+
+		void run( SpscQueue<Batch> queue, SpscQueue<Batch> free, PrintWriter writer ) throws InterruptedException {
+			StringBuilder out = new StringBuilder();
+			while( true ){
+				Batch batch = queue.take();
+				for( String name : batch.names ){
+					if( nameCount==names.length ){
+						names = Arrays.copyOf( names, nameCount*2 );
+						tenants = Arrays.copyOf( tenants, nameCount*2 );
+					}
+					names[nameCount++] = name;
+				}
+				for( int i=0; i<batch.size; i++ ){
+					int index = batch.tenant[i]/workers;
+					Tenant tenant = use( index );
+					PeriodGraph graph = tenant.graph;
+					if( graph.addTransaction( tenant.id(batch.actor[i]), tenant.id(batch.target[i]), batch.time[i] ) ){
+						if( batch.time[i]>tenant.latest ) tenant.latest = batch.time[i];
+						out.append( names[index] ).append( '\t' ).append( MedianWriter.format(graph.getMedian()) ).append( '\n' );
+					} else
+						System.out.println("Line "+batch.line[i]+" is not a valid transaction, no new output generated");
+				}
+				evict( batch.now );
+				if( out.length()>0 ){
+					synchronized( writer ){
+						writer.append( out );
+					}
+					out.setLength( 0 );
+				}
+				if( batch.last ) break;
+				batch.clear();
+				free.put( batch );
+			}
+		}
+
+		/**
+		 * @return The tenant of the index, created if needed and moved to the
+		 * most recent end of the list
+		 */
+		Tenant use( int index ){
+			Tenant tenant = tenants[index];
+			if( tenant==null ){
+				tenant = new Tenant( index, period );
+				tenants[index] = tenant;
+				created++;
+			} else if( tenant==tail ) return tenant;
+			else unlink( tenant );
+			tenant.prev = tail;
+			tenant.next = null;
+			if( tail!=null ) tail.next = tenant;
+			else head = tenant;
+			tail = tenant;
+			return tenant;
+		}
+
+		/**
+		 * This method drops the least recent tenants while their latest
+		 * transaction is a whole window before now. A later transaction of a
+		 * dropped tenant less than a window after its latest one gets another
+		 * median than with the kept graph, see the class comment.
+		 */
+		void evict( long now ){
+			while( head!=null && head.latest<=now-period ){
+				Tenant tenant = head;
+				unlink( tenant );
+				tenants[tenant.index] = null;
+				evicted++;
+			}
+		}
+
+		void unlink( Tenant tenant ){
+			if( tenant.prev!=null ) tenant.prev.next = tenant.next;
+			else head = tenant.next;
+			if( tenant.next!=null ) tenant.next.prev = tenant.prev;
+			else tail = tenant.prev;
+			tenant.prev = tenant.next = null;
+		}
+	}
+}
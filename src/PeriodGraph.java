@@ -1,47 +1,98 @@
 package src;
 import java.util.*;
 import java.io.*;
-import java.text.*;
 
 /**
  * <h1>PeriodGraph</h1>
- * Builds and maintains a graph of connections within a given length of time, 
- * supports to get the median of the vertice's degrees using the class 
- * <code>MedianCalculator</code>
+ * Builds and maintains a graph of connections within a given length of time,
+ * supports to get the median of the vertice's degrees using the class
+ * <code>DegreeHistogram</code>
+ * <p>
+ * The persons are interned to dense integer IDs by a <code>VertexDictionary</code>
+ * and an edge is packed into a long as (smaller ID)&lt;&lt;32|(larger ID), so the
+ * graph is kept in primitive arrays and maps only.
+ * <p>
+ * A <code>TransactionBatch</code> can be applied at once by <code>addTransactions()</code>.
+ * With one median per batch, the degree changes of the whole batch, added and
+ * expired edges alike, are merged per vertex and reach the
+ * <code>DegreeHistogram</code> once at the end of the batch.
  *
  * @author Fuquan Wang
  * @version 1.0
  * @param lastTime The time stamp of the latest transaction
- * @param timeMap The map of Time in seconds to a graph edge
- * @param checkMap The map of graph edge to time in seconds, used to make sure 
+ * @param timeMap The <code>TimeWheel</code> of the edge handles by time in seconds
+ * @param checkMap The map of packed graph edge to its handle, used to make sure
  * no double-connection exist and time stamp properly updated for the timeMap
- * @param transMap The actual map of the persons with recorded transactions as
- * edges
- * @param mc <code>MedianCalculator</code> to calculate the median in data stream
- * @param df <code>DateFormat</code> in the format of the code challenge request
+ * @param edges The packed graph edge of each handle, <code>FREE</code> for the
+ * freed handles, which are reused
+ * @param dictionary The <code>VertexDictionary</code> of the person names
+ * @param transMap The degree of each vertex, i.e. the number of persons with
+ * recorded transactions with it. As the edges are unique in the checkMap, the
+ * degree is all the median needs from the adjacency
+ * @param vertexCount The number of vertice with at least one edge
+ * @param deferred If the <code>DegreeHistogram</code> changes are held back
+ * until the end of a batch
+ * @param mc <code>DegreeHistogram</code> to calculate the median of the degrees
+ * @param decoder <code>TimestampDecoder</code> of the format of the code challenge request
  * @param period The length of the time to keep transaction records
+ * @param topDegrees The optional <code>TopDegrees</code> of the vertice by
+ * degree, fed with every degree change
+ * @param metrics The optional <code>GraphMetrics</code> recording the counters
+ * and the latencies of the edge update, expiry and median stages
  */
 
 public class PeriodGraph {
+	/** The time in seconds of a time string which cannot be parsed */
+	public static final long INVALID_TIME = TimestampDecoder.INVALID;
+	/** The packed edge of a freed edge handle */
+	static final long FREE = -1L;
+
 	private long lastTime;
-	private HashMap<Long, HashSet<String>> timeMap;
-	private HashMap<String, Long> checkMap;
-	private HashMap<String, HashSet<String>> transMap;
-	private MedianCalculator mc;
-	private static final DateFormat df = new SimpleDateFormat("yyyy-mm-dd'T'HH:mm:ss'Z'");
+	private TimeWheel timeMap;
+	private LongIntHashMap checkMap;
+	private long[] edges;
+	private int[] freeEdges;
+	private int freeCount;
+	private int edgeCount;
+	private VertexDictionary dictionary;
+	private int[] transMap;
+	private int vertexCount;
+	private DegreeHistogram mc;
+	private final TimestampDecoder decoder;
 	private final int period;
+	// Reused by every removal: the vertice touched and their degree before the removal
+	private int[] touched;
+	private int[] initialCount;
+	private int touchedCount;
+	private boolean deferred;
+	private TopDegrees topDegrees;
+	private int[] topVertices;
+	private int[] topValues;
+	private GraphMetrics metrics;
+	private int ticks;
 
 	/**
-	 * This construction initializes all maps and the <code>MedianCalculator</code>.
+	 * This construction initializes all maps and the <code>DegreeHistogram</code>.
 	 * @param period The length of the time in seconds to keep transaction records
 	 */
 	public PeriodGraph( int period ){
 		lastTime=0;
-		timeMap = new HashMap<Long, HashSet<String>>();
-		checkMap = new HashMap<String, Long>();
-		transMap = new HashMap<String, HashSet<String>>();
-		mc = new MedianCalculator();
+		timeMap = new TimeWheel( period );
+		checkMap = new LongIntHashMap();
+		edges = new long[16];
+		freeEdges = new int[16];
+		freeCount = 0;
+		edgeCount = 0;
+		dictionary = new VertexDictionary();
+		transMap = new int[16];
+		vertexCount = 0;
+		mc = new DegreeHistogram();
+		decoder = new TimestampDecoder();
 		this.period = period;
+		touched = new int[16];
+		initialCount = new int[16];
+		Arrays.fill( initialCount, -1 );
+		touchedCount = 0;
 	}
 
 	/**
@@ -59,197 +110,488 @@ public class PeriodGraph {
 		// Empty fields will or same person transfers will not be counted
 		if( actor==null || actor.length()==0 || target==null || target.length()==0 || time==null || time.length()==0 ) {
 			System.out.println("At least one field is empty, no new output generated");
+			if( metrics!=null ) metrics.missingField.increment();
 			return false;
 		}
 		if( actor.equals(target) ) {
 			System.out.println("Are you sure to send the money from "+actor+" to "+target+" (the same person)?");
+			if( metrics!=null ) metrics.samePerson.increment();
 			return false;
 		}
 
-		long timeInSeconds = toSeconds(time);
-		if( timeInSeconds == (long)(-period) ){
+		long timeInSeconds = decoder.decode(time);
+		if( timeInSeconds == INVALID_TIME ){
 			System.out.println("The create_time field is not in the format of yyyy-mm-ddTHH:MM:SSZ, no new output generated");
+			if( metrics!=null ) metrics.invalidTime.increment();
 			return false;
 		}
-		if ( lastTime-timeInSeconds>=period ) return true; // Do nothing if the new item is more than period seconds ago
+		return accept( dictionary.intern(actor), dictionary.intern(target), timeInSeconds );
+	}
 
-		// The graph is undirected, so a connection is presented as a concatenated string
-		// in alphabetical order, which is separated with a special character
-		StringBuilder sb = new StringBuilder();
-		if( actor.compareTo(target)<0 ) sb.append(actor).append('\0').append(target);
-		else sb.append(target).append('\0').append(actor);
-		String str = new String(sb.toString());
+	/**
+	 * This method is the same as <code>addTransaction(String, String, String)</code>
+	 * for a transaction already parsed, with the persons interned in the
+	 * dictionary of this graph. No message is printed for the invalid ones.
+	 * @param actor The actor ID from <code>getDictionary()</code>, negative if empty
+	 * @param target The target ID from <code>getDictionary()</code>, negative if empty
+	 * @param timeInSeconds The time in seconds, or <code>INVALID_TIME</code>
+	 * @return The add operation is successful or not
+	 */
+	public boolean addTransaction( int actor, int target, long timeInSeconds ) {
+		if( actor<0 || target<0 || actor==target || timeInSeconds==INVALID_TIME ){
+			if( metrics!=null ) reject( actor, target, timeInSeconds );
+			return false;
+		}
+		return accept( actor, target, timeInSeconds );
+	}
 
-		// If the edge exists, only update the time stamp and do not further update  the graph,
-		// otherwise continue to update all stuffs
-		if( checkMap.containsKey( str ) ){
-			long oldTime = checkMap.get(str);
-			if( oldTime<timeInSeconds ){
-				if( timeMap.containsKey(oldTime) ){
-					timeMap.get( oldTime ).remove(str);
-					if( timeMap.get( oldTime ).isEmpty() ) timeMap.remove( oldTime );
+	/**
+	 * This method applies the records of a batch in order, as
+	 * <code>addTransaction(int, int, long)</code> does one by one, and fills
+	 * <code>accepted</code> and <code>median</code> of the batch.
+	 * <p>
+	 * With a median per record the medians are exactly the ones of adding the
+	 * records one by one. Otherwise the edges are still added, refreshed and
+	 * expired record by record, but every vertex touched by the batch changes
+	 * the <code>DegreeHistogram</code> only once, from its degree before the
+	 * batch to its degree after it, and every accepted record gets the median
+	 * after the whole batch.
+	 * @param batch The records, with the IDs of <code>getDictionary()</code>
+	 * @param medianPerRecord If the median is taken after every accepted record,
+	 * or once after the batch
+	 * @return The number of accepted records
+	 */
+	public int addTransactions( TransactionBatch batch, boolean medianPerRecord ){
+		int accepted = 0;
+		if( medianPerRecord ){
+			for( int i=0; i<batch.size; i++ ){
+				batch.accepted[i] = batch.status[i]==TransactionParser.VALID
+						&& addTransaction( batch.actor[i], batch.target[i], batch.time[i] );
+				if( batch.accepted[i] ){
+					batch.median[i] = getMedian();
+					accepted++;
 				}
-				checkMap.put( str, timeInSeconds );
-				if ( !timeMap.containsKey( timeInSeconds ) )
-					timeMap.put( timeInSeconds, new HashSet<String>() );
-				timeMap.get(timeInSeconds).add(str);
 			}
-			return true;
+			return accepted;
 		}
-		checkMap.put( str, timeInSeconds );
 
-		// Add the new edge into the timeMap with the current tiem stamp
-		if ( !timeMap.containsKey( timeInSeconds ) )
-			timeMap.put( timeInSeconds, new HashSet<String>() );
-		timeMap.get(timeInSeconds).add(str);
+		deferred = true;
+		try {
+			for( int i=0; i<batch.size; i++ ){
+				batch.accepted[i] = batch.status[i]==TransactionParser.VALID
+						&& addTransaction( batch.actor[i], batch.target[i], batch.time[i] );
+				if( batch.accepted[i] ) accepted++;
+			}
+		} finally {
+			deferred = false;
+			removeCounts();
+		}
+		if( accepted>0 ){
+			double median = getMedian();
+			for( int i=0; i<batch.size; i++ )
+				if( batch.accepted[i] ) batch.median[i] = median;
+		}
+		return accepted;
+	}
 
-		// Check and remove the old entries only if the new time stamp is more recent
-		if ( timeInSeconds>lastTime ){
-			lastTime = timeInSeconds; // Update to the latest time stamp
-			removeOldEntries();
+	/**
+	 * This method starts keeping the vertice by degree in a <code>TopDegrees</code>,
+	 * so the highest degrees can be listed by <code>topDegrees()</code>
+	 */
+	public void trackTopDegrees(){
+		if( topDegrees!=null ) return;
+		topDegrees = new TopDegrees();
+		for( int vertex=0; vertex<transMap.length; vertex++ )
+			for( int degree=0; degree<transMap[vertex]; degree++ ) topDegrees.increment( vertex, degree );
+	}
+
+	/**
+	 * This method lists the vertice with the highest degrees in the time window,
+	 * in O(k)
+	 * @param k The maximum number of vertice to list
+	 * @param vertices The IDs of the listed vertice, at least k long
+	 * @param degrees The degrees of the listed vertice, at least k long
+	 * @return The number of listed vertice
+	 * @throws IllegalStateException if <code>trackTopDegrees()</code> was not called
+	 */
+	public int topDegrees( int k, int[] vertices, int[] degrees ){
+		if( topDegrees==null ) throw new IllegalStateException("The top degrees are not tracked");
+		return topDegrees.top( k, vertices, degrees );
+	}
+
+	/**
+	 * This method prints the vertice with the highest degrees after a median, as
+	 * a tab and <code>name:degree</code> for each of them
+	 * @param writer The output of the medians
+	 * @param k The maximum number of vertice to print
+	 */
+	public void printTopDegrees( PrintWriter writer, int k ){
+		if( topVertices==null || topVertices.length<k ){
+			topVertices = new int[k];
+			topValues = new int[k];
+		}
+		int n = topDegrees( k, topVertices, topValues );
+		for( int i=0; i<n; i++ ){
+			writer.print( '\t' );
+			writer.print( dictionary.name(topVertices[i]) );
+			writer.print( ':' );
+			writer.print( topValues[i] );
+		}
+	}
+
+	/**
+	 * This method gives the IDs of the vertice without an edge back to the
+	 * <code>VertexDictionary</code>, to be handed out again to the next new
+	 * names, so a graph running on an endless stream keeps its dictionary and
+	 * its arrays by vertex within the vertice it holds at once. It must be called
+	 * between two transactions, and the released IDs must not be used afterwards.
+	 * @param held The IDs the caller still holds, which are kept, or null
+	 * @return The number of released IDs
+	 */
+	public int releaseIdleVertices( BitSet held ){
+		int released = 0;
+		int size = dictionary.size();
+		for( int vertex=0; vertex<size; vertex++ ){
+			if( dictionary.isFree(vertex) || degree(vertex)>0 || (held!=null && held.get(vertex)) ) continue;
+			dictionary.release( vertex );
+			released++;
 		}
+		return released;
+	}
 
-		// Store the current degree of the two vertice to be updated
-		int prevActor = transMap.containsKey(actor) ? transMap.get(actor).size() : 0;
-		int prevTarget = transMap.containsKey(target) ? transMap.get(target).size() : 0;
+	/**
+	 * This method makes the graph record its counters and latencies
+	 * @param metrics The <code>GraphMetrics</code>, or null to stop recording
+	 */
+	public void setMetrics( GraphMetrics metrics ){
+		this.metrics = metrics;
+		if( metrics!=null ) metrics.setGraph( this );
+	}
 
-		// Add the transaction
-		if( !transMap.containsKey( actor ) )
-			transMap.put( actor, new HashSet<String>() );
-		transMap.get(actor).add(target);
-		if( !transMap.containsKey( target ) )
-			transMap.put( target, new HashSet<String>() );
-		transMap.get(target).add(actor);
+	/**
+	 * @return The <code>GraphMetrics</code> of this graph, or null
+	 */
+	public GraphMetrics getMetrics(){
+		return metrics;
+	}
 
-		// Update the vertice median in the <code>MedianCalculator</code>
-		if( prevActor>0 ) mc.remove( prevActor );
-		if( prevTarget>0 ) mc.remove( prevTarget );
-		mc.add( transMap.get(actor).size() );
-		mc.add( transMap.get(target).size() );
+	/**
+	 * @return The <code>VertexDictionary</code> interning the person names of this graph
+	 */
+	public VertexDictionary getDictionary(){
+		return dictionary;
+	}
 
-		return true;
+	/**
+	 * @return The number of vertice with at least one edge in the time window
+	 */
+	public int getVertexCount(){
+		return vertexCount;
+	}
+
+	/**
+	 * @return The number of edges in the time window
+	 */
+	public int getEdgeCount(){
+		return checkMap.size();
 	}
 
 	/**
-	 * This method directly call <code>MedianCalculator.findMedian()</code> method
-	 * to get the median from the data stream.
+	 * @return The time stamp in seconds of the latest transaction, the end of the
+	 * time window, or 0 before the first one
+	 */
+	public long getLastTime(){
+		return lastTime;
+	}
+
+	/**
+	 * @return The length of the time window in seconds
+	 */
+	public int getPeriod(){
+		return period;
+	}
+
+	/**
+	 * This method directly call <code>DegreeHistogram.findMedian()</code> method
+	 * to get the median of the vertice's degrees.
 	 */
 	public double getMedian(){
-		return mc.findMedian();
+		if( metrics==null || !metrics.sampled(ticks++) ) return mc.findMedian();
+		long begin = System.nanoTime();
+		double median = mc.findMedian();
+		metrics.stage( GraphMetrics.MEDIAN ).record( System.nanoTime()-begin );
+		return median;
 	}
 
 	/**
-	 * This method parses the time String to a long in seconds.
-	 * @param time The input time string
-	 * @return Long in seconds
+	 * This method adds a valid transaction, unless it is more than period seconds ago
+	 * @return Always true, the transaction is accepted even if it changes nothing
 	 */
-	private long toSeconds(String time){
-		Date date = null;
-		try {
-			date = df.parse(time);
-		} catch (ParseException pe){
-			System.out.println(pe);
+	private boolean accept( int actor, int target, long timeInSeconds ){
+		if ( lastTime-timeInSeconds>=period ){ // Do nothing if the new item is more than period seconds ago
+			if( metrics!=null ) metrics.tooOld.increment();
+			return true;
+		}
+		if( metrics!=null ) metrics.accepted.increment();
+		if( metrics==null || !metrics.sampled(ticks++) ) addEdge( actor, target, timeInSeconds, false );
+		else {
+			long begin = System.nanoTime();
+			long expiry = addEdge( actor, target, timeInSeconds, true );
+			metrics.stage( GraphMetrics.EDGE_UPDATE ).record( System.nanoTime()-begin-expiry );
 		}
-		// In case of ParseException of the time string, set the time to -period (discard this transaction)
-		if( date!=null ) return date.getTime()/1000;
-		else return -period;
+		return true;
+	}
+
+	/**
+	 * This method counts the reason of a rejected transaction
+	 */
+	private void reject( int actor, int target, long timeInSeconds ){
+		if( actor<0 || target<0 ) metrics.missingField.increment();
+		else if( actor==target ) metrics.samePerson.increment();
+		else metrics.invalidTime.increment();
+	}
+
+	/**
+	 * @return The number of edge handles given so far, the live edges and the
+	 * freed ones, used by <code>GraphCheckpoint</code>
+	 */
+	int edgeHandles(){
+		return edgeCount;
+	}
+
+	/**
+	 * @param edge The edge handle
+	 * @return The packed graph edge of the handle, or <code>FREE</code>
+	 */
+	long edge( int edge ){
+		return edges[edge];
+	}
+
+	/**
+	 * @param edge The handle of a live edge
+	 * @return The time stamp in seconds of the edge
+	 */
+	long edgeTime( int edge ){
+		return timeMap.time( edge );
+	}
+
+	/**
+	 * @param vertex The vertex ID
+	 * @return The degree of the vertex in the time window
+	 */
+	int degree( int vertex ){
+		return vertex<transMap.length ? transMap[vertex] : 0;
+	}
+
+	/**
+	 * This method sets the time stamp of the latest transaction of an empty graph
+	 * restored by <code>GraphCheckpoint</code>, before its edges are restored
+	 * @param timeInSeconds The time stamp in seconds
+	 */
+	void restoreLastTime( long timeInSeconds ){
+		lastTime = timeInSeconds;
+		timeMap.advance( timeInSeconds );
+	}
+
+	/**
+	 * This method restores a live edge without changing the degrees
+	 * @param pair The packed graph edge
+	 * @param timeInSeconds The time stamp in seconds of the edge
+	 */
+	void restoreEdge( long pair, long timeInSeconds ){
+		int edge = newEdge( pair );
+		checkMap.put( pair, edge );
+		timeMap.add( edge, timeInSeconds );
+	}
+
+	/**
+	 * This method restores the degree of a vertex and counts it in the
+	 * <code>DegreeHistogram</code>
+	 * @param vertex The vertex ID
+	 * @param degree The degree, 0 if it has no edge
+	 */
+	void restoreDegree( int vertex, int degree ){
+		ensureVertex( vertex );
+		transMap[vertex] = degree;
+		if( topDegrees!=null )
+			for( int d=0; d<degree; d++ ) topDegrees.increment( vertex, d );
+		if( degree>0 ){
+			vertexCount++;
+			mc.add( degree );
+		}
+	}
+
+	/**
+	 * This method adds or refreshes the edge between two different vertice with a
+	 * time stamp no more than period seconds ago
+	 * @param actor The actor ID
+	 * @param target The target ID
+	 * @param timeInSeconds The time stamp in seconds
+	 * @param timed If the expiry is timed
+	 * @return The nanoseconds spent in the expiry, if it is timed
+	 */
+	private long addEdge( int actor, int target, long timeInSeconds, boolean timed ){
+		// The graph is undirected, so a connection is presented as the two IDs packed
+		// into a long in ascending order
+		long key = actor<target ? ((long)actor<<32)|target : ((long)target<<32)|actor;
+
+		// If the edge exists, only update the time stamp and do not further update  the graph,
+		// otherwise continue to update all stuffs
+		int handle = checkMap.get( key );
+		if( handle!=LongIntHashMap.MISSING ){
+			if( timeMap.time(handle)<timeInSeconds )
+				timeMap.move( handle, timeInSeconds );
+			if( metrics!=null ) metrics.refreshed.increment();
+			return 0;
+		}
+
+		// Check and remove the old entries only if the new time stamp is more recent,
+		// before the new edge takes its slot in the timeMap
+		long expiry = 0;
+		if ( timeInSeconds>lastTime ){
+			lastTime = timeInSeconds; // Update to the latest time stamp
+			if( timed ){
+				long begin = System.nanoTime();
+				removeOldEntries();
+				expiry = System.nanoTime()-begin;
+				metrics.stage( GraphMetrics.EXPIRY ).record( expiry );
+			} else
+				removeOldEntries();
+		}
+
+		// Add the new edge into the timeMap with the current tiem stamp
+		int edge = newEdge( key );
+		checkMap.put( key, edge );
+		timeMap.add( edge, timeInSeconds );
+
+		// Add the transaction and update the vertice median in the <code>DegreeHistogram</code>,
+		// or only keep the degrees before the batch when the changes are deferred
+		ensureVertex( Math.max(actor, target) );
+		if( topDegrees!=null ){
+			topDegrees.increment( actor, transMap[actor] );
+			topDegrees.increment( target, transMap[target] );
+		}
+		if( deferred ){
+			touch( actor );
+			touch( target );
+			if( transMap[actor]++==0 ) vertexCount++;
+			if( transMap[target]++==0 ) vertexCount++;
+			if( metrics!=null ) metrics.newEdges.increment();
+			return expiry;
+		}
+		int prevActor = transMap[actor]++;
+		int prevTarget = transMap[target]++;
+		if( prevActor>0 ) mc.remove( prevActor );
+		else vertexCount++;
+		if( prevTarget>0 ) mc.remove( prevTarget );
+		else vertexCount++;
+		mc.add( prevActor+1 );
+		mc.add( prevTarget+1 );
+		if( metrics!=null ) metrics.newEdges.increment();
+		return expiry;
 	}
 
 	/**
 	 * The main method to check and remove the entries more than period
-	 * seconds ago. It loops over the time stamps (number of period at most),
-	 * and removes the edges in <code>checkMap</code> and updates the vertic
-	 * information of the <code>transMap</code>
+	 * seconds ago. The <code>TimeWheel</code> only visits the time stamps
+	 * falling out of the window, and the expired edges are removed from
+	 * <code>checkMap</code> and the vertic degrees of the <code>transMap</code>
+	 * are updated
 	 */
 	private void removeOldEntries(){
-		// List of outdated time stamps to be removed
-		List<Long> toRemoveList = new ArrayList<Long>();
-		// Maps of vertex to degree, before and after the removal
-		HashMap<String,Integer> initialCount = new HashMap<>();
-		HashMap<String,Integer> finalCount = new HashMap<>();
-		for( long t: timeMap.keySet() ){
-			if( lastTime-t>=period ){
-				for( String pair: timeMap.get(t) ){
-					// Remove the outdated edge
-					checkMap.remove( pair );
-					int separator = pair.indexOf('\0');
-					// Using an array for concise coding of the vertex pair
-					String[] vertice = { pair.substring(0,separator), pair.substring(separator+1) };
-					for( int i=0; i<2; i++ ){
-						String vertex = vertice[i];
-						String neighbor = vertice[i==0?1:0];
-						// Remove the edge and update the degrees in the MedianCalculator
-						if( transMap.containsKey(vertex) ){
-							HashSet<String> set = transMap.get(vertex);
-							if( initialCount.containsKey(vertex) )
-								finalCount.put(vertex, finalCount.get(vertex)-1);
-							else {
-								initialCount.put( vertex, set.size() );
-								finalCount.put( vertex, set.size()-1 );
-							}
-							set.remove(neighbor);
-							// Vertex with no edges will be removed
-							if( set.isEmpty() )
-								transMap.remove(vertex);
-						}
-					}
-				}
-				// Add the outdated time stamp to the list
-				toRemoveList.add(t);
-			}
+		timeMap.advance( lastTime );
+		int edge;
+		int expired = 0;
+		while( (edge = timeMap.pollExpired())>=0 ){
+			expired++;
+			long pair = edges[edge];
+			freeEdge( edge );
+			// Remove the outdated edge
+			checkMap.remove( pair );
+			removeDegree( (int)(pair>>>32) );
+			removeDegree( (int)pair );
 		}
-		for( long t: toRemoveList ) timeMap.remove(t);
-		removeCounts( initialCount, finalCount );
-	}
-
-	/**
-	 * This method updates the <code>MedianCalculator</code> in an efficient way.
-	 * The vertex to degree map is converted to number-of-edges to count map.
-	 * Then the maps before and after removal are compared so that only the degree
-	 * changes will be propagated to <code>MedianCalculator</code> to minimize the 
-	 * add and remove function calls.
-	 */
-	private void removeCounts( HashMap<String,Integer> initialCount, HashMap<String,Integer> finalCount ){
-		// Convert the map format
-		HashMap<Integer,Integer> oldDegreeMap = new HashMap<Integer,Integer>();
-		for( String s: initialCount.keySet() ){
-			int degree = initialCount.get( s );
-			if( !oldDegreeMap.containsKey(degree) )
-				oldDegreeMap.put( degree, 1 );
-			else oldDegreeMap.put( degree, oldDegreeMap.get(degree)+1 );
-		}
-		HashMap<Integer,Integer> newDegreeMap = new HashMap<Integer,Integer>();
-		for( String s: finalCount.keySet() ){
-			int degree = finalCount.get( s );
-			if( !newDegreeMap.containsKey(degree) )
-				newDegreeMap.put( degree, 1 );
-			else newDegreeMap.put( degree, newDegreeMap.get(degree)+1 );
-		}
-		// For the common degrees in two maps before and after removal, keep only the 
-		// positive changes in each map
-		for( int degree: oldDegreeMap.keySet() ){
-			if( newDegreeMap.containsKey(degree) ){
-				int oldCount = oldDegreeMap.get(degree);
-				int newCount = newDegreeMap.get(degree);
-				oldDegreeMap.put(degree, oldCount-newCount);
-				newDegreeMap.put(degree, newCount-oldCount);
+		if( metrics!=null && expired>0 ) metrics.expiredEdges.add( expired );
+		if( !deferred ) removeCounts();
+	}
+
+	/**
+	 * This method decreases the degree of a vertex of an expired edge, keeping the
+	 * degree before the removal for <code>removeCounts()</code>
+	 * @param vertex The vertex ID
+	 */
+	private void removeDegree( int vertex ){
+		touch( vertex );
+		if( topDegrees!=null ) topDegrees.decrement( vertex, transMap[vertex] );
+		// Vertex with no edges will not be counted any more
+		if( --transMap[vertex]==0 ) vertexCount--;
+	}
+
+	/**
+	 * This method keeps the degree of a vertex before its first change since the
+	 * last <code>removeCounts()</code>
+	 * @param vertex The vertex ID
+	 */
+	private void touch( int vertex ){
+		if( initialCount[vertex]>=0 ) return;
+		initialCount[vertex] = transMap[vertex];
+		if( touchedCount==touched.length ) touched = Arrays.copyOf( touched, touchedCount*2 );
+		touched[touchedCount++] = vertex;
+	}
+
+	/**
+	 * This method updates the <code>DegreeHistogram</code> in an efficient way.
+	 * Only the vertice touched by the removal, or by the whole batch when the
+	 * changes are deferred, are visited, and each of them changes the histogram
+	 * once from its degree before to its final degree, no matter how many of its
+	 * edges expired or were added.
+	 */
+	private void removeCounts(){
+		for( int i=0; i<touchedCount; i++ ){
+			int vertex = touched[i];
+			// Vertex with 0 degrees will not be considered any more (ignored by the histogram)
+			if( initialCount[vertex]!=transMap[vertex] ){
+				mc.remove( initialCount[vertex] );
+				mc.add( transMap[vertex] );
 			}
+			initialCount[vertex] = -1;
 		}
-		// Remove the degrees from <code>MedianCalculator</code>
-		for( int degree: oldDegreeMap.keySet() ){
-			int count = oldDegreeMap.get(degree);
-			if( count>0 )
-				for( int i=0; i<count; i++ )
-					mc.remove( degree );
-		}
-		// Add the degrees to <code>MedianCalculator</code>
-		for( int degree: newDegreeMap.keySet() ){
-			// Vertex with 0 degrees will not be considered any more
-			if( degree<=0 ) continue;
-			int count = newDegreeMap.get(degree);
-			if( count>0 )
-				for( int i=0; i<count; i++ )
-					mc.add( degree );
-		}
+		touchedCount = 0;
+	}
+
+	/**
+	 * This method gives a handle to a new edge, reusing the freed ones first
+	 * @param pair The packed graph edge
+	 * @return The edge handle
+	 */
+	private int newEdge( long pair ){
+		int edge = freeCount>0 ? freeEdges[--freeCount] : edgeCount++;
+		if( edge>=edges.length ) edges = Arrays.copyOf( edges, edges.length*2 );
+		edges[edge] = pair;
+		return edge;
+	}
+
+	/**
+	 * This method frees the handle of an expired edge to be reused
+	 * @param edge The edge handle
+	 */
+	private void freeEdge( int edge ){
+		if( freeCount==freeEdges.length ) freeEdges = Arrays.copyOf( freeEdges, freeCount*2 );
+		freeEdges[freeCount++] = edge;
+		edges[edge] = FREE;
+	}
+
+	/**
+	 * This method makes sure the per-vertex arrays cover a vertex ID
+	 * @param vertex The vertex ID
+	 */
+	private void ensureVertex( int vertex ){
+		int length = transMap.length;
+		if( vertex<length ) return;
+		int n = length;
+		while( n<=vertex ) n <<= 1;
+		transMap = Arrays.copyOf( transMap, n );
+		initialCount = Arrays.copyOf( initialCount, n );
+		Arrays.fill( initialCount, length, n, -1 );
 	}
 }
@@ -0,0 +1,203 @@
+package src;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+
+/**
+ * <h1>PipelinedIngest</h1>
+ * Runs the input reading, the parsing, the graph update and the output writing
+ * on four threads, so the disk and the CPU work at the same time:
+ * <pre>
+ * reader --chunks--&gt; parser --batches--&gt; graph --batches--&gt; writer
+ * </pre>
+ * Every hand-off goes through a bounded <code>SpscQueue</code>, so a slow
+ * stage holds back the faster ones instead of letting the memory grow. The
+ * chunk buffers and the <code>TransactionBatch</code>es are allocated once and
+ * handed back to their producer through free queues. The batches flow in
+ * input order and only the graph stage touches the <code>PeriodGraph</code>,
+ * so the output is exactly the same as the sequential one. With
+ * <code>setMedianPerBatch()</code> the graph stage merges the degree changes of
+ * a batch and only the median after each batch is written.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param batchSize The maximum number of records in a batch
+ * @param queueCapacity The maximum number of chunks or batches waiting between two stages
+ * @param medianPerBatch If one median is written per batch instead of per record
+ */
+
+public class PipelinedIngest {
+	/** The size of the chunks read from the input, longer than any line */
+	public static final int CHUNK_SIZE = 1<<20;
+	private static final ByteBuffer END = ByteBuffer.allocate( 0 );
+
+	private final int batchSize;
+	private final int queueCapacity;
+	private boolean medianPerBatch;
+	private final List<Thread> threads;
+	private volatile Throwable failure;
+
+	/**
+	 * @param batchSize The maximum number of records in a batch
+	 * @param queueCapacity The maximum number of chunks or batches waiting between two stages
+	 */
+	public PipelinedIngest( int batchSize, int queueCapacity ){
+		if( batchSize<=0 || queueCapacity<=0 )
+			throw new IllegalArgumentException("The batch size and the queue capacity must be positive");
+		this.batchSize = batchSize;
+		this.queueCapacity = queueCapacity;
+		threads = new ArrayList<Thread>();
+	}
+
+	/**
+	 * @param medianPerBatch If one median is written per batch, after its last
+	 * accepted record, instead of one per accepted record
+	 */
+	public void setMedianPerBatch( boolean medianPerBatch ){
+		this.medianPerBatch = medianPerBatch;
+	}
+
+	/**
+	 * This method runs the pipeline until the end of the input and waits for all
+	 * stages to finish. If a stage fails, the others are stopped.
+	 * @param input The channel of the transaction lines
+	 * @param graph The <code>PeriodGraph</code>, used by the graph stage only
+	 * @param writer The output of the medians
+	 * @throws IOException if the input cannot be read
+	 */
+	public void run( ReadableByteChannel input, final PeriodGraph graph, final MedianWriter writer ) throws IOException {
+		final ChunkReader reader = new ChunkReader( input, CHUNK_SIZE );
+		final TransactionParser parser = new TransactionParser( graph.getDictionary() );
+		parser.setMetrics( graph.getMetrics() );
+
+		final SpscQueue<ByteBuffer> chunks = new SpscQueue<ByteBuffer>( queueCapacity );
+		final SpscQueue<ByteBuffer> freeChunks = new SpscQueue<ByteBuffer>( queueCapacity+2 );
+		final SpscQueue<TransactionBatch> parsed = new SpscQueue<TransactionBatch>( queueCapacity );
+		final SpscQueue<TransactionBatch> applied = new SpscQueue<TransactionBatch>( queueCapacity );
+		final SpscQueue<TransactionBatch> freeBatches = new SpscQueue<TransactionBatch>( 2*queueCapacity+3 );
+		for( int i=0; i<queueCapacity+2; i++ ) freeChunks.offer( ByteBuffer.allocateDirect(CHUNK_SIZE) );
+		for( int i=0; i<2*queueCapacity+3; i++ ) freeBatches.offer( new TransactionBatch(batchSize) );
+
+		start( "reader", new Stage(){
+			public void run() throws Exception {
+				while( true ){
+					ByteBuffer chunk = freeChunks.take();
+					if( !reader.read(chunk) ) break;
+					chunks.put( chunk );
+				}
+				chunks.put( END );
+			}
+		} );
+		start( "parser", new Stage(){
+			public void run() throws Exception {
+				long lineNumber = 0;
+				TransactionBatch batch = freeBatches.take();
+				ByteBuffer chunk;
+				while( (chunk = chunks.take())!=END ){
+					int pos = chunk.position();
+					int limit = chunk.limit();
+					while( pos<limit ){
+						int end = pos;
+						while( end<limit && chunk.get(end)!='\n' ) end++;
+						if( batch.isFull() ){
+							parsed.put( batch );
+							batch = freeBatches.take();
+						}
+						int i = batch.size++;
+						batch.status[i] = parser.parse( chunk, pos, end );
+						batch.actor[i] = parser.actor();
+						batch.target[i] = parser.target();
+						batch.time[i] = parser.time();
+						batch.line[i] = ++lineNumber;
+						pos = end+1;
+					}
+					freeChunks.put( chunk );
+				}
+				if( batch.size>0 ){
+					parsed.put( batch );
+					batch = freeBatches.take();
+				}
+				batch.last = true;
+				parsed.put( batch );
+			}
+		} );
+		start( "graph", new Stage(){
+			public void run() throws Exception {
+				while( true ){
+					TransactionBatch batch = parsed.take();
+					graph.addTransactions( batch, !medianPerBatch );
+					applied.put( batch );
+					if( batch.last ) break;
+				}
+			}
+		} );
+		start( "writer", new Stage(){
+			public void run() throws Exception {
+				while( true ){
+					TransactionBatch batch = applied.take();
+					int lastAccepted = batch.size-1;
+					if( medianPerBatch )
+						while( lastAccepted>=0 && !batch.accepted[lastAccepted] ) lastAccepted--;
+					for( int i=0; i<batch.size; i++ ){
+						if( batch.accepted[i] ){
+							if( medianPerBatch && i!=lastAccepted ) continue;
+							writer.printlnMedian( batch.median[i] );
+						} else
+							System.out.println("Line "+batch.line[i]+" is not a valid transaction, no new output generated");
+					}
+					if( batch.last ) break;
+					batch.clear();
+					freeBatches.put( batch );
+				}
+				writer.flush();
+			}
+		} );
+
+		for( Thread thread: threads ){
+			try {
+				thread.join();
+			} catch( InterruptedException ex ){
+				fail( ex );
+				Thread.currentThread().interrupt();
+			}
+		}
+		threads.clear();
+		if( failure instanceof IOException ) throw (IOException)failure;
+		if( failure instanceof RuntimeException ) throw (RuntimeException)failure;
+		if( failure instanceof Error ) throw (Error)failure;
+		if( failure!=null ) throw new IOException( "The pipeline has been interrupted", failure );
+	}
+
+	/**
+	 * The work of one pipeline thread
+	 */
+	private interface Stage {
+		void run() throws Exception;
+	}
+
+	private synchronized void start( String name, final Stage stage ){
+		Thread thread = new Thread( new Runnable(){
+			public void run(){
+				try {
+					stage.run();
+				} catch( Throwable ex ){
+					fail( ex );
+				}
+			}
+		}, "pipeline-"+name );
+		threads.add( thread );
+		thread.start();
+		if( failure!=null ) thread.interrupt();
+	}
+
+	/**
+	 * This method keeps the first failure and interrupts all stages, so none of
+	 * them keeps waiting for a stage which has stopped
+	 */
+	private synchronized void fail( Throwable ex ){
+		if( failure!=null ) return;
+		failure = ex;
+		for( Thread thread: threads ) thread.interrupt();
+	}
+}
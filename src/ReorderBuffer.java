@@ -0,0 +1,278 @@
+package src;
+import java.io.*;
+import java.time.Instant;
+import java.util.*;
+import org.json.simple.JSONValue;
+
+/**
+ * <h1>ReorderBuffer</h1>
+ * Holds the transactions back for an allowed lateness and applies them to a
+ * <code>PeriodGraph</code> in time order, for feeds merged from several sources
+ * with a bounded skew. The watermark is the latest time stamp seen minus the
+ * lateness: every held transaction at or before the watermark is applied, the
+ * earliest first and the ones of the same second in their arrival order. The
+ * graph then only sees the time going forward, so a late transaction is an
+ * ordinary addition and the expiry only visits the expired edges.
+ * <p>
+ * A transaction earlier than the last applied one can no longer be put in
+ * order. It is too late: it is either applied at once, as the graph handles
+ * a late transaction by itself, or handed to the <code>Output</code> as a side
+ * output. With a lateness of 0 every transaction is applied on arrival, as
+ * without the buffer.
+ * <p>
+ * The transactions are held in a binary heap of primitive arrays ordered by
+ * time stamp and arrival number.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param graph The <code>PeriodGraph</code> the transactions are applied to
+ * @param lateness The allowed lateness in seconds
+ * @param output The <code>Output</code> told about every applied or diverted transaction
+ * @param divertTooLate If the too late transactions go to the side output
+ * instead of the graph
+ * @param maxTime The latest time stamp seen
+ * @param appliedTime The time stamp of the last applied transaction
+ * @param size The number of held transactions
+ */
+
+public class ReorderBuffer {
+	/**
+	 * The receiver of the transactions leaving the buffer
+	 */
+	public interface Output {
+		/**
+		 * Called after a transaction is applied to the graph, in time order
+		 * unless it is too late
+		 */
+		void applied( int actor, int target, long timeInSeconds ) throws IOException;
+
+		/**
+		 * Called for a too late transaction instead of applying it, if they are diverted
+		 * @param lateness The number of seconds it is behind the latest time stamp
+		 */
+		void tooLate( int actor, int target, long timeInSeconds, long lateness ) throws IOException;
+	}
+
+	private final PeriodGraph graph;
+	private final int lateness;
+	private final Output output;
+	private final boolean divertTooLate;
+	private long maxTime;
+	private long appliedTime;
+	private long[] times;
+	private long[] arrivals;
+	private int[] actors;
+	private int[] targets;
+	private int size;
+	private long arrived;
+	private long late;
+	private long tooLate;
+	private long totalLateness;
+	private long maxLateness;
+
+	/**
+	 * @param graph The <code>PeriodGraph</code> the transactions are applied to
+	 * @param lateness The allowed lateness in seconds
+	 * @param output The <code>Output</code> of the applied and too late transactions
+	 * @param divertTooLate If the too late transactions go to <code>Output.tooLate()</code>
+	 * instead of the graph
+	 */
+	public ReorderBuffer( PeriodGraph graph, int lateness, Output output, boolean divertTooLate ){
+		if( lateness<0 ) throw new IllegalArgumentException("The allowed lateness must not be negative");
+		this.graph = graph;
+		this.lateness = lateness;
+		this.output = output;
+		this.divertTooLate = divertTooLate;
+		maxTime = Long.MIN_VALUE;
+		appliedTime = Long.MIN_VALUE;
+		times = new long[16];
+		arrivals = new long[16];
+		actors = new int[16];
+		targets = new int[16];
+		size = 0;
+	}
+
+	/**
+	 * This method takes a parsed transaction, applying all the held ones the
+	 * watermark has passed
+	 * @param actor The actor ID from the dictionary of the graph, negative if empty
+	 * @param target The target ID from the dictionary of the graph, negative if empty
+	 * @param timeInSeconds The time in seconds, or <code>PeriodGraph.INVALID_TIME</code>
+	 * @return If the transaction is valid, i.e. if it has or will have an output
+	 * @throws IOException if the <code>Output</code> fails
+	 */
+	public boolean add( int actor, int target, long timeInSeconds ) throws IOException {
+		if( actor<0 || target<0 || actor==target || timeInSeconds==PeriodGraph.INVALID_TIME ){
+			// Counted by the metrics of the graph, if any
+			return graph.addTransaction( actor, target, timeInSeconds );
+		}
+		if( timeInSeconds<maxTime ){
+			long behind = maxTime-timeInSeconds;
+			late++;
+			totalLateness += behind;
+			if( behind>maxLateness ) maxLateness = behind;
+			if( timeInSeconds<appliedTime ){
+				tooLate++;
+				if( divertTooLate ) output.tooLate( actor, target, timeInSeconds, behind );
+				else apply( actor, target, timeInSeconds );
+				return true;
+			}
+		} else
+			maxTime = timeInSeconds;
+
+		push( actor, target, timeInSeconds );
+		long watermark = maxTime-lateness;
+		while( size>0 && times[0]<=watermark ) pop();
+		return true;
+	}
+
+	/**
+	 * This method applies all the held transactions, at the end of the input
+	 * @throws IOException if the <code>Output</code> fails
+	 */
+	public void flush() throws IOException {
+		while( size>0 ) pop();
+	}
+
+	/**
+	 * @return The number of transactions held back
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return The IDs of the actors and targets of the held transactions
+	 */
+	public BitSet heldVertices(){
+		BitSet held = new BitSet();
+		for( int i=0; i<size; i++ ){
+			held.set( actors[i] );
+			held.set( targets[i] );
+		}
+		return held;
+	}
+
+	/**
+	 * @return The number of valid transactions earlier than the latest time stamp
+	 * seen before them, the too late ones included
+	 */
+	public long getLate(){
+		return late;
+	}
+
+	/**
+	 * @return The number of transactions earlier than the last applied one
+	 */
+	public long getTooLate(){
+		return tooLate;
+	}
+
+	/**
+	 * @return The largest number of seconds a transaction was behind the latest time stamp
+	 */
+	public long getMaxLateness(){
+		return maxLateness;
+	}
+
+	/**
+	 * @return The mean number of seconds the late transactions were behind
+	 */
+	public double getMeanLateness(){
+		return late==0 ? 0 : (double)totalLateness/late;
+	}
+
+	/**
+	 * This method formats a transaction as a line of the input, to write the
+	 * too late ones to a side output
+	 * @param dictionary The <code>VertexDictionary</code> of the IDs
+	 * @return The JSON line, without the line break
+	 */
+	public static String toJson( VertexDictionary dictionary, int actor, int target, long timeInSeconds ){
+		return "{\"created_time\": \""+Instant.ofEpochSecond(timeInSeconds)
+				+"\", \"target\": \""+JSONValue.escape(dictionary.name(target))
+				+"\", \"actor\": \""+JSONValue.escape(dictionary.name(actor))+"\"}";
+	}
+
+	/**
+	 * @return The lateness counters as one line of text
+	 */
+	public String report(){
+		return String.format( "late=%d too-late=%d mean-lateness=%.1fs max-lateness=%ds held=%d",
+				late, tooLate, getMeanLateness(), maxLateness, size );
+	}
+
+	private void apply( int actor, int target, long timeInSeconds ) throws IOException {
+		graph.addTransaction( actor, target, timeInSeconds );
+		output.applied( actor, target, timeInSeconds );
+	}
+
+	/**
+	 * This method adds a transaction to the heap
+	 */
+	private void push( int actor, int target, long timeInSeconds ){
+		if( size==times.length ){
+			int n = size*2;
+			times = Arrays.copyOf( times, n );
+			arrivals = Arrays.copyOf( arrivals, n );
+			actors = Arrays.copyOf( actors, n );
+			targets = Arrays.copyOf( targets, n );
+		}
+		long arrival = arrived++;
+		int i = size++;
+		while( i>0 ){
+			int parent = (i-1)>>>1;
+			if( !before(timeInSeconds, arrival, parent) ) break;
+			move( parent, i );
+			i = parent;
+		}
+		set( i, timeInSeconds, arrival, actor, target );
+	}
+
+	/**
+	 * This method removes the earliest transaction from the heap and applies it
+	 */
+	private void pop() throws IOException {
+		long time = times[0];
+		int actor = actors[0];
+		int target = targets[0];
+		int last = --size;
+		if( last>0 ){
+			long lastTime = times[last];
+			long lastArrival = arrivals[last];
+			int lastActor = actors[last];
+			int lastTarget = targets[last];
+			int i = 0;
+			while( true ){
+				int child = 2*i+1;
+				if( child>=last ) break;
+				if( child+1<last && before(times[child+1], arrivals[child+1], child) ) child++;
+				if( !before(times[child], arrivals[child], lastTime, lastArrival) ) break;
+				move( child, i );
+				i = child;
+			}
+			set( i, lastTime, lastArrival, lastActor, lastTarget );
+		}
+		appliedTime = time;
+		apply( actor, target, time );
+	}
+
+	private boolean before( long time, long arrival, int i ){
+		return before( time, arrival, times[i], arrivals[i] );
+	}
+
+	private static boolean before( long time, long arrival, long otherTime, long otherArrival ){
+		return time<otherTime || (time==otherTime && arrival<otherArrival);
+	}
+
+	private void move( int from, int to ){
+		set( to, times[from], arrivals[from], actors[from], targets[from] );
+	}
+
+	private void set( int i, long time, long arrival, int actor, int target ){
+		times[i] = time;
+		arrivals[i] = arrival;
+		actors[i] = actor;
+		targets[i] = target;
+	}
+}
@@ -0,0 +1,358 @@
+package src;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * <h1>SketchGraph</h1>
+ * Estimates the median degree of the time window in a fixed amount of memory,
+ * for populations whose names and edges do not fit in the heap. It keeps the
+ * contract of <code>PeriodGraph</code>: the same rules for the valid, the too
+ * old and the refreshed transactions, and a median after each of them.
+ * <p>
+ * The persons are known by a 64-bit hash of their name, so there is no
+ * dictionary. A person is sampled if its hash is at most a threshold, and
+ * only the edges with a sampled end are stored, with their time stamps in a
+ * <code>TimeWheel</code>. The degree of a sampled person is therefore exact,
+ * and the median is the one of the sampled degrees, kept in a
+ * <code>DegreeHistogram</code>. The hash does not depend on the degree, so the
+ * sampled persons are a uniform sample of the persons in the window.
+ * <p>
+ * At most <code>vertexCapacity</code> persons and <code>edgeCapacity</code>
+ * edges are stored. When either is full, the threshold is halved and the
+ * persons above it are dropped with their edges, so the sample rate adapts to
+ * the population: it is 1, and the median is exact, as long as the window
+ * fits. The threshold never goes back up, because the edges of the persons
+ * not sampled are lost. The arrays are allocated up front, except the per-edge
+ * arrays of the time wheel which grow up to the edge capacity: about 50 bytes
+ * per person and 70 bytes per edge of capacity, see <code>memoryBytes()</code>.
+ * <p>
+ * Error bounds. With n sampled persons in the window, the estimate is between
+ * the true (0.5-e) and (0.5+e) quantiles of the degrees with a probability of
+ * at least 1-2exp(-2ne^2) (Dvoretzky-Kiefer-Wolfowitz). Once the rate has
+ * adapted, n is between about a half and all of the capacity; with n=32768,
+ * e=1% holds with a probability above 99.7%. As the degrees are small
+ * integers, the estimate is usually the exact median, and is otherwise a
+ * neighbouring degree or a half-way value. The hashes of two names collide
+ * with a probability of about N^2/2^64 for N names.
+ * <p>
+ * There is one difference from <code>PeriodGraph</code> once the rate is below
+ * 1: a transaction between two persons not sampled is treated as a new edge,
+ * as it is not known if it refreshes an existing one, so it can advance the
+ * window a little earlier.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param period The length of the time to keep transaction records
+ * @param lastTime The time stamp of the latest transaction
+ * @param threshold The largest sampled hash
+ * @param vertices The map of the sampled hashes to their vertex slots
+ * @param vertexHash The hash of each vertex slot, <code>FREE</code> if unused
+ * @param degree The degree of each vertex slot
+ * @param edges The map of the stored edge keys to their edge handles
+ * @param edgeKey The key of each edge handle
+ * @param edgeEnds The two vertex slots of each edge handle, -1 for an end not sampled
+ * @param timeMap The <code>TimeWheel</code> of the edge handles by time
+ * @param mc The <code>DegreeHistogram</code> of the sampled degrees
+ */
+
+public class SketchGraph {
+	private static final long FREE = -1L;
+
+	private final int period;
+	private long lastTime;
+	private long threshold;
+	private int halvings;
+	private final int vertexCapacity;
+	private final int edgeCapacity;
+	private final LongIntHashMap vertices;
+	private final long[] vertexHash;
+	private final int[] degree;
+	private final int[] freeVertices;
+	private int freeVertexCount;
+	private final LongIntHashMap edges;
+	private final long[] edgeKey;
+	private final int[] edgeEnds;
+	private final int[] freeEdges;
+	private int freeEdgeCount;
+	private final TimeWheel timeMap;
+	private final DegreeHistogram mc;
+	private final TimestampDecoder decoder;
+
+	/**
+	 * @param period The length of the time in seconds to keep transaction records
+	 * @param vertexCapacity The maximum number of sampled persons
+	 * @param edgeCapacity The maximum number of stored edges
+	 */
+	public SketchGraph( int period, int vertexCapacity, int edgeCapacity ){
+		if( vertexCapacity<=0 || edgeCapacity<=0 )
+			throw new IllegalArgumentException("The capacities of the sketch must be positive");
+		this.period = period;
+		lastTime = 0;
+		threshold = Long.MAX_VALUE;
+		halvings = 0;
+		this.vertexCapacity = vertexCapacity;
+		this.edgeCapacity = edgeCapacity;
+		vertices = new LongIntHashMap( vertexCapacity );
+		vertexHash = new long[vertexCapacity];
+		Arrays.fill( vertexHash, FREE );
+		degree = new int[vertexCapacity];
+		freeVertices = new int[vertexCapacity];
+		for( int i=0; i<vertexCapacity; i++ ) freeVertices[i] = vertexCapacity-1-i;
+		freeVertexCount = vertexCapacity;
+		edges = new LongIntHashMap( edgeCapacity );
+		edgeKey = new long[edgeCapacity];
+		Arrays.fill( edgeKey, FREE );
+		edgeEnds = new int[2*edgeCapacity];
+		freeEdges = new int[edgeCapacity];
+		for( int i=0; i<edgeCapacity; i++ ) freeEdges[i] = edgeCapacity-1-i;
+		freeEdgeCount = edgeCapacity;
+		timeMap = new TimeWheel( period );
+		mc = new DegreeHistogram();
+		decoder = new TimestampDecoder();
+	}
+
+	/**
+	 * This method is the same as <code>PeriodGraph.addTransaction(String, String, String)</code>,
+	 * without the messages
+	 * @return The add operation is successful or not
+	 */
+	public boolean addTransaction( String actor, String target, String time ){
+		if( actor==null || actor.length()==0 || target==null || target.length()==0 || time==null ) return false;
+		if( actor.equals(target) ) return false;
+		return addTransaction( hash(actor), hash(target), decoder.decode(time) );
+	}
+
+	/**
+	 * This method adds a parsed transaction
+	 * @param actor The hash of the actor name from <code>hash()</code>
+	 * @param target The hash of the target name from <code>hash()</code>
+	 * @param timeInSeconds The time in seconds, or <code>PeriodGraph.INVALID_TIME</code>
+	 * @return The add operation is successful or not
+	 */
+	public boolean addTransaction( long actor, long target, long timeInSeconds ){
+		if( actor==target || timeInSeconds==PeriodGraph.INVALID_TIME ) return false;
+		if( lastTime-timeInSeconds>=period ) return true; // Do nothing if the new item is more than period seconds ago
+
+		long key = edgeKey( actor, target );
+		int handle = edges.get( key );
+		if( handle!=LongIntHashMap.MISSING ){
+			if( timeMap.time(handle)<timeInSeconds ) timeMap.move( handle, timeInSeconds );
+			return true;
+		}
+		if( timeInSeconds>lastTime ){
+			lastTime = timeInSeconds;
+			removeOldEntries();
+		}
+
+		int a, b;
+		while( true ){
+			a = slotOf( actor );
+			b = slotOf( target );
+			// Making room for the target may have dropped the actor
+			if( a>=0 && vertexHash[a]!=actor ) continue;
+			if( a<0 && b<0 ) return true;
+			if( freeEdgeCount>0 ) break;
+			halve();
+		}
+
+		int edge = freeEdges[--freeEdgeCount];
+		edgeKey[edge] = key;
+		edgeEnds[2*edge] = a;
+		edgeEnds[2*edge+1] = b;
+		edges.put( key, edge );
+		timeMap.add( edge, timeInSeconds );
+		if( a>=0 ) increment( a );
+		if( b>=0 ) increment( b );
+		return true;
+	}
+
+	/**
+	 * @return The estimated median of the degrees in the time window
+	 */
+	public double getMedian(){
+		return mc.findMedian();
+	}
+
+	/**
+	 * @return The fraction of the persons sampled, 1 until the capacities are reached
+	 */
+	public double getSampleRate(){
+		return Math.scalb( 1.0, -halvings );
+	}
+
+	/**
+	 * @return The number of sampled persons with at least one edge in the window
+	 */
+	public int getSampledVertices(){
+		return vertices.size();
+	}
+
+	/**
+	 * @return The estimated number of persons with at least one edge in the window
+	 */
+	public long getEstimatedVertices(){
+		return (long)Math.scalb( (double)vertices.size(), halvings );
+	}
+
+	/**
+	 * @return The number of stored edges
+	 */
+	public int getStoredEdges(){
+		return edges.size();
+	}
+
+	/**
+	 * @return The approximate number of bytes of the sketch, which does not
+	 * change after the construction
+	 */
+	public long memoryBytes(){
+		return memoryBytes( vertexCapacity, edgeCapacity );
+	}
+
+	/**
+	 * @param vertexCapacity The maximum number of sampled persons
+	 * @param edgeCapacity The maximum number of stored edges
+	 * @return The approximate number of bytes of a sketch of these capacities,
+	 * without the time wheel slots
+	 */
+	public static long memoryBytes( int vertexCapacity, int edgeCapacity ){
+		// Hash map tables are 2 to 4 entries of 12 bytes per key, 3 on average
+		return vertexCapacity*(36L+8+4+4) + edgeCapacity*(36L+8+8+4+16);
+	}
+
+	/**
+	 * @param name The person name
+	 * @return The hash of the UTF-8 bytes of the name, the same as <code>hash(ByteBuffer, int, int)</code>
+	 */
+	public static long hash( String name ){
+		byte[] bytes = name.getBytes( StandardCharsets.UTF_8 );
+		return hash( ByteBuffer.wrap(bytes), 0, bytes.length );
+	}
+
+	/**
+	 * This method hashes a name with FNV-1a and a final mix, to 63 bits
+	 * @param buf The buffer holding the UTF-8 bytes of the name
+	 * @param start The absolute index of the first byte
+	 * @param length The number of bytes
+	 * @return The non-negative hash of the name
+	 */
+	public static long hash( ByteBuffer buf, int start, int length ){
+		long h = 0xcbf29ce484222325L;
+		for( int i=0; i<length; i++ ){
+			h ^= buf.get(start+i)&0xff;
+			h *= 0x100000001b3L;
+		}
+		return mix( h );
+	}
+
+	/**
+	 * @return The non-negative key of the undirected edge between two hashes
+	 */
+	private static long edgeKey( long a, long b ){
+		long low = Math.min( a, b );
+		long high = Math.max( a, b );
+		return mix( low*0x9e3779b97f4a7c15L ^ Long.rotateLeft(high, 29) );
+	}
+
+	/**
+	 * The 64-bit finalizer of MurmurHash3, keeping 63 bits
+	 */
+	private static long mix( long h ){
+		h ^= h>>>33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h>>>33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h>>>33;
+		return h & Long.MAX_VALUE;
+	}
+
+	/**
+	 * This method finds the slot of a person, giving a new one if it is sampled.
+	 * If all the slots are taken, the threshold is halved until one is free or
+	 * the person is not sampled any more.
+	 * @return The vertex slot, or -1 if the person is not sampled
+	 */
+	private int slotOf( long hash ){
+		if( hash>threshold ) return -1;
+		int slot = vertices.get( hash );
+		if( slot!=LongIntHashMap.MISSING ) return slot;
+		while( freeVertexCount==0 ){
+			halve();
+			if( hash>threshold ) return -1;
+		}
+		slot = freeVertices[--freeVertexCount];
+		vertexHash[slot] = hash;
+		degree[slot] = 0;
+		vertices.put( hash, slot );
+		return slot;
+	}
+
+	/**
+	 * This method halves the threshold and drops the persons above it, with
+	 * the edges not having a sampled end any more
+	 */
+	private void halve(){
+		threshold >>>= 1;
+		halvings++;
+		for( int slot=0; slot<vertexCapacity; slot++ ){
+			long hash = vertexHash[slot];
+			if( hash==FREE || hash<=threshold ) continue;
+			mc.remove( degree[slot] );
+			freeVertex( slot );
+		}
+		for( int edge=0; edge<edgeCapacity; edge++ ){
+			if( edgeKey[edge]==FREE ) continue;
+			int a = edgeEnds[2*edge];
+			int b = edgeEnds[2*edge+1];
+			if( a>=0 && vertexHash[a]==FREE ) edgeEnds[2*edge] = a = -1;
+			if( b>=0 && vertexHash[b]==FREE ) edgeEnds[2*edge+1] = b = -1;
+			if( a<0 && b<0 ){
+				timeMap.remove( edge );
+				freeEdge( edge );
+			}
+		}
+	}
+
+	/**
+	 * This method removes the edges more than period seconds ago and
+	 * decreases the degrees of their sampled ends
+	 */
+	private void removeOldEntries(){
+		timeMap.advance( lastTime );
+		int edge;
+		while( (edge = timeMap.pollExpired())>=0 ){
+			int a = edgeEnds[2*edge];
+			int b = edgeEnds[2*edge+1];
+			freeEdge( edge );
+			if( a>=0 ) decrement( a );
+			if( b>=0 ) decrement( b );
+		}
+	}
+
+	private void increment( int slot ){
+		int prev = degree[slot]++;
+		if( prev>0 ) mc.remove( prev );
+		mc.add( prev+1 );
+	}
+
+	private void decrement( int slot ){
+		int prev = degree[slot]--;
+		mc.remove( prev );
+		if( prev>1 ) mc.add( prev-1 );
+		else freeVertex( slot );
+	}
+
+	private void freeVertex( int slot ){
+		vertices.remove( vertexHash[slot] );
+		vertexHash[slot] = FREE;
+		degree[slot] = 0;
+		freeVertices[freeVertexCount++] = slot;
+	}
+
+	private void freeEdge( int edge ){
+		edges.remove( edgeKey[edge] );
+		edgeKey[edge] = FREE;
+		freeEdges[freeEdgeCount++] = edge;
+	}
+}
@@ -0,0 +1,104 @@
+package src;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h1>SpscQueue</h1>
+ * A bounded queue for exactly one producer thread and one consumer thread,
+ * used to hand batches from one pipeline stage to the next. The elements are
+ * kept in a ring buffer and each side only writes its own counter, so no lock
+ * is taken. A full queue blocks the producer (backpressure) and an empty one
+ * blocks the consumer: both spin shortly, then yield, then park. A waiting
+ * thread can be stopped by interrupting it.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param buffer The ring buffer of the elements
+ * @param head The number of elements taken so far, written by the consumer
+ * @param tail The number of elements put so far, written by the producer
+ */
+
+public class SpscQueue<T> {
+	private final Object[] buffer;
+	private final int mask;
+	private final AtomicLong head;
+	private final AtomicLong tail;
+	// Each side's cached copy of the other side's counter, to read the shared one less often
+	private long headCache;
+	private long tailCache;
+
+	/**
+	 * @param capacity The maximum number of elements, rounded up to a power of two
+	 */
+	public SpscQueue( int capacity ){
+		if( capacity<=0 ) throw new IllegalArgumentException("The capacity must be positive: "+capacity);
+		int n = Integer.highestOneBit( Math.max(capacity, 2)-1 )<<1;
+		buffer = new Object[n];
+		mask = n-1;
+		head = new AtomicLong( 0 );
+		tail = new AtomicLong( 0 );
+		headCache = 0;
+		tailCache = 0;
+	}
+
+	/**
+	 * This method adds an element if there is room, only called by the producer
+	 * @param element The element, not null
+	 * @return If the element has been added
+	 */
+	public boolean offer( T element ){
+		long t = tail.get();
+		if( t-headCache>=buffer.length ){
+			headCache = head.get();
+			if( t-headCache>=buffer.length ) return false;
+		}
+		buffer[(int)(t & mask)] = element;
+		tail.lazySet( t+1 ); // Publishes the element to the consumer
+		return true;
+	}
+
+	/**
+	 * This method takes the oldest element if there is one, only called by the consumer
+	 * @return The element, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll(){
+		long h = head.get();
+		if( h>=tailCache ){
+			tailCache = tail.get();
+			if( h>=tailCache ) return null;
+		}
+		int i = (int)(h & mask);
+		T element = (T)buffer[i];
+		buffer[i] = null;
+		head.lazySet( h+1 ); // Gives the slot back to the producer
+		return element;
+	}
+
+	/**
+	 * This method adds an element, waiting while the queue is full
+	 * @param element The element, not null
+	 * @throws InterruptedException if the producer is interrupted while waiting
+	 */
+	public void put( T element ) throws InterruptedException {
+		for( int spins=0; !offer(element); spins++ ) idle( spins );
+	}
+
+	/**
+	 * This method takes the oldest element, waiting while the queue is empty
+	 * @return The element
+	 * @throws InterruptedException if the consumer is interrupted while waiting
+	 */
+	public T take() throws InterruptedException {
+		T element;
+		for( int spins=0; (element = poll())==null; spins++ ) idle( spins );
+		return element;
+	}
+
+	private static void idle( int spins ) throws InterruptedException {
+		if( Thread.interrupted() ) throw new InterruptedException();
+		if( spins<100 ) return;
+		if( spins<200 ) Thread.yield();
+		else LockSupport.parkNanos( 50000L );
+	}
+}
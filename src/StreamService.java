@@ -0,0 +1,316 @@
+package src;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <h1>StreamService</h1>
+ * Keeps one <code>PeriodGraph</code> alive while transactions keep arriving,
+ * from the standard input or from the connections to a local TCP port, one
+ * after another, so the time window survives across batches and clients.
+ * The input is read in chunks of a fixed size by a <code>ChunkReader</code>
+ * and the window holds only its own edges, so the memory does not grow with
+ * the length of the stream. The names of the vertice which left the window are
+ * released from the <code>VertexDictionary</code> at the end of a chunk, once
+ * the dictionary has twice as many names as after the last release, and their
+ * IDs are reused by the next new names.
+ * <p>
+ * After every chunk the ingesting thread publishes an immutable
+ * <code>GraphStats</code> through a volatile field. The optional HTTP endpoint
+ * on the loopback interface only reads that field, so a query never waits for
+ * the ingestion and never touches the graph:
+ * <pre>
+ * GET /stats    {"median": 1.50, "vertices": 4, "edges": 3, ...}
+ * GET /median   1.50
+ * </pre>
+ * With <code>setReorder()</code> the transactions go through a
+ * <code>ReorderBuffer</code> and the medians are written as the buffer applies
+ * them. The held transactions are neither in the graph nor in the log of the
+ * checkpoint until they are applied.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param graph The <code>PeriodGraph</code>, used by the ingesting thread only
+ * @param writer The output of the medians, flushed after every chunk
+ * @param parser The <code>TransactionParser</code> of the lines
+ * @param stats The last published snapshot
+ * @param records The number of lines read
+ * @param accepted The number of lines with an output
+ * @param checkpoint The optional <code>GraphCheckpoint</code> logging the transactions
+ * @param checkpointEvery The number of logged transactions between two snapshots
+ * @param reorder The optional <code>ReorderBuffer</code> of the late transactions
+ * @param top The number of the highest degree vertice printed after every median
+ * @param releaseAt The number of names in the dictionary at which the idle
+ * vertice are released
+ */
+
+public class StreamService {
+	/** The smallest number of names in the dictionary to release the idle vertice at */
+	public static final int RELEASE_MIN = 1<<16;
+
+	private final PeriodGraph graph;
+	private final PrintWriter writer;
+	private final TransactionParser parser;
+	private final ByteBuffer chunk;
+	private volatile GraphStats stats;
+	private long records;
+	private long accepted;
+	private HttpServer server;
+	private GraphCheckpoint checkpoint;
+	private long checkpointEvery;
+	private long logged;
+	private ReorderBuffer reorder;
+	private int top;
+	private int releaseAt;
+
+	/**
+	 * @param graph The <code>PeriodGraph</code> to update
+	 * @param writer The output of the medians
+	 */
+	public StreamService( PeriodGraph graph, PrintWriter writer ){
+		this.graph = graph;
+		this.writer = writer;
+		parser = new TransactionParser( graph.getDictionary() );
+		parser.setMetrics( graph.getMetrics() );
+		chunk = ByteBuffer.allocateDirect( PipelinedIngest.CHUNK_SIZE );
+		records = 0;
+		accepted = 0;
+		releaseAt = RELEASE_MIN;
+		stats = new GraphStats( graph, 0, 0 );
+	}
+
+	/**
+	 * This method logs every transaction applied from now on, and writes a new
+	 * snapshot after every given number of them, at the end of a chunk
+	 * @param checkpoint The <code>GraphCheckpoint</code> the graph has been recovered by
+	 * @param every The number of logged transactions between two snapshots
+	 */
+	public void setCheckpoint( GraphCheckpoint checkpoint, long every ){
+		if( every<=0 ) throw new IllegalArgumentException("The number of transactions between two snapshots must be positive");
+		this.checkpoint = checkpoint;
+		checkpointEvery = every;
+		logged = 0;
+	}
+
+	/**
+	 * This method prints the vertice with the highest degrees after every median
+	 * @param k The number of vertice, 0 for none
+	 */
+	public void setTop( int k ){
+		if( k>0 ) graph.trackTopDegrees();
+		top = k;
+	}
+
+	/**
+	 * This method holds the transactions back for an allowed lateness and applies
+	 * them in time order with a <code>ReorderBuffer</code>
+	 * @param lateness The allowed lateness in seconds
+	 * @param tooLate The side output of the transactions too late to be put in
+	 * order, or null to apply them at once
+	 * @return The <code>ReorderBuffer</code>, for its lateness counters
+	 */
+	public ReorderBuffer setReorder( int lateness, final PrintWriter tooLate ){
+		reorder = new ReorderBuffer( graph, lateness, new ReorderBuffer.Output(){
+			public void applied( int actor, int target, long timeInSeconds ) throws IOException {
+				StreamService.this.applied( actor, target, timeInSeconds );
+			}
+
+			public void tooLate( int actor, int target, long timeInSeconds, long lateness ){
+				tooLate.println( ReorderBuffer.toJson(graph.getDictionary(), actor, target, timeInSeconds) );
+			}
+		}, tooLate!=null );
+		return reorder;
+	}
+
+	/**
+	 * @return The last published snapshot, safe to call from any thread
+	 */
+	public GraphStats stats(){
+		return stats;
+	}
+
+	/**
+	 * This method starts the HTTP query endpoint on the loopback interface
+	 * @param port The port, or 0 for any free port
+	 * @return The port listened to
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized int startQueryServer( int port ) throws IOException {
+		if( server!=null ) throw new IllegalStateException("The query endpoint is already started");
+		server = HttpServer.create( new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0 );
+		server.createContext( "/stats", new HttpHandler(){
+			public void handle( HttpExchange exchange ) throws IOException {
+				respond( exchange, "application/json", stats().toJson() );
+			}
+		} );
+		server.createContext( "/median", new HttpHandler(){
+			public void handle( HttpExchange exchange ) throws IOException {
+				respond( exchange, "text/plain", String.format(Locale.ROOT, "%.2f", stats().median) );
+			}
+		} );
+		// The single dispatcher thread is enough, a response is only a copy of the snapshot
+		server.setExecutor( null );
+		server.start();
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * This method stops the HTTP query endpoint, if it is started
+	 */
+	public synchronized void stopQueryServer(){
+		if( server==null ) return;
+		server.stop( 0 );
+		server = null;
+	}
+
+	/**
+	 * This method reads the transactions from a channel until its end
+	 * @param input The channel of the transaction lines
+	 * @throws IOException if the channel cannot be read
+	 */
+	public void ingest( ReadableByteChannel input ) throws IOException {
+		ChunkReader reader = new ChunkReader( input, chunk.capacity() );
+		while( read(reader) ){
+			int pos = chunk.position();
+			int limit = chunk.limit();
+			while( pos<limit ){
+				int end = pos;
+				while( end<limit && chunk.get(end)!='\n' ) end++;
+				records++;
+				boolean valid = parser.parse(chunk, pos, end)==TransactionParser.VALID;
+				if( valid && reorder!=null )
+					valid = reorder.add( parser.actor(), parser.target(), parser.time() );
+				else if( valid && (valid = graph.addTransaction(parser.actor(), parser.target(), parser.time())) )
+					applied( parser.actor(), parser.target(), parser.time() );
+				// On the standard error, as the medians may go to the standard output
+				if( !valid )
+					System.err.println("Line "+records+" is not a valid transaction, no new output generated");
+				pos = end+1;
+			}
+			publish();
+		}
+	}
+
+	/**
+	 * This method reads the next chunk, telling a failure of the input apart
+	 * from the ones of the checkpoint
+	 * @throws ReadException if the input cannot be read
+	 */
+	private boolean read( ChunkReader reader ) throws ReadException {
+		try {
+			return reader.read( chunk );
+		} catch( IOException ex ){
+			throw new ReadException( ex );
+		}
+	}
+
+	/**
+	 * This method applies the transactions still held by the <code>ReorderBuffer</code>,
+	 * if any, at the end of the stream
+	 * @throws IOException if the log of the checkpoint cannot be written
+	 */
+	public void finish() throws IOException {
+		if( reorder==null || reorder.size()==0 ) return;
+		reorder.flush();
+		publish();
+	}
+
+	/**
+	 * This method writes the median after a transaction applied to the graph,
+	 * and logs it
+	 */
+	private void applied( int actor, int target, long timeInSeconds ) throws IOException {
+		accepted++;
+		if( checkpoint!=null ){
+			checkpoint.append( actor, target, timeInSeconds );
+			logged++;
+		}
+		writer.print( MedianWriter.format(graph.getMedian()) );
+		if( top>0 ) graph.printTopDegrees( writer, top );
+		writer.println();
+	}
+
+	/**
+	 * This method flushes the output and the log, releases the idle vertice and
+	 * writes a snapshot if it is time to, and publishes the new <code>GraphStats</code>
+	 */
+	private void publish() throws IOException {
+		writer.flush();
+		VertexDictionary dictionary = graph.getDictionary();
+		if( dictionary.count()>=releaseAt ){
+			graph.releaseIdleVertices( reorder!=null ? reorder.heldVertices() : null );
+			releaseAt = Math.max( RELEASE_MIN, 2*dictionary.count() );
+		}
+		if( checkpoint!=null ){
+			checkpoint.flush();
+			if( logged>=checkpointEvery ){
+				checkpoint.checkpoint();
+				logged = 0;
+			}
+		}
+		stats = new GraphStats( graph, records, accepted );
+	}
+
+	/**
+	 * This method accepts the connections to a local TCP port and reads them one
+	 * after another, until the thread is interrupted or the port is closed. A
+	 * client which cannot be read only loses its own connection, while a failure
+	 * of the checkpoint stops the service.
+	 * @param port The port on the loopback interface
+	 * @throws IOException if the port cannot be bound, or the checkpoint cannot be written
+	 */
+	public void listen( int port ) throws IOException {
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind( new InetSocketAddress(InetAddress.getLoopbackAddress(), port) );
+			System.err.println("Listening to transactions on port "+serverChannel.socket().getLocalPort());
+			while( !Thread.currentThread().isInterrupted() ){
+				SocketChannel client = serverChannel.accept();
+				try {
+					ingest( client );
+				} catch( ReadException ex ){
+					System.err.println("Connection closed: "+ex.getMessage());
+				} finally {
+					try {
+						client.close();
+					} catch( IOException ex ){
+						System.err.println("Connection not closed cleanly: "+ex.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	private static void respond( HttpExchange exchange, String type, String body ) throws IOException {
+		byte[] bytes = (body+"\n").getBytes( StandardCharsets.UTF_8 );
+		if( !"GET".equals(exchange.getRequestMethod()) ){
+			exchange.sendResponseHeaders( 405, -1 );
+			exchange.close();
+			return;
+		}
+		exchange.getResponseHeaders().set( "Content-Type", type );
+		exchange.sendResponseHeaders( 200, bytes.length );
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write( bytes );
+		}
+	}
+
+	/**
+	 * The failure of reading the input, as opposed to writing the checkpoint
+	 */
+	static class ReadException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ReadException( IOException cause ){
+			super( cause.getMessage(), cause );
+		}
+	}
+}
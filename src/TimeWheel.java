@@ -0,0 +1,288 @@
+package src;
+import java.util.*;
+
+/**
+ * <h1>TimeWheel</h1>
+ * Indexes graph edges by their time stamp in seconds so that the edges falling
+ * out of the time window can be found without scanning the live ones. Edges
+ * are small integer handles given by the caller, each time slot keeps a doubly
+ * linked list of its edges in plain arrays, so moving or expiring an edge does
+ * not allocate anything.
+ * <p>
+ * The wheel has a power of two number of slots, at least twice the period, so
+ * it can hold all the live time stamps (more recent than lastTime-period) and
+ * also the ones up to a period after lastTime, which happen when an existing
+ * edge is refreshed with a newer time stamp. Even newer time stamps are kept in
+ * an overflow list until the wheel catches up with them.
+ * <p>
+ * Several wheels can share their per-edge arrays, so an edge keeps a single
+ * time stamp while it moves from one wheel to another, as long as it is in at
+ * most one of them at a time.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param period The length of the time window in seconds
+ * @param now The latest time stamp the wheel has advanced to
+ * @param head The first edge of each slot
+ * @param tail The last edge of each slot
+ * @param occupied The bitmap of the non-empty slots, to skip the empty ones 64 at a time
+ * @param links The per-edge arrays, possibly shared with other wheels
+ */
+
+public class TimeWheel {
+	private static final int NONE = -1;
+
+	private final int period;
+	private final int mask;
+	private long now;
+	private final int[] head;
+	private final int[] tail;
+	private final long[] occupied;
+	private int overflowHead;
+	private int expiredHead;
+	private final Links links;
+	private int size;
+
+	/**
+	 * The constructor initializes the empty slots, the time starts at 0 as the
+	 * <code>PeriodGraph</code> does
+	 * @param period The length of the time window in seconds
+	 */
+	public TimeWheel( int period ){
+		this( period, new Links() );
+	}
+
+	/**
+	 * This constructor shares the per-edge arrays of another wheel, including
+	 * the time stamps of the edges
+	 * @param period The length of the time window in seconds
+	 * @param shared The wheel whose edge arrays are shared
+	 */
+	public TimeWheel( int period, TimeWheel shared ){
+		this( period, shared.links );
+	}
+
+	private TimeWheel( int period, Links links ){
+		if( period<=0 ) throw new IllegalArgumentException("The period must be positive: "+period);
+		this.period = period;
+		int slots = Integer.highestOneBit( 2*period-1 )<<1;
+		mask = slots-1;
+		now = 0;
+		head = new int[slots];
+		tail = new int[slots];
+		Arrays.fill( head, NONE );
+		Arrays.fill( tail, NONE );
+		occupied = new long[(slots+63)>>>6];
+		overflowHead = NONE;
+		expiredHead = NONE;
+		this.links = links;
+		size = 0;
+	}
+
+	/**
+	 * @return The number of edges in the wheel, including the expired ones
+	 * not polled yet
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return The latest time stamp the wheel has advanced to
+	 */
+	public long now(){
+		return now;
+	}
+
+	/**
+	 * @param edge The edge handle
+	 * @return The time stamp of the edge
+	 */
+	public long time( int edge ){
+		return links.time[edge];
+	}
+
+	/**
+	 * This method adds an edge with its time stamp, which must be more recent
+	 * than now-period. O(1)
+	 * @param edge The edge handle, not in the wheel yet
+	 * @param t The time stamp in seconds
+	 */
+	public void add( int edge, long t ){
+		links.ensureCapacity( edge );
+		links.time[edge] = t;
+		link( edge );
+		size++;
+	}
+
+	/**
+	 * This method moves an edge in the wheel to a new time stamp. O(1)
+	 * @param edge The edge handle, already in the wheel
+	 * @param t The new time stamp in seconds
+	 */
+	public void move( int edge, long t ){
+		unlink( edge );
+		links.time[edge] = t;
+		link( edge );
+	}
+
+	/**
+	 * This method removes an edge from the wheel. O(1)
+	 * @param edge The edge handle, already in the wheel
+	 */
+	public void remove( int edge ){
+		unlink( edge );
+		size--;
+	}
+
+	/**
+	 * This method advances the wheel to a new time stamp and collects the edges
+	 * which are period seconds or more older than it, to be taken one by one with
+	 * <code>pollExpired()</code>. Only the slots that fall out of the window are
+	 * visited and the empty ones are skipped through the bitmap, so a large jump
+	 * costs at most one pass over the bitmap.
+	 * @param t The new time stamp, nothing happens if it is not more recent than now
+	 */
+	public void advance( long t ){
+		if( t<=now ) return;
+		long cutoff = t-period;
+		long first = now-period+1; // The oldest time stamp which can be in a slot
+		long count = Math.min( t-now, (long)head.length );
+		int start = (int)(first & mask);
+		int end = (int)Math.min( (long)start+count, (long)head.length );
+		expireSlots( start, end );
+		if( start+count>head.length ) expireSlots( 0, (int)(start+count-head.length) );
+		now = t;
+
+		// The overflow edges closer than the wheel's horizon go to their slots now
+		int[] next = links.next;
+		long[] time = links.time;
+		int edge = overflowHead;
+		overflowHead = NONE;
+		while( edge!=NONE ){
+			int following = next[edge];
+			if( time[edge]<=cutoff ){
+				next[edge] = expiredHead;
+				expiredHead = edge;
+			} else link( edge );
+			edge = following;
+		}
+	}
+
+	/**
+	 * This method takes one of the edges expired by the last <code>advance()</code>
+	 * @return The expired edge handle, or -1 if there is no more
+	 */
+	public int pollExpired(){
+		int edge = expiredHead;
+		if( edge!=NONE ){
+			expiredHead = links.next[edge];
+			links.next[edge] = NONE;
+			links.prev[edge] = NONE;
+			size--;
+		}
+		return edge;
+	}
+
+	/**
+	 * This method moves all the edges of the occupied slots between start
+	 * (inclusive) and end (exclusive) to the expired list
+	 */
+	private void expireSlots( int start, int end ){
+		int slot = nextOccupied( start, end );
+		while( slot<end ){
+			links.next[tail[slot]] = expiredHead;
+			expiredHead = head[slot];
+			head[slot] = NONE;
+			tail[slot] = NONE;
+			occupied[slot>>>6] &= ~(1L<<slot);
+			slot = nextOccupied( slot+1, end );
+		}
+	}
+
+	/**
+	 * @return The first occupied slot between from (inclusive) and end
+	 * (exclusive), or end if there is none
+	 */
+	private int nextOccupied( int from, int end ){
+		if( from>=end ) return end;
+		int word = from>>>6;
+		long bits = occupied[word] & (-1L<<from);
+		while( bits==0 ){
+			word++;
+			if( (word<<6)>=end ) return end;
+			bits = occupied[word];
+		}
+		return Math.min( (word<<6)+Long.numberOfTrailingZeros(bits), end );
+	}
+
+	/**
+	 * This method puts an edge at the front of its slot, or of the overflow list
+	 * if its time stamp is beyond the wheel's horizon
+	 */
+	private void link( int edge ){
+		int[] next = links.next;
+		int[] prev = links.prev;
+		long[] time = links.time;
+		prev[edge] = NONE;
+		if( time[edge]-(now-period)>head.length ){
+			next[edge] = overflowHead;
+			if( overflowHead!=NONE ) prev[overflowHead] = edge;
+			overflowHead = edge;
+			return;
+		}
+		int slot = (int)(time[edge] & mask);
+		next[edge] = head[slot];
+		if( head[slot]!=NONE ) prev[head[slot]] = edge;
+		else {
+			tail[slot] = edge;
+			occupied[slot>>>6] |= 1L<<slot;
+		}
+		head[slot] = edge;
+	}
+
+	/**
+	 * This method takes an edge out of its slot or the overflow list
+	 */
+	private void unlink( int edge ){
+		int[] next = links.next;
+		int[] prev = links.prev;
+		long[] time = links.time;
+		int p = prev[edge];
+		int n = next[edge];
+		boolean overflow = time[edge]-(now-period)>head.length;
+		int slot = (int)(time[edge] & mask);
+		if( p!=NONE ) next[p] = n;
+		else if( overflow ) overflowHead = n;
+		else head[slot] = n;
+		if( n!=NONE ) prev[n] = p;
+		else if( !overflow ){
+			tail[slot] = p;
+			if( p==NONE ) occupied[slot>>>6] &= ~(1L<<slot);
+		}
+		prev[edge] = NONE;
+		next[edge] = NONE;
+	}
+
+	/**
+	 * The per-edge arrays: the next and previous edges in the same list and the
+	 * time stamp of each edge
+	 */
+	private static class Links {
+		int[] next = new int[16];
+		int[] prev = new int[16];
+		long[] time = new long[16];
+
+		/**
+		 * This method doubles the edge arrays until the handle fits
+		 */
+		void ensureCapacity( int edge ){
+			if( edge<next.length ) return;
+			int n = next.length;
+			while( n<=edge ) n <<= 1;
+			next = Arrays.copyOf( next, n );
+			prev = Arrays.copyOf( prev, n );
+			time = Arrays.copyOf( time, n );
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package src;
+import java.nio.ByteBuffer;
+
+/**
+ * <h1>TimestampDecoder</h1>
+ * Decodes the created_time field in the fixed format yyyy-MM-ddTHH:mm:ssZ
+ * (UTC) to epoch seconds with plain arithmetic on the characters or bytes,
+ * so nothing is allocated and no exception is thrown. The format is checked
+ * strictly: every digit and separator must be in place and the date and time
+ * must exist (no 30th of February, no 24 o'clock). Transactions of the same
+ * day are common, so the epoch day of the last date is cached.
+ * <p>
+ * An instance is not thread-safe because of that cache, but it is small, so
+ * every thread can have its own.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param cachedDate The last date decoded, as yyyyMMdd
+ * @param cachedDay The epoch day of the cached date
+ * @param chars The buffer used to decode a <code>CharSequence</code>
+ */
+
+public class TimestampDecoder {
+	/** The value returned for a time stamp which is not valid */
+	public static final long INVALID = Long.MIN_VALUE;
+	/** The length of yyyy-MM-ddTHH:mm:ssZ */
+	public static final int LENGTH = 20;
+
+	private int cachedDate;
+	private long cachedDay;
+	private final ByteBuffer chars;
+
+	/**
+	 * The constructor initializes an empty cache
+	 */
+	public TimestampDecoder(){
+		cachedDate = -1;
+		cachedDay = 0;
+		chars = ByteBuffer.allocate( LENGTH );
+	}
+
+	/**
+	 * @param time The time stamp string
+	 * @return The epoch seconds, or <code>INVALID</code>
+	 */
+	public long decode( CharSequence time ){
+		if( time==null || time.length()!=LENGTH ) return INVALID;
+		for( int i=0; i<LENGTH; i++ ){
+			char c = time.charAt(i);
+			if( c>0x7f ) return INVALID;
+			chars.put( i, (byte)c );
+		}
+		return decode( chars, 0, LENGTH );
+	}
+
+	/**
+	 * @param buf The buffer holding the time stamp as ASCII bytes, its position
+	 * and limit are not used
+	 * @param start The absolute index of the first byte
+	 * @param end The absolute index after the last byte
+	 * @return The epoch seconds, or <code>INVALID</code>
+	 */
+	public long decode( ByteBuffer buf, int start, int end ){
+		if( end-start!=LENGTH ) return INVALID;
+		if( buf.get(start+4)!='-' || buf.get(start+7)!='-' || buf.get(start+10)!='T'
+				|| buf.get(start+13)!=':' || buf.get(start+16)!=':' || buf.get(start+19)!='Z' ) return INVALID;
+		int year = digits( buf, start, 4 );
+		int month = digits( buf, start+5, 2 );
+		int day = digits( buf, start+8, 2 );
+		int hour = digits( buf, start+11, 2 );
+		int minute = digits( buf, start+14, 2 );
+		int second = digits( buf, start+17, 2 );
+		// A non-digit makes its field negative
+		if( (year|month|day|hour|minute|second)<0 ) return INVALID;
+		if( hour>23 || minute>59 || second>59 ) return INVALID;
+
+		int date = (year*100+month)*100+day;
+		if( date!=cachedDate ){
+			if( month<1 || month>12 || day<1 || day>daysInMonth(year, month) ) return INVALID;
+			cachedDay = epochDay( year, month, day );
+			cachedDate = date;
+		}
+		return cachedDay*86400L+hour*3600+minute*60+second;
+	}
+
+	/**
+	 * @return The value of n decimal digits, or a negative number if one of
+	 * them is not a digit
+	 */
+	private static int digits( ByteBuffer buf, int pos, int n ){
+		int value = 0;
+		for( int i=pos; i<pos+n; i++ ){
+			int d = buf.get(i)-'0';
+			if( d<0 || d>9 ) return -1;
+			value = value*10+d;
+		}
+		return value;
+	}
+
+	private static int daysInMonth( int year, int month ){
+		if( month==2 ) return (year%4==0 && (year%100!=0 || year%400==0)) ? 29 : 28;
+		return (month==4 || month==6 || month==9 || month==11) ? 30 : 31;
+	}
+
+	/**
+	 * This method counts the days since 1970-01-01 of a proleptic Gregorian date,
+	 * with the years starting in March so the leap day is the last of its year
+	 */
+	private static long epochDay( int year, int month, int day ){
+		int y = month<=2 ? year-1 : year;
+		int era = Math.floorDiv( y, 400 );
+		int yearOfEra = y-era*400;
+		int dayOfYear = (153*(month+(month>2 ? -3 : 9))+2)/5+day-1;
+		int dayOfEra = yearOfEra*365+yearOfEra/4-yearOfEra/100+dayOfYear;
+		return era*146097L+dayOfEra-719468;
+	}
+}
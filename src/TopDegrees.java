@@ -0,0 +1,157 @@
+package src;
+import java.util.*;
+
+/**
+ * <h1>TopDegrees</h1>
+ * Keeps the vertice with at least one edge in buckets by degree, to list the
+ * highest degrees at any time. A bucket is a doubly linked list of its
+ * vertice, and the non-empty buckets are themselves linked in degree order.
+ * A degree only ever changes by one, so the bucket a vertex moves to is next
+ * to its old bucket in that order and a change costs O(1). Listing the top K
+ * vertice walks down from the highest bucket and costs O(K).
+ * <p>
+ * The vertice of the same degree are listed from the last one to reach it.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param head The first vertex of the bucket of each degree, -1 if it is empty
+ * @param higher The next higher non-empty degree of each non-empty degree, 0 if none
+ * @param lower The next lower non-empty degree of each non-empty degree, 0 if
+ * none; degree 0 is the bottom of the list and its higher degree is the lowest one
+ * @param top The highest non-empty degree, 0 if all are empty
+ * @param next The next vertex of each vertex in its bucket, -1 at the end
+ * @param prev The previous vertex of each vertex in its bucket, -1 at the head
+ */
+
+public class TopDegrees {
+	private int[] head;
+	private int[] higher;
+	private int[] lower;
+	private int top;
+	private int[] next;
+	private int[] prev;
+
+	/**
+	 * The constructor initializes the empty buckets
+	 */
+	public TopDegrees(){
+		head = new int[16];
+		higher = new int[16];
+		lower = new int[16];
+		Arrays.fill( head, -1 );
+		top = 0;
+		next = new int[16];
+		prev = new int[16];
+	}
+
+	/**
+	 * This method moves a vertex from its bucket to the next higher one
+	 * @param vertex The vertex ID
+	 * @param degree The degree of the vertex before the change, 0 if it had no edge
+	 */
+	public void increment( int vertex, int degree ){
+		move( vertex, degree, degree+1 );
+	}
+
+	/**
+	 * This method moves a vertex from its bucket to the next lower one, out of
+	 * all buckets if the new degree is 0
+	 * @param vertex The vertex ID
+	 * @param degree The positive degree of the vertex before the change
+	 */
+	public void decrement( int vertex, int degree ){
+		move( vertex, degree, degree-1 );
+	}
+
+	/**
+	 * This method lists the vertice with the highest degrees
+	 * @param k The maximum number of vertice to list
+	 * @param vertices The IDs of the listed vertice, at least k long
+	 * @param degrees The degrees of the listed vertice, at least k long
+	 * @return The number of listed vertice, less than k if fewer have an edge
+	 */
+	public int top( int k, int[] vertices, int[] degrees ){
+		int n = 0;
+		for( int degree=top; degree>0 && n<k; degree=lower[degree] ){
+			for( int vertex=head[degree]; vertex>=0 && n<k; vertex=next[vertex] ){
+				vertices[n] = vertex;
+				degrees[n] = degree;
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return The highest degree, 0 if no vertex has an edge
+	 */
+	public int maxDegree(){
+		return top;
+	}
+
+	/**
+	 * This method moves a vertex between two adjacent degrees, linking the new
+	 * bucket next to the old one before the old one may be unlinked
+	 */
+	private void move( int vertex, int from, int to ){
+		if( to>0 ){
+			ensureDegree( to );
+			if( head[to]<0 ){
+				if( to>from ){
+					// Between the old degree, or the bottom, and its next higher one
+					higher[to] = higher[from];
+					lower[to] = from;
+					if( higher[from]>0 ) lower[higher[from]] = to;
+					else top = to;
+					higher[from] = to;
+				} else {
+					// Between the next lower degree, or the bottom, and the old degree
+					lower[to] = lower[from];
+					higher[to] = from;
+					higher[lower[from]] = to;
+					lower[from] = to;
+				}
+			}
+		}
+		if( from>0 ){
+			int p = prev[vertex];
+			int n = next[vertex];
+			if( p>=0 ) next[p] = n;
+			else head[from] = n;
+			if( n>=0 ) prev[n] = p;
+			if( head[from]<0 ){
+				higher[lower[from]] = higher[from];
+				if( higher[from]>0 ) lower[higher[from]] = lower[from];
+				else top = lower[from];
+			}
+		}
+		if( to>0 ){
+			ensureVertex( vertex );
+			int first = head[to];
+			next[vertex] = first;
+			prev[vertex] = -1;
+			if( first>=0 ) prev[first] = vertex;
+			head[to] = vertex;
+		}
+	}
+
+	private void ensureDegree( int degree ){
+		int length = head.length;
+		if( degree<length ) return;
+		int n = length;
+		while( n<=degree ) n <<= 1;
+		head = Arrays.copyOf( head, n );
+		Arrays.fill( head, length, n, -1 );
+		higher = Arrays.copyOf( higher, n );
+		lower = Arrays.copyOf( lower, n );
+	}
+
+	private void ensureVertex( int vertex ){
+		int length = next.length;
+		if( vertex<length ) return;
+		int n = length;
+		while( n<=vertex ) n <<= 1;
+		next = Arrays.copyOf( next, n );
+		prev = Arrays.copyOf( prev, n );
+	}
+}
@@ -0,0 +1,70 @@
+package src;
+
+/**
+ * <h1>TransactionBatch</h1>
+ * A reusable batch of parsed transactions in primitive arrays, handed between
+ * the pipeline stages: the parser fills the records, the graph stage fills
+ * the results and the writer outputs them. The arrays are allocated once, so a
+ * recycled batch costs nothing.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param status The <code>TransactionParser</code> status of each record
+ * @param actor The actor ID of each record
+ * @param target The target ID of each record
+ * @param time The created_time in seconds of each record
+ * @param line The 1-based input line number of each record
+ * @param accepted If the graph accepted each record, i.e. if it has an output
+ * @param median The median after each accepted record
+ * @param size The number of records in the batch
+ * @param last If this is the empty batch marking the end of the input
+ */
+
+public class TransactionBatch {
+	public final int[] status;
+	public final int[] actor;
+	public final int[] target;
+	public final long[] time;
+	public final long[] line;
+	public final boolean[] accepted;
+	public final double[] median;
+	public int size;
+	public boolean last;
+
+	/**
+	 * @param capacity The maximum number of records
+	 */
+	public TransactionBatch( int capacity ){
+		status = new int[capacity];
+		actor = new int[capacity];
+		target = new int[capacity];
+		time = new long[capacity];
+		line = new long[capacity];
+		accepted = new boolean[capacity];
+		median = new double[capacity];
+		size = 0;
+		last = false;
+	}
+
+	/**
+	 * @return The maximum number of records
+	 */
+	public int capacity(){
+		return actor.length;
+	}
+
+	/**
+	 * @return If there is no room for another record
+	 */
+	public boolean isFull(){
+		return size==actor.length;
+	}
+
+	/**
+	 * This method empties the batch to be filled again
+	 */
+	public void clear(){
+		size = 0;
+		last = false;
+	}
+}
@@ -0,0 +1,232 @@
+package src;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * <h1>TransactionLogReader</h1>
+ * Replays a binary log of <code>TransactionLogWriter</code> line by line, as
+ * <code>TransactionReader</code> reads the JSON input it was converted from.
+ * A block is read whole and its columns decoded into arrays before its first
+ * line is returned. The names of a block are interned into the dictionary
+ * given, and the IDs of the log are mapped to the ones of the dictionary, so a
+ * dictionary which already holds names can be used too.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param channel The channel of the log
+ * @param dictionary The <code>VertexDictionary</code> to intern the names
+ * @param ids The dictionary ID of each log ID
+ * @param block The bytes of the current block
+ * @param index The index in the block of the current line
+ */
+
+public class TransactionLogReader implements TransactionSource {
+	private final FileChannel channel;
+	private final long fileSize;
+	private long position;
+	private final VertexDictionary dictionary;
+	private int[] ids;
+	private int names;
+	private long lastTime;
+
+	private ByteBuffer block;
+	private int offset;
+	private int records;
+	private int index;
+	private int[] skipped;
+	private int[] reasons;
+	private int skippedCount;
+	private int nextSkipped;
+	private final long[] times;
+	private final int[] actors;
+	private final int[] targets;
+	private int transaction;
+
+	private int status;
+	private int actor;
+	private int target;
+	private long time;
+	private long lineNumber;
+	private GraphMetrics metrics;
+
+	/**
+	 * @param path The path of the log
+	 * @param dictionary The <code>VertexDictionary</code> to intern the names
+	 * @throws IOException if the file cannot be opened or is not a log
+	 */
+	public TransactionLogReader( Path path, VertexDictionary dictionary ) throws IOException {
+		channel = FileChannel.open( path, StandardOpenOption.READ );
+		fileSize = channel.size();
+		this.dictionary = dictionary;
+		ByteBuffer header = read( 0, 8 );
+		if( header.getInt()!=TransactionLogWriter.MAGIC ){
+			channel.close();
+			throw new IOException(path+" is not a transaction log");
+		}
+		int blockRecords = header.getInt();
+		position = 8;
+		ids = new int[1024];
+		skipped = new int[16];
+		reasons = new int[16];
+		times = new long[blockRecords];
+		actors = new int[blockRecords];
+		targets = new int[blockRecords];
+		block = ByteBuffer.allocate( 1<<16 );
+	}
+
+	/**
+	 * @param path The path of a file
+	 * @return If the file starts as a transaction log
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isLog( Path path ) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer head = ByteBuffer.allocate( 4 );
+			while( head.hasRemaining() && channel.read(head, head.position())>=0 );
+			return !head.hasRemaining() && head.getInt(0)==TransactionLogWriter.MAGIC;
+		}
+	}
+
+	@Override
+	public void setMetrics( GraphMetrics metrics ){
+		this.metrics = metrics;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if( index==records ){
+			if( position>=fileSize ) return false;
+			readBlock();
+		}
+		if( index==nextSkipped ){
+			skip( reasons[skippedCount-1] );
+			skippedCount--;
+			nextSkipped = skippedCount>0 ? skipped[skippedCount-1] : -1;
+		} else {
+			status = TransactionParser.VALID;
+			actor = actors[transaction];
+			target = targets[transaction];
+			time = times[transaction];
+			transaction++;
+		}
+		index++;
+		lineNumber++;
+		return true;
+	}
+
+	@Override
+	public int status(){
+		return status;
+	}
+
+	@Override
+	public int actor(){
+		return actor;
+	}
+
+	@Override
+	public int target(){
+		return target;
+	}
+
+	@Override
+	public long time(){
+		return time;
+	}
+
+	@Override
+	public long lineNumber(){
+		return lineNumber;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * This method reads the next block and decodes its columns
+	 */
+	private void readBlock() throws IOException {
+		int length = read( position, 4 ).getInt();
+		if( length<0 || position+4+length>fileSize ) throw new IOException("The transaction log is truncated at byte "+position);
+		if( length>block.capacity() ) block = ByteBuffer.allocate( Math.max(length, block.capacity()*2) );
+		block.clear().limit( length );
+		while( block.hasRemaining() ) channel.read( block, position+4+block.position() );
+		position += 4+length;
+		offset = 0;
+
+		records = (int)varint();
+		int newNames = (int)varint();
+		for( int i=0; i<newNames; i++ ){
+			int nameLength = (int)varint();
+			if( names==ids.length ) ids = Arrays.copyOf( ids, names*2 );
+			ids[names++] = dictionary.intern( block, offset, nameLength );
+			offset += nameLength;
+		}
+		// The skipped indexes are kept in reverse order, the next one at the end
+		skippedCount = (int)varint();
+		if( skippedCount>skipped.length ){
+			skipped = new int[Math.max(skippedCount, skipped.length*2)];
+			reasons = new int[skipped.length];
+		}
+		int skippedIndex = 0;
+		for( int i=skippedCount-1; i>=0; i-- ){
+			skippedIndex += (int)varint();
+			skipped[i] = skippedIndex;
+			reasons[i] = (int)varint();
+		}
+		nextSkipped = skippedCount>0 ? skipped[skippedCount-1] : -1;
+		int count = records-skippedCount;
+		for( int i=0; i<count; i++ ){
+			long delta = varint();
+			lastTime += (delta>>>1)^-(delta & 1);
+			times[i] = lastTime;
+		}
+		for( int i=0; i<count; i++ ) actors[i] = ids[(int)varint()];
+		for( int i=0; i<count; i++ ) targets[i] = ids[(int)varint()];
+		index = 0;
+		transaction = 0;
+	}
+
+	/**
+	 * This method gives a line without a transaction the status and fields it
+	 * had when it was parsed, so the parser or the graph rejects and counts it
+	 * for the same reason as on the JSON input
+	 */
+	private void skip( int reason ) throws IOException {
+		status = reason<=TransactionParser.MISSING_FIELD ? reason : TransactionParser.VALID;
+		actor = reason==TransactionLogWriter.MISSING_NAME ? -1 : 0;
+		target = reason==TransactionLogWriter.INVALID_TIME ? 1 : actor;
+		time = PeriodGraph.INVALID_TIME;
+		if( reason==TransactionParser.MALFORMED ){
+			if( metrics!=null ) metrics.malformed.increment();
+		} else if( reason==TransactionParser.MISSING_FIELD ){
+			if( metrics!=null ) metrics.missingField.increment();
+		} else if( reason<TransactionLogWriter.MISSING_NAME || reason>TransactionLogWriter.INVALID_TIME )
+			throw new IOException("Unknown reason "+reason+" of a line without a transaction at line "+(lineNumber+1));
+	}
+
+	private long varint() throws IOException {
+		long value = 0;
+		for( int shift=0; shift<64; shift+=7 ){
+			if( offset>=block.limit() ) throw new IOException("A block of the transaction log is truncated");
+			byte b = block.get( offset++ );
+			value |= (long)(b & 0x7F)<<shift;
+			if( b>=0 ) return value;
+		}
+		throw new IOException("A varint of the transaction log is too long");
+	}
+
+	private ByteBuffer read( long at, int n ) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate( n );
+		while( buf.hasRemaining() )
+			if( channel.read(buf, at+buf.position())<0 ) throw new IOException("The transaction log is truncated at byte "+at);
+		buf.flip();
+		return buf;
+	}
+}
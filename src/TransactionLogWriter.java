@@ -0,0 +1,211 @@
+package src;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * <h1>TransactionLogWriter</h1>
+ * Writes the transactions of a JSON input as a compact binary log, replayed
+ * by <code>TransactionLogReader</code> without parsing any JSON. The log keeps
+ * one entry per input line, so the line numbers and the medians of a replay
+ * are the ones of the JSON input, and the names in the order they were
+ * interned, so the persons get the same IDs.
+ * <p>
+ * The log starts with <code>int magic "VTL2", int records per block</code> in
+ * big-endian, followed by blocks of up to that many lines. A block is an
+ * <code>int</code> length of the rest of the block, then unsigned LEB128
+ * varints, each section one column of the block:
+ * <pre>
+ * records        the number of lines in the block
+ * names          the number of names first interned in the block, then each
+ *                as its UTF-8 length and bytes, in ID order
+ * skipped        the number of lines without a transaction, then for each the
+ *                gap from the index of the one before and its reason: the
+ *                <code>TransactionParser</code> status, or one of
+ *                <code>MISSING_NAME</code>, <code>SAME_PERSON</code> and
+ *                <code>INVALID_TIME</code> for a line rejected by the graph
+ * times          the time stamp of each transaction, zigzag encoded as the
+ *                difference with the one before, across the blocks
+ * actors         the actor ID of each transaction
+ * targets        the target ID of each transaction
+ * </pre>
+ * A transaction of known persons at a few seconds from the last one takes
+ * about five bytes, against about 90 for its JSON line.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param out The output stream of the log
+ * @param dictionary The <code>VertexDictionary</code> of the IDs appended
+ * @param blockRecords The maximum number of lines in a block
+ * @param namesWritten The number of names of the dictionary already written
+ * @param lastTime The time stamp of the last transaction written
+ */
+
+public class TransactionLogWriter implements Closeable {
+	/** The first four bytes of a log, "VTL2" */
+	public static final int MAGIC = 0x56544c32;
+	/** The default number of lines in a block */
+	public static final int BLOCK_RECORDS = 4096;
+	/** The reason of a valid line with an empty name */
+	public static final int MISSING_NAME = 3;
+	/** The reason of a valid line of the same person with an invalid time */
+	public static final int SAME_PERSON = 4;
+	/** The reason of a valid line with an invalid time */
+	public static final int INVALID_TIME = 5;
+
+	private final DataOutputStream out;
+	private final VertexDictionary dictionary;
+	private final int blockRecords;
+	private int namesWritten;
+	private long lastTime;
+	private long bytes;
+
+	// The lines of the current block
+	private int records;
+	private int[] skipped;
+	private int[] reasons;
+	private int skippedCount;
+	private final long[] time;
+	private final int[] actor;
+	private final int[] target;
+	private int count;
+	private byte[] block;
+	private int length;
+
+	/**
+	 * @param path The path of the log, replaced if it exists
+	 * @param dictionary The <code>VertexDictionary</code> of the IDs appended
+	 * @param blockRecords The maximum number of lines in a block
+	 * @throws IOException if the file cannot be created
+	 */
+	public TransactionLogWriter( Path path, VertexDictionary dictionary, int blockRecords ) throws IOException {
+		if( blockRecords<=0 ) throw new IllegalArgumentException("The number of records in a block must be positive: "+blockRecords);
+		this.dictionary = dictionary;
+		this.blockRecords = blockRecords;
+		out = new DataOutputStream( new BufferedOutputStream(Files.newOutputStream(path), 1<<16) );
+		out.writeInt( MAGIC );
+		out.writeInt( blockRecords );
+		bytes = 8;
+		skipped = new int[16];
+		reasons = new int[16];
+		time = new long[blockRecords];
+		actor = new int[blockRecords];
+		target = new int[blockRecords];
+		block = new byte[1<<16];
+	}
+
+	/**
+	 * This method converts a JSON input file, plain or gzip-compressed, to a log
+	 * @param input The path of the JSON input
+	 * @param output The path of the log
+	 * @param blockRecords The maximum number of lines in a block
+	 * @return The size of the log in bytes
+	 * @throws IOException if the input cannot be read or the log cannot be written
+	 */
+	public static long convert( Path input, Path output, int blockRecords ) throws IOException {
+		VertexDictionary dictionary = new VertexDictionary();
+		TransactionLogWriter log;
+		try (TransactionReader reader = new TransactionReader(input, dictionary);
+				TransactionLogWriter writer = new TransactionLogWriter(output, dictionary, blockRecords)) {
+			while( reader.next() ) writer.append( reader.status(), reader.actor(), reader.target(), reader.time() );
+			log = writer;
+		}
+		return log.bytes();
+	}
+
+	/**
+	 * This method appends one input line
+	 * @param status The <code>TransactionParser</code> status of the line
+	 * @param actor The actor ID, from the dictionary of this log, negative if empty
+	 * @param target The target ID, from the dictionary of this log, negative if empty
+	 * @param timeInSeconds The time stamp in seconds, or <code>PeriodGraph.INVALID_TIME</code>
+	 * @throws IOException if the log cannot be written
+	 */
+	public void append( int status, int actor, int target, long timeInSeconds ) throws IOException {
+		int reason = status!=TransactionParser.VALID ? status
+				: actor<0 || target<0 ? MISSING_NAME
+				: timeInSeconds!=PeriodGraph.INVALID_TIME ? TransactionParser.VALID
+				: actor==target ? SAME_PERSON : INVALID_TIME;
+		if( reason!=TransactionParser.VALID ){
+			if( skippedCount==skipped.length ){
+				skipped = Arrays.copyOf( skipped, skippedCount*2 );
+				reasons = Arrays.copyOf( reasons, skippedCount*2 );
+			}
+			reasons[skippedCount] = reason;
+			skipped[skippedCount++] = records;
+		} else {
+			this.time[count] = timeInSeconds;
+			this.actor[count] = actor;
+			this.target[count] = target;
+			count++;
+		}
+		if( ++records==blockRecords ) writeBlock();
+	}
+
+	/**
+	 * @return The number of bytes written so far
+	 */
+	public long bytes(){
+		return bytes;
+	}
+
+	/**
+	 * This method writes the last block and closes the log, it can be called again
+	 */
+	@Override
+	public void close() throws IOException {
+		if( records>0 ) writeBlock();
+		out.close();
+	}
+
+	private void writeBlock() throws IOException {
+		length = 0;
+		putVarint( records );
+		int names = dictionary.size();
+		putVarint( names-namesWritten );
+		for( int id=namesWritten; id<names; id++ ){
+			byte[] name = dictionary.name( id ).getBytes( StandardCharsets.UTF_8 );
+			putVarint( name.length );
+			ensure( name.length );
+			System.arraycopy( name, 0, block, length, name.length );
+			length += name.length;
+		}
+		namesWritten = names;
+		putVarint( skippedCount );
+		int previous = 0;
+		for( int i=0; i<skippedCount; i++ ){
+			putVarint( skipped[i]-previous );
+			putVarint( reasons[i] );
+			previous = skipped[i];
+		}
+		for( int i=0; i<count; i++ ){
+			long delta = time[i]-lastTime;
+			putVarint( (delta<<1)^(delta>>63) );
+			lastTime = time[i];
+		}
+		for( int i=0; i<count; i++ ) putVarint( actor[i] );
+		for( int i=0; i<count; i++ ) putVarint( target[i] );
+
+		out.writeInt( length );
+		out.write( block, 0, length );
+		bytes += 4+length;
+		records = 0;
+		skippedCount = 0;
+		count = 0;
+	}
+
+	private void putVarint( long value ){
+		ensure( 10 );
+		while( (value & ~0x7FL)!=0 ){
+			block[length++] = (byte)((value & 0x7F)|0x80);
+			value >>>= 7;
+		}
+		block[length++] = (byte)value;
+	}
+
+	private void ensure( int n ){
+		if( length+n>block.length ) block = Arrays.copyOf( block, Math.max(block.length*2, length+n) );
+	}
+}
@@ -0,0 +1,450 @@
+package src;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>TransactionParser</h1>
+ * Parses one JSON line of the code challenge directly from its UTF-8 bytes in
+ * a <code>ByteBuffer</code>. Only the <code>actor</code>, <code>target</code>
+ * and <code>created_time</code> string values are kept, the other values are
+ * skipped. The person names are interned through the
+ * <code>VertexDictionary</code> straight from the buffer, so parsing a line of
+ * known persons allocates nothing. Values with escape sequences are unescaped
+ * into a reused scratch buffer first, so an escaped and a plain spelling of
+ * the same name are the same person.
+ * <p>
+ * Without a dictionary, or with <code>setHashing()</code>, the names are also
+ * hashed by <code>SketchGraph.hash()</code>. Without a dictionary nothing is
+ * interned and the IDs are 0, so the memory does not grow with the names.
+ * <p>
+ * With <code>setKeyField()</code> one more top-level field, a string or a
+ * number, is the key of the line: it is interned into its own dictionary,
+ * and a line without it is missing a field.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param dictionary The <code>VertexDictionary</code> to intern the names, or
+ * null to only hash them
+ * @param hashing If the names are hashed
+ * @param actor The actor ID of the last parsed line
+ * @param target The target ID of the last parsed line
+ * @param time The created_time in seconds of the last parsed line
+ * @param decoder The <code>TimestampDecoder</code> of the created_time
+ * @param metrics The optional <code>GraphMetrics</code> of the parse and decode stages
+ * @param keyField The name of the key field, or null
+ * @param keys The <code>VertexDictionary</code> of the key values
+ */
+
+public class TransactionParser {
+	/** The line is a transaction with all three fields */
+	public static final int VALID = 0;
+	/** The line is not a JSON object */
+	public static final int MALFORMED = 1;
+	/** At least one of the three fields, or the key field, is missing, null or empty */
+	public static final int MISSING_FIELD = 2;
+
+	private static final byte[] ACTOR = { 'a', 'c', 't', 'o', 'r' };
+	private static final byte[] TARGET = { 't', 'a', 'r', 'g', 'e', 't' };
+	private static final byte[] CREATED_TIME = { 'c', 'r', 'e', 'a', 't', 'e', 'd', '_', 't', 'i', 'm', 'e' };
+
+	private final VertexDictionary dictionary;
+	private boolean hashing;
+	private int actor;
+	private int target;
+	private long actorHash;
+	private long targetHash;
+	private long hash;
+	private long time;
+	private final TimestampDecoder decoder;
+	private byte[] keyField;
+	private VertexDictionary keys;
+	private int key;
+
+	// The value slices found in the current line: start, end and if it has escapes
+	private int actorStart, actorEnd, targetStart, targetEnd, timeStart, timeEnd, keyValueStart, keyValueEnd;
+	private boolean actorEscaped, targetEscaped, timeEscaped, keyValueEscaped;
+	// Set by scanString() for the string just scanned
+	private boolean escaped;
+	private byte[] scratch;
+	private ByteBuffer scratchBuf;
+	private GraphMetrics metrics;
+	private int ticks;
+	private boolean timed;
+
+	/**
+	 * @param dictionary The <code>VertexDictionary</code> to intern the names,
+	 * or null to only hash them
+	 */
+	public TransactionParser( VertexDictionary dictionary ){
+		this.dictionary = dictionary;
+		hashing = dictionary==null;
+		decoder = new TimestampDecoder();
+		scratch = new byte[256];
+		scratchBuf = ByteBuffer.wrap( scratch );
+	}
+
+	/**
+	 * @return The actor ID of the last valid line
+	 */
+	public int actor(){
+		return actor;
+	}
+
+	/**
+	 * @return The target ID of the last valid line
+	 */
+	public int target(){
+		return target;
+	}
+
+	/**
+	 * @return The hash of the actor name of the last valid line, if the names are hashed
+	 */
+	public long actorHash(){
+		return actorHash;
+	}
+
+	/**
+	 * @return The hash of the target name of the last valid line, if the names are hashed
+	 */
+	public long targetHash(){
+		return targetHash;
+	}
+
+	/**
+	 * This method makes the parser hash the names as well as interning them
+	 * @param hashing If the names are hashed, always true without a dictionary
+	 */
+	public void setHashing( boolean hashing ){
+		this.hashing = hashing || dictionary==null;
+	}
+
+	/**
+	 * This method makes the parser read one more field of every line as its key
+	 * @param name The name of the key field, or null to stop reading it
+	 * @param keys The <code>VertexDictionary</code> to intern the key values
+	 * @throws IllegalArgumentException if the name is one of the transaction fields
+	 */
+	public void setKeyField( String name, VertexDictionary keys ){
+		if( name!=null && (name.equals("actor") || name.equals("target") || name.equals("created_time")) )
+			throw new IllegalArgumentException("The key field cannot be a transaction field: "+name);
+		keyField = name==null ? null : name.getBytes( StandardCharsets.UTF_8 );
+		this.keys = keys;
+	}
+
+	/**
+	 * @return The key ID of the last valid line, if there is a key field
+	 */
+	public int key(){
+		return key;
+	}
+
+	/**
+	 * @return The created_time in seconds of the last valid line, or
+	 * <code>TimestampDecoder.INVALID</code> if it is not a valid time stamp
+	 */
+	public long time(){
+		return time;
+	}
+
+	/**
+	 * This method makes the parser record its statuses and latencies
+	 * @param metrics The <code>GraphMetrics</code>, or null to stop recording
+	 */
+	public void setMetrics( GraphMetrics metrics ){
+		this.metrics = metrics;
+		timed = false;
+	}
+
+	/**
+	 * This method parses one line. The line is scanned once, the keys are matched
+	 * at the top level of the object only, and a repeated key keeps its last value.
+	 * @param buf The buffer holding the line, its position and limit are not used
+	 * @param start The absolute index of the first byte of the line
+	 * @param end The absolute index after the last byte of the line, without the newline
+	 * @return <code>VALID</code>, <code>MALFORMED</code> or <code>MISSING_FIELD</code>
+	 */
+	public int parse( ByteBuffer buf, int start, int end ){
+		if( metrics==null ) return parseLine( buf, start, end );
+		timed = metrics.sampled( ticks++ );
+		long begin = timed ? System.nanoTime() : 0;
+		int status = parseLine( buf, start, end );
+		if( timed ){
+			metrics.stage( GraphMetrics.PARSE ).record( System.nanoTime()-begin );
+			timed = false;
+		}
+		if( status==MALFORMED ) metrics.malformed.increment();
+		else if( status==MISSING_FIELD ) metrics.missingField.increment();
+		return status;
+	}
+
+	private int parseLine( ByteBuffer buf, int start, int end ){
+		actorStart = targetStart = timeStart = keyValueStart = -1;
+		int pos = skipSpaces( buf, start, end );
+		if( pos>=end || buf.get(pos)!='{' ) return MALFORMED;
+		pos = skipSpaces( buf, pos+1, end );
+		if( pos<end && buf.get(pos)=='}' ) pos++;
+		else while( true ){
+			if( pos>=end || buf.get(pos)!='"' ) return MALFORMED;
+			int keyStart = pos+1;
+			int keyEnd = scanString( buf, pos, end );
+			if( keyEnd<0 ) return MALFORMED;
+			boolean keyEscaped = escaped;
+			pos = skipSpaces( buf, keyEnd+1, end );
+			if( pos>=end || buf.get(pos)!=':' ) return MALFORMED;
+			pos = skipSpaces( buf, pos+1, end );
+			if( pos>=end ) return MALFORMED;
+
+			int field = keyEscaped ? fieldOf( scratchBuf, 0, unescape(buf, keyStart, keyEnd) )
+					: fieldOf( buf, keyStart, keyEnd-keyStart );
+			if( buf.get(pos)=='"' ){
+				int valueEnd = scanString( buf, pos, end );
+				if( valueEnd<0 ) return MALFORMED;
+				if( field==1 ){ actorStart = pos+1; actorEnd = valueEnd; actorEscaped = escaped; }
+				else if( field==2 ){ targetStart = pos+1; targetEnd = valueEnd; targetEscaped = escaped; }
+				else if( field==3 ){ timeStart = pos+1; timeEnd = valueEnd; timeEscaped = escaped; }
+				else if( field==4 ){ keyValueStart = pos+1; keyValueEnd = valueEnd; keyValueEscaped = escaped; }
+				pos = valueEnd+1;
+			} else {
+				int valueEnd = skipValue( buf, pos, end );
+				if( valueEnd<0 ) return MALFORMED;
+				// A null field is the same as a missing one, other types are not a transaction
+				if( field!=0 ){
+					if( valueEnd-pos==4 && buf.get(pos)=='n' ){
+						if( field==1 ) actorStart = -1;
+						else if( field==2 ) targetStart = -1;
+						else if( field==3 ) timeStart = -1;
+						else keyValueStart = -1;
+					} else if( field==4 && buf.get(pos)!='{' && buf.get(pos)!='[' ){
+						// A number or a boolean key is taken as it is written
+						keyValueStart = pos; keyValueEnd = valueEnd; keyValueEscaped = false;
+					} else return MALFORMED;
+				}
+				pos = valueEnd;
+			}
+
+			pos = skipSpaces( buf, pos, end );
+			if( pos>=end ) return MALFORMED;
+			byte c = buf.get(pos);
+			if( c=='}' ){ pos++; break; }
+			if( c!=',' ) return MALFORMED;
+			pos = skipSpaces( buf, pos+1, end );
+		}
+		if( skipSpaces(buf, pos, end)<end ) return MALFORMED;
+
+		if( actorStart<0 || actorStart==actorEnd || targetStart<0 || targetStart==targetEnd
+				|| timeStart<0 || timeStart==timeEnd ) return MISSING_FIELD;
+		if( keyField!=null ){
+			if( keyValueStart<0 || keyValueStart==keyValueEnd ) return MISSING_FIELD;
+			key = internKey( buf, keyValueStart, keyValueEnd, keyValueEscaped );
+			if( key<0 ) return MALFORMED;
+		}
+		actor = intern( buf, actorStart, actorEnd, actorEscaped );
+		actorHash = hash;
+		target = intern( buf, targetStart, targetEnd, targetEscaped );
+		targetHash = hash;
+		if( actor<0 || target<0 ) return MALFORMED;
+		time = toSeconds( buf, timeStart, timeEnd, timeEscaped );
+		return VALID;
+	}
+
+	/**
+	 * This method interns a name value, unescaping it first if needed, and
+	 * hashes it into <code>hash</code> if the names are hashed
+	 * @return The vertex ID, 0 without a dictionary, or -1 if the escapes are not valid
+	 */
+	private int intern( ByteBuffer buf, int start, int end, boolean hasEscapes ){
+		int length = end-start;
+		if( hasEscapes ){
+			length = unescape( buf, start, end );
+			if( length<0 ) return -1;
+			buf = scratchBuf;
+			start = 0;
+		}
+		if( hashing ) hash = SketchGraph.hash( buf, start, length );
+		return dictionary==null ? 0 : dictionary.intern( buf, start, length );
+	}
+
+	/**
+	 * This method interns a key value, unescaping it first if needed
+	 * @return The key ID, or -1 if the escapes are not valid
+	 */
+	private int internKey( ByteBuffer buf, int start, int end, boolean hasEscapes ){
+		if( !hasEscapes ) return keys.intern( buf, start, end-start );
+		int length = unescape( buf, start, end );
+		return length<0 ? -1 : keys.intern( scratchBuf, 0, length );
+	}
+
+	/**
+	 * This method decodes the created_time value to seconds, unescaping it first if needed
+	 */
+	private long toSeconds( ByteBuffer buf, int start, int end, boolean hasEscapes ){
+		if( timed ){
+			long begin = System.nanoTime();
+			long seconds = decodeTime( buf, start, end, hasEscapes );
+			metrics.stage( GraphMetrics.DECODE ).record( System.nanoTime()-begin );
+			return seconds;
+		}
+		return decodeTime( buf, start, end, hasEscapes );
+	}
+
+	private long decodeTime( ByteBuffer buf, int start, int end, boolean hasEscapes ){
+		if( !hasEscapes ) return decoder.decode( buf, start, end );
+		int length = unescape( buf, start, end );
+		return length<0 ? TimestampDecoder.INVALID : decoder.decode( scratchBuf, 0, length );
+	}
+
+	/**
+	 * @return 1 for actor, 2 for target, 3 for created_time, 4 for the key field
+	 * and 0 for other keys
+	 */
+	private int fieldOf( ByteBuffer buf, int start, int length ){
+		if( equals(buf, start, length, ACTOR) ) return 1;
+		if( equals(buf, start, length, TARGET) ) return 2;
+		if( equals(buf, start, length, CREATED_TIME) ) return 3;
+		if( keyField!=null && equals(buf, start, length, keyField) ) return 4;
+		return 0;
+	}
+
+	private static boolean equals( ByteBuffer buf, int start, int length, byte[] key ){
+		if( length!=key.length ) return false;
+		for( int i=0; i<length; i++ )
+			if( buf.get(start+i)!=key[i] ) return false;
+		return true;
+	}
+
+	private static int skipSpaces( ByteBuffer buf, int pos, int end ){
+		while( pos<end ){
+			byte c = buf.get(pos);
+			if( c!=' ' && c!='\t' && c!='\r' && c!='\n' ) break;
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * This method finds the closing quote of a string and sets <code>escaped</code>
+	 * if there is any backslash in it
+	 * @param pos The index of the opening quote
+	 * @return The index of the closing quote, or -1 if the string is not closed
+	 */
+	private int scanString( ByteBuffer buf, int pos, int end ){
+		escaped = false;
+		for( int i=pos+1; i<end; i++ ){
+			byte c = buf.get(i);
+			if( c=='"' ) return i;
+			if( c=='\\' ){
+				escaped = true;
+				i++;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * This method skips a value which is not a string: an object or an array
+	 * with everything nested in it, or a number, true, false or null
+	 * @return The index after the value, or -1 if it is not closed
+	 */
+	private int skipValue( ByteBuffer buf, int pos, int end ){
+		byte c = buf.get(pos);
+		if( c=='{' || c=='[' ){
+			int depth = 0;
+			for( int i=pos; i<end; i++ ){
+				c = buf.get(i);
+				if( c=='"' ){
+					i = scanString( buf, i, end );
+					if( i<0 ) return -1;
+				} else if( c=='{' || c=='[' ) depth++;
+				else if( (c=='}' || c==']') && --depth==0 ) return i+1;
+			}
+			return -1;
+		}
+		int i = pos;
+		while( i<end ){
+			c = buf.get(i);
+			if( c==',' || c=='}' || c==']' || c==' ' || c=='\t' || c=='\r' ) break;
+			i++;
+		}
+		return i==pos ? -1 : i;
+	}
+
+	/**
+	 * This method decodes the JSON escapes of a string into the scratch buffer,
+	 * writing the escaped code points as UTF-8
+	 * @return The number of bytes written, or -1 if an escape is not valid
+	 */
+	private int unescape( ByteBuffer buf, int start, int end ){
+		int n = 0;
+		for( int i=start; i<end; i++ ){
+			ensureScratch( n+4 );
+			byte c = buf.get(i);
+			if( c!='\\' ){
+				scratch[n++] = c;
+				continue;
+			}
+			if( ++i>=end ) return -1;
+			c = buf.get(i);
+			switch( c ){
+				case '"': case '\\': case '/': scratch[n++] = c; break;
+				case 'b': scratch[n++] = '\b'; break;
+				case 'f': scratch[n++] = '\f'; break;
+				case 'n': scratch[n++] = '\n'; break;
+				case 'r': scratch[n++] = '\r'; break;
+				case 't': scratch[n++] = '\t'; break;
+				case 'u':
+					int code = hex4( buf, i+1, end );
+					if( code<0 ) return -1;
+					i += 4;
+					// A high surrogate followed by an escaped low one is a single code point
+					if( code>=0xD800 && code<0xDC00 && i+6<end && buf.get(i+1)=='\\' && buf.get(i+2)=='u' ){
+						int low = hex4( buf, i+3, end );
+						if( low>=0xDC00 && low<0xE000 ){
+							code = 0x10000+((code-0xD800)<<10)+(low-0xDC00);
+							i += 6;
+						}
+					}
+					n = writeUtf8( code, n );
+					break;
+				default: return -1;
+			}
+		}
+		return n;
+	}
+
+	private static int hex4( ByteBuffer buf, int pos, int end ){
+		if( pos+4>end ) return -1;
+		int code = 0;
+		for( int i=pos; i<pos+4; i++ ){
+			int d = Character.digit( (char)buf.get(i), 16 );
+			if( d<0 ) return -1;
+			code = code*16+d;
+		}
+		return code;
+	}
+
+	private int writeUtf8( int code, int n ){
+		if( code<0x80 ) scratch[n++] = (byte)code;
+		else if( code<0x800 ){
+			scratch[n++] = (byte)(0xC0|(code>>6));
+			scratch[n++] = (byte)(0x80|(code&0x3F));
+		} else if( code<0x10000 ){
+			scratch[n++] = (byte)(0xE0|(code>>12));
+			scratch[n++] = (byte)(0x80|((code>>6)&0x3F));
+			scratch[n++] = (byte)(0x80|(code&0x3F));
+		} else {
+			scratch[n++] = (byte)(0xF0|(code>>18));
+			scratch[n++] = (byte)(0x80|((code>>12)&0x3F));
+			scratch[n++] = (byte)(0x80|((code>>6)&0x3F));
+			scratch[n++] = (byte)(0x80|(code&0x3F));
+		}
+		return n;
+	}
+
+	private void ensureScratch( int length ){
+		if( length<=scratch.length ) return;
+		scratch = Arrays.copyOf( scratch, Math.max(scratch.length*2, length) );
+		scratchBuf = ByteBuffer.wrap( scratch );
+	}
+}
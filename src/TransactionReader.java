@@ -0,0 +1,278 @@
+package src;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <h1>TransactionReader</h1>
+ * Reads the transaction file line by line through a memory-mapped region of
+ * up to 1GB, remapping the next region when a line runs over the end of the
+ * current one, so files larger than 2GB can be read. Every line is parsed in
+ * place by a <code>TransactionParser</code>: no String, line or JSON object
+ * is created for a line.
+ * <p>
+ * A gzip-compressed file, recognized by its first two bytes, is decompressed
+ * on the fly instead and read in chunks of whole lines by a
+ * <code>ChunkReader</code>. A binary <code>TransactionLogWriter</code> log is
+ * refused, <code>TransactionSource.open()</code> reads it.
+ * <pre>
+ * try( TransactionReader reader = new TransactionReader(path, graph.getDictionary()) ){
+ *     while( reader.next() )
+ *         if( reader.status()==TransactionParser.VALID ) ...
+ * }
+ * </pre>
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param channel The channel of the file
+ * @param region The currently mapped region of the file, or the current chunk of a gzip file
+ * @param chunks The <code>ChunkReader</code> of a gzip file, null otherwise
+ * @param regionStart The file position of the region
+ * @param pos The index in the region of the next line
+ * @param parser The <code>TransactionParser</code> of the lines
+ */
+
+public class TransactionReader implements TransactionSource {
+	private static final int REGION_SIZE = 1<<30;
+	private static final int GZIP_MAGIC = 0x1f8b;
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private final int regionSize;
+	private ByteBuffer region;
+	private final ChunkReader chunks;
+	private long regionStart;
+	private int pos;
+	private final TransactionParser parser;
+	private int status;
+	private long lineNumber;
+
+	/**
+	 * @param path The path of the transaction file
+	 * @param dictionary The <code>VertexDictionary</code> to intern the names, or null to
+	 * only hash them
+	 * @throws IOException if the file cannot be opened or mapped
+	 */
+	public TransactionReader( Path path, VertexDictionary dictionary ) throws IOException {
+		this( path, dictionary, REGION_SIZE );
+	}
+
+	/**
+	 * @param path The path of the transaction file
+	 * @param dictionary The <code>VertexDictionary</code> to intern the names, or null to
+	 * only hash them
+	 * @param regionSize The size of the mapped region, longer than any line
+	 * @throws IOException if the file cannot be opened or mapped, or is a binary log
+	 */
+	public TransactionReader( Path path, VertexDictionary dictionary, int regionSize ) throws IOException {
+		channel = FileChannel.open( path, StandardOpenOption.READ );
+		fileSize = channel.size();
+		this.regionSize = regionSize;
+		parser = new TransactionParser( dictionary );
+		lineNumber = 0;
+		int magic = magic( channel );
+		if( magic==TransactionLogWriter.MAGIC ){
+			channel.close();
+			throw new IOException(path+" is a binary transaction log, which this mode cannot read");
+		}
+		if( (magic>>>16)==GZIP_MAGIC ){
+			int chunkSize = Math.min( regionSize, PipelinedIngest.CHUNK_SIZE );
+			chunks = new ChunkReader( gunzip(channel), chunkSize );
+			region = ByteBuffer.allocate( chunkSize );
+			region.limit( 0 );
+			pos = 0;
+		} else {
+			chunks = null;
+			map( 0 );
+		}
+	}
+
+	/**
+	 * This method opens a file for the readers of a channel, decompressing it
+	 * if it is gzip-compressed
+	 * @param path The path of the file
+	 * @return The channel of the file or of its decompressed bytes
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static ReadableByteChannel openChannel( Path path ) throws IOException {
+		FileChannel channel = FileChannel.open( path, StandardOpenOption.READ );
+		try {
+			return (magic(channel)>>>16)==GZIP_MAGIC ? gunzip(channel) : channel;
+		} catch( IOException ex ){
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @param path The path of the file
+	 * @return If the file is gzip-compressed
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isGzip( Path path ) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return (magic(channel)>>>16)==GZIP_MAGIC;
+		}
+	}
+
+	/**
+	 * This method makes the parser of the lines record its statuses and latencies
+	 * @param metrics The <code>GraphMetrics</code>, or null to stop recording
+	 */
+	public void setMetrics( GraphMetrics metrics ){
+		parser.setMetrics( metrics );
+	}
+
+	/**
+	 * This method makes the parser hash the names as well as interning them
+	 * @param hashing If the names are hashed, always true without a dictionary
+	 */
+	public void setHashing( boolean hashing ){
+		parser.setHashing( hashing );
+	}
+
+	/**
+	 * This method makes the parser read one more field of every line as its key
+	 * @param name The name of the key field, or null to stop reading it
+	 * @param keys The <code>VertexDictionary</code> to intern the key values
+	 */
+	public void setKeyField( String name, VertexDictionary keys ){
+		parser.setKeyField( name, keys );
+	}
+
+	/**
+	 * This method reads and parses the next line
+	 * @return If there is a next line
+	 * @throws IOException if the next region cannot be mapped or a line is
+	 * longer than the region size
+	 */
+	public boolean next() throws IOException {
+		if( chunks!=null ) return nextChunked();
+		if( regionStart+pos>=fileSize ) return false;
+		int end = findNewline( pos );
+		if( end<0 ){
+			// The line runs over the region, map the next region from the start of the line
+			if( pos==0 ) throw new IOException("Line "+(lineNumber+1)+" is longer than "+regionSize+" bytes");
+			map( regionStart+pos );
+			end = findNewline( 0 );
+			if( end<0 ) throw new IOException("Line "+(lineNumber+1)+" is longer than "+regionSize+" bytes");
+		}
+		status = parser.parse( region, pos, end );
+		pos = end+1;
+		lineNumber++;
+		return true;
+	}
+
+	/**
+	 * @return The <code>TransactionParser</code> status of the current line
+	 */
+	public int status(){
+		return status;
+	}
+
+	/**
+	 * @return The hash of the actor name of the current line, if the names are hashed
+	 */
+	public long actorHash(){
+		return parser.actorHash();
+	}
+
+	/**
+	 * @return The hash of the target name of the current line, if the names are hashed
+	 */
+	public long targetHash(){
+		return parser.targetHash();
+	}
+
+	/**
+	 * @return The actor ID of the current line
+	 */
+	public int actor(){
+		return parser.actor();
+	}
+
+	/**
+	 * @return The target ID of the current line
+	 */
+	public int target(){
+		return parser.target();
+	}
+
+	/**
+	 * @return The key ID of the current line, if there is a key field
+	 */
+	public int key(){
+		return parser.key();
+	}
+
+	/**
+	 * @return The created_time in seconds of the current line
+	 */
+	public long time(){
+		return parser.time();
+	}
+
+	/**
+	 * @return The 1-based number of the current line
+	 */
+	public long lineNumber(){
+		return lineNumber;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * This method reads and parses the next line of a gzip file
+	 */
+	private boolean nextChunked() throws IOException {
+		if( pos>=region.limit() ){
+			if( !chunks.read(region) ) return false;
+			pos = region.position();
+		}
+		int limit = region.limit();
+		int end = pos;
+		while( end<limit && region.get(end)!='\n' ) end++;
+		status = parser.parse( region, pos, end );
+		pos = end+1;
+		lineNumber++;
+		return true;
+	}
+
+	/**
+	 * @return The first four bytes of the file in big-endian, 0 for the missing ones
+	 */
+	private static int magic( FileChannel channel ) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate( 4 );
+		while( head.hasRemaining() && channel.read(head, head.position())>=0 );
+		return head.getInt( 0 );
+	}
+
+	private static ReadableByteChannel gunzip( FileChannel channel ) throws IOException {
+		return Channels.newChannel( new GZIPInputStream(Channels.newInputStream(channel), 1<<16) );
+	}
+
+	/**
+	 * @return The index of the newline after from, the end of the region if it
+	 * is the end of the file, or -1 if the line runs over the region
+	 */
+	private int findNewline( int from ){
+		int limit = region.limit();
+		for( int i=from; i<limit; i++ )
+			if( region.get(i)=='\n' ) return i;
+		return regionStart+limit==fileSize ? limit : -1;
+	}
+
+	private void map( long start ) throws IOException {
+		regionStart = start;
+		region = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min((long)regionSize, fileSize-start) );
+		pos = 0;
+	}
+}
@@ -0,0 +1,73 @@
+package src;
+import java.io.*;
+import java.nio.file.Path;
+
+/**
+ * <h1>TransactionSource</h1>
+ * The transactions of an input file one line at a time, whatever the format
+ * of the file: the JSON lines of the challenge, plain or gzip-compressed, read
+ * by <code>TransactionReader</code>, or a binary log of
+ * <code>TransactionLogWriter</code> read by <code>TransactionLogReader</code>.
+ * <pre>
+ * try( TransactionSource source = TransactionSource.open(path, graph.getDictionary()) ){
+ *     while( source.next() )
+ *         if( source.status()==TransactionParser.VALID ) ...
+ * }
+ * </pre>
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ */
+
+public interface TransactionSource extends Closeable {
+	/**
+	 * This method reads the next line
+	 * @return If there is a next line
+	 * @throws IOException if the file cannot be read
+	 */
+	boolean next() throws IOException;
+
+	/**
+	 * This method makes the source record the statuses, and the latencies of
+	 * the parsing if the lines are parsed
+	 * @param metrics The <code>GraphMetrics</code>, or null to stop recording
+	 */
+	void setMetrics( GraphMetrics metrics );
+
+	/**
+	 * @return The <code>TransactionParser</code> status of the current line
+	 */
+	int status();
+
+	/**
+	 * @return The actor ID of the current line
+	 */
+	int actor();
+
+	/**
+	 * @return The target ID of the current line
+	 */
+	int target();
+
+	/**
+	 * @return The created_time in seconds of the current line
+	 */
+	long time();
+
+	/**
+	 * @return The 1-based number of the current line
+	 */
+	long lineNumber();
+
+	/**
+	 * This method opens a file with the reader of its format, recognized by its first bytes
+	 * @param path The path of the file
+	 * @param dictionary The <code>VertexDictionary</code> to intern the names
+	 * @return The source of the transactions of the file
+	 * @throws IOException if the file cannot be opened
+	 */
+	static TransactionSource open( Path path, VertexDictionary dictionary ) throws IOException {
+		if( TransactionLogReader.isLog(path) ) return new TransactionLogReader( path, dictionary );
+		return new TransactionReader( path, dictionary );
+	}
+}
@@ -0,0 +1,356 @@
+package src;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <h1>VertexDictionary</h1>
+ * Interns the person names to dense integer IDs (0, 1, 2, ...) so the graph
+ * can be kept in primitive arrays indexed by vertex. The names are kept once,
+ * as UTF-8 bytes in a single pool, and found through an open addressing table
+ * of IDs. A name can be looked up directly from a slice of a
+ * <code>ByteBuffer</code>, so the readers do not need to create a String for
+ * every field.
+ * <p>
+ * An ID is valid until it is given back by <code>release()</code>. The
+ * released IDs are handed out again to the next new names before any new ID,
+ * so a long running graph releasing the vertice without an edge keeps the IDs,
+ * and its arrays by vertex, within the number of vertice it holds at once. The
+ * bytes of the released names are reclaimed when the pool is full.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
+ * @param pool The UTF-8 bytes of the names
+ * @param poolView A <code>ByteBuffer</code> view of the pool, for another
+ * dictionary to look its names up in this one
+ * @param poolSize The number of bytes used in the pool, released names included
+ * @param garbage The number of bytes of the released names in the pool
+ * @param offsets The offset of each ID's name in the pool, or for a free ID
+ * its index in <code>free</code>
+ * @param lengths The number of bytes of each ID's name, <code>MISSING</code> for a free ID
+ * @param hashes The hash code of each name, to avoid comparing the bytes
+ * @param names The String of each name, created the first time it is asked for
+ * @param versions The number of times each ID was handed out
+ * @param table The open addressing table of IDs, -1 for an empty slot
+ * @param size The number of IDs handed out so far, the free ones included
+ * @param count The number of names, i.e. of the IDs which are not free
+ * @param free The stack of the free IDs, the next one handed out on top
+ */
+
+public class VertexDictionary {
+	public static final int MISSING = -1;
+
+	private byte[] pool;
+	private ByteBuffer poolView;
+	private int poolSize;
+	private int garbage;
+	private int[] offsets;
+	private int[] lengths;
+	private int[] hashes;
+	private String[] names;
+	private int[] versions;
+	private int[] table;
+	private int mask;
+	private int size;
+	private int count;
+	private int[] free;
+	private int freeCount;
+
+	/**
+	 * The constructor initializes an empty dictionary
+	 */
+	public VertexDictionary(){
+		pool = new byte[256];
+		poolView = ByteBuffer.wrap( pool );
+		offsets = new int[16];
+		lengths = new int[16];
+		hashes = new int[16];
+		names = new String[16];
+		versions = new int[16];
+		table = new int[32];
+		Arrays.fill( table, MISSING );
+		mask = table.length-1;
+		free = new int[16];
+	}
+
+	/**
+	 * @return The number of IDs handed out so far, the free ones included, i.e.
+	 * one more than the highest ID
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return The number of names in the dictionary, i.e. of the IDs which are not free
+	 */
+	public int count(){
+		return count;
+	}
+
+	/**
+	 * @param id An ID less than <code>size()</code>
+	 * @return If the ID has been released and not handed out again
+	 */
+	public boolean isFree( int id ){
+		return lengths[id]==MISSING;
+	}
+
+	/**
+	 * @param id The vertex ID
+	 * @return The number of times the ID was handed out, to tell the name it
+	 * has from the one it had before being released
+	 */
+	public int version( int id ){
+		return versions[id];
+	}
+
+	/**
+	 * @param id The vertex ID
+	 * @return The name of the ID
+	 */
+	public String name( int id ){
+		if( names[id]==null )
+			names[id] = new String( pool, offsets[id], lengths[id], StandardCharsets.UTF_8 );
+		return names[id];
+	}
+
+	/**
+	 * @param id The vertex ID
+	 * @return The number of UTF-8 bytes of the name of the ID
+	 */
+	public int length( int id ){
+		return lengths[id];
+	}
+
+	/**
+	 * This method copies the UTF-8 bytes of the name of an ID to a buffer
+	 * @param id The vertex ID
+	 * @param dst The buffer, with at least <code>length(id)</code> bytes remaining
+	 */
+	public void copy( int id, ByteBuffer dst ){
+		dst.put( pool, offsets[id], lengths[id] );
+	}
+
+	/**
+	 * @param name The person name
+	 * @return The ID of the name, or <code>MISSING</code> if it has not been interned
+	 */
+	public int get( String name ){
+		ByteBuffer bytes = ByteBuffer.wrap( name.getBytes(StandardCharsets.UTF_8) );
+		return find( bytes, 0, bytes.limit(), hash(bytes, 0, bytes.limit()), false );
+	}
+
+	/**
+	 * This method returns the ID of a name, giving it the next ID if it is new
+	 * @param name The person name
+	 * @return The ID of the name
+	 */
+	public int intern( String name ){
+		ByteBuffer bytes = ByteBuffer.wrap( name.getBytes(StandardCharsets.UTF_8) );
+		int id = find( bytes, 0, bytes.limit(), hash(bytes, 0, bytes.limit()), true );
+		if( names[id]==null ) names[id] = name;
+		return id;
+	}
+
+	/**
+	 * This method returns the ID of a name given as UTF-8 bytes in a buffer,
+	 * giving it the next ID if it is new. Nothing is allocated for a known name.
+	 * @param buf The buffer holding the name, its position and limit are not used
+	 * @param offset The absolute index of the first byte of the name
+	 * @param length The number of bytes of the name
+	 * @return The ID of the name
+	 */
+	public int intern( ByteBuffer buf, int offset, int length ){
+		return find( buf, offset, length, hash(buf, offset, length), true );
+	}
+
+	/**
+	 * This method returns the ID in this dictionary of a name of another one,
+	 * giving it the next ID if it is new. It is used to merge the names found by
+	 * a parser working with its own dictionary, without creating Strings.
+	 * @param other The other dictionary
+	 * @param id The ID of the name in the other dictionary
+	 * @return The ID of the name in this dictionary
+	 */
+	public int intern( VertexDictionary other, int id ){
+		return find( other.poolView, other.offsets[id], other.lengths[id], other.hashes[id], true );
+	}
+
+	/**
+	 * This method removes the name of an ID and makes the ID free, to be handed
+	 * out to a new name. The caller must not use the ID any more.
+	 * @param id An ID which is not free
+	 */
+	public void release( int id ){
+		if( lengths[id]==MISSING ) throw new IllegalArgumentException("The ID "+id+" is already free");
+		int i = slot( hashes[id] );
+		while( table[i]!=id ) i = (i+1)&mask;
+		// Shift back the IDs after the slot which cannot be found any more
+		// past the empty slot, rather than leaving a deleted mark
+		for( int j=(i+1)&mask; table[j]!=MISSING; j=(j+1)&mask ){
+			int home = slot( hashes[table[j]] );
+			if( ((j-home)&mask)>=((j-i)&mask) ){
+				table[i] = table[j];
+				i = j;
+			}
+		}
+		table[i] = MISSING;
+		garbage += lengths[id];
+		names[id] = null;
+		count--;
+		pushFree( id );
+	}
+
+	/**
+	 * This method sets the name of a given ID, to rebuild a dictionary from a
+	 * snapshot or a log of <code>GraphCheckpoint</code>. The name the ID had is
+	 * released first, the name is moved if it is at another ID, and the IDs
+	 * before it not handed out yet become free.
+	 * @param id The ID
+	 * @param buf The buffer holding the name, its position and limit are not used
+	 * @param offset The absolute index of the first byte of the name
+	 * @param length The number of bytes of the name, negative to only make the ID free
+	 * @return The other ID the name was at, which is now free, or <code>MISSING</code>
+	 */
+	public int restore( int id, ByteBuffer buf, int offset, int length ){
+		while( size<=id ) pushFree( newId() );
+		if( lengths[id]!=MISSING ) release( id );
+		if( length<0 ) return MISSING;
+		int hash = hash( buf, offset, length );
+		int previous = find( buf, offset, length, hash, false );
+		if( previous!=MISSING ) release( previous );
+		// Take the ID out of the free stack, moving the top one to its place
+		int last = free[--freeCount];
+		free[offsets[id]] = last;
+		offsets[last] = offsets[id];
+		add( id, probe(buf, offset, length, hash), buf, offset, length, hash );
+		return previous;
+	}
+
+	/**
+	 * This method probes the table for the name, and adds it if asked to
+	 * @return The ID of the name, or <code>MISSING</code> if it is not found nor added
+	 */
+	private int find( ByteBuffer buf, int offset, int length, int hash, boolean add ){
+		int i = probe( buf, offset, length, hash );
+		if( table[i]!=MISSING || !add ) return table[i];
+		int id = freeCount>0 ? free[--freeCount] : newId();
+		add( id, i, buf, offset, length, hash );
+		return id;
+	}
+
+	/**
+	 * @return The slot of the name in the table, or the empty slot it would take
+	 */
+	private int probe( ByteBuffer buf, int offset, int length, int hash ){
+		int i = slot(hash);
+		for( ; table[i]!=MISSING; i=(i+1)&mask ){
+			int id = table[i];
+			if( hashes[id]==hash && matches(id, buf, offset, length) ) break;
+		}
+		return i;
+	}
+
+	/**
+	 * This method gives a name to a free ID and puts the ID in an empty slot
+	 */
+	private void add( int id, int i, ByteBuffer buf, int offset, int length, int hash ){
+		if( poolSize+length>pool.length ) growPool( length );
+		for( int k=0; k<length; k++ ) pool[poolSize+k] = buf.get(offset+k);
+		offsets[id] = poolSize;
+		lengths[id] = length;
+		poolSize += length;
+		hashes[id] = hash;
+		versions[id]++;
+		table[i] = id;
+		count++;
+		if( count*2>table.length ) rehash();
+	}
+
+	/**
+	 * @return The next ID never handed out, making room for it
+	 */
+	private int newId(){
+		int id = size++;
+		if( id==hashes.length ){
+			offsets = Arrays.copyOf( offsets, id*2 );
+			lengths = Arrays.copyOf( lengths, id*2 );
+			hashes = Arrays.copyOf( hashes, id*2 );
+			names = Arrays.copyOf( names, id*2 );
+			versions = Arrays.copyOf( versions, id*2 );
+		}
+		return id;
+	}
+
+	private void pushFree( int id ){
+		if( freeCount==free.length ) free = Arrays.copyOf( free, freeCount*2 );
+		offsets[id] = freeCount;
+		lengths[id] = MISSING;
+		free[freeCount++] = id;
+	}
+
+	/**
+	 * This method makes room for a new name in the pool, copying only the names
+	 * still in the dictionary if the released ones take half of it
+	 */
+	private void growPool( int length ){
+		int live = poolSize-garbage;
+		// Sized for the live names to fill at most half of it, or doubled
+		int n = garbage*2>=poolSize ? Math.max( 256, Integer.highestOneBit(live+length)<<2 ) : pool.length*2;
+		while( n<live+length ) n <<= 1;
+		byte[] grown = new byte[n];
+		if( garbage==0 )
+			System.arraycopy( pool, 0, grown, 0, poolSize );
+		else {
+			live = 0;
+			for( int id=0; id<size; id++ ){
+				if( lengths[id]==MISSING ) continue;
+				System.arraycopy( pool, offsets[id], grown, live, lengths[id] );
+				offsets[id] = live;
+				live += lengths[id];
+			}
+			garbage = 0;
+		}
+		poolSize = live;
+		pool = grown;
+		poolView = ByteBuffer.wrap( pool );
+	}
+
+	/**
+	 * @return If the name of the ID is the same as the bytes in the buffer
+	 */
+	private boolean matches( int id, ByteBuffer buf, int offset, int length ){
+		int start = offsets[id];
+		if( lengths[id]!=length ) return false;
+		for( int k=0; k<length; k++ )
+			if( pool[start+k]!=buf.get(offset+k) ) return false;
+		return true;
+	}
+
+	private static int hash( ByteBuffer buf, int offset, int length ){
+		int h = 0;
+		for( int k=0; k<length; k++ ) h = 31*h+buf.get(offset+k);
+		return h;
+	}
+
+	/**
+	 * @return The home slot of a hash code, spread so that similar names do not cluster
+	 */
+	private int slot( int hash ){
+		int h = hash*0x9E3779B9;
+		return (h^(h>>>16)) & mask;
+	}
+
+	private void rehash(){
+		table = new int[table.length*2];
+		Arrays.fill( table, MISSING );
+		mask = table.length-1;
+		for( int id=0; id<size; id++ ){
+			if( lengths[id]==MISSING ) continue;
+			int i = slot(hashes[id]);
+			while( table[i]!=MISSING ) i = (i+1)&mask;
+			table[i] = id;
+		}
+	}
+}
@@ -1,83 +1,550 @@
 package src;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * <h1>genTestCase</h1>
- * This class implements a quick generator for the coding-challenge test cases.
- * The following parameters can be adjusted:
- * number of the different people names (nVtx)
- * number of output lines (nLines)
- * time increase in seconds expectation (inc)
- * the start time in seconds (startDate)
- * twice of the maximum deviation from previous time plus time increase (variaton)
- * @param args use the first argument as the random number seed
+ * This class implements a generator for the coding-challenge test cases, from
+ * a few lines up to hundreds of millions of records. The records are cut into
+ * blocks which are generated on several threads, each block with its own
+ * random numbers derived from the seed, and the lines are formatted straight
+ * into bytes and written block after block through a <code>FileChannel</code>,
+ * so the output only depends on the seed and the options, not on the number
+ * of threads. The options are:
+ * <pre>
+ * seed                  the random number seed, also --seed=N (0)
+ * --records=N           the number of lines (15)
+ * --vertices=N          the number of different persons (5)
+ * --skew=S              the Zipf exponent of the activity of the persons,
+ *                       0 for uniform (0)
+ * --rate=R              the average number of transactions per second (0.0667)
+ * --start=N             the time stamp in epoch seconds of the first line (1220227200)
+ * --out-of-order=R      the ratio of the late transactions (0.1)
+ * --max-lateness=N      the most seconds a late transaction is behind (180)
+ * --duplicate-rate=R    the ratio of the transactions repeating a recent edge (0)
+ * --malformed-rate=R    the ratio of the malformed lines (0)
+ * --threads=N           the number of generating threads (the number of cores)
+ * --output=FILE         the generated lines (venmo_input/venmo-trans.txt)
+ * --expected=FILE       also write the expected medians of the lines to FILE
+ * --window=N            the time window in seconds of the expected medians (60)
+ * --reference-limit=N   the most records times edges in the window (the rate
+ *                       times the window) for which the expected medians are
+ *                       computed by the simple reference (50000000)
+ * </pre>
+ * The expected medians are computed from the generated records directly. Up
+ * to the reference limit, about ten seconds of work, they come from
+ * <code>Reference</code>, which shares no code with <code>PeriodGraph</code>,
+ * so they check the graph as well as the parsing and the reading modes of
+ * <code>median_degree</code>. Beyond it, they come from a
+ * <code>PeriodGraph</code>, which only checks the parsing and the reading
+ * modes, at any scale.
+ *
+ * @author Fuquan Wang
+ * @version 1.0
  */
 public class genTestCase {
+	private static final int BLOCK_SIZE = 1<<16;
+	private static final byte[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
+
+	private final long seed;
+	private final long records;
+	private final int vertices;
+	private final double skew;
+	private final double rate;
+	private final long start;
+	private final double outOfOrder;
+	private final int maxLateness;
+	private final double duplicateRate;
+	private final double malformedRate;
+
 	public static void main( String[] args ){
-		if( args.length<=0 ) {
-			System.out.println("Please input a number as random seed number");
+		Options options = new Options(args);
+		genTestCase generator;
+		int threads;
+		try {
+			options.check( "seed", "records", "vertices", "skew", "rate", "start", "out-of-order", "max-lateness",
+					"duplicate-rate", "malformed-rate", "threads", "output", "expected", "window", "reference-limit" );
+			String seed = options.positional().isEmpty() ? options.get("seed", "0") : options.positional().get(0);
+			generator = new genTestCase( Long.parseLong(seed), Long.parseLong(options.get("records", "15")),
+					options.getInt("vertices", 5), options.getDouble("skew", 0), options.getDouble("rate", 1/15.0),
+					Long.parseLong(options.get("start", "1220227200")), options.getDouble("out-of-order", 0.1),
+					options.getInt("max-lateness", 180), options.getDouble("duplicate-rate", 0),
+					options.getDouble("malformed-rate", 0) );
+			threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+		} catch (IllegalArgumentException ex) {
+			// NumberFormatException included
+			System.out.println(ex.getMessage());
 			return;
 		}
-		Random rdn = new Random( Long.valueOf(args[0]) );
-
-		int nVtx = 5;
-		int nLines = 15;
-		long startDate = 1220227200L;
-		int inc = 15;
-		int variation = 180;
 
-		PrintWriter writer = null;
-		try{ 
-			writer = new PrintWriter(new OutputStreamWriter( new FileOutputStream("venmo_input/venmo-trans.txt"), "utf-8"));
+		Medians medians = null;
+		Path expected = null;
+		if( options.has("expected") ){
+			int window = options.getInt("window", 60);
+			// Every record of the reference visits the edges of the window
+			double work = generator.records*Math.min( generator.records, generator.rate*window );
+			if( work<=options.getDouble("reference-limit", 5e7) ) medians = new Reference( window );
+			else {
+				System.out.println("The input is too large for the simple reference, the expected medians are computed by a PeriodGraph");
+				medians = new GraphMedians( window );
+			}
+			expected = Paths.get(options.get("expected", ""));
+		}
+		try {
+			generator.run( Paths.get(options.get("output", "venmo_input/venmo-trans.txt")), threads, medians, expected );
 		} catch (IOException ex) {
 			System.out.println(ex);
 		}
+	}
 
-		String[] vertice = new String[nVtx];
-		for( int i=0; i<nVtx; i++ )
-			vertice[i] = excelStyleString(i);
-
-		Calendar cal = Calendar.getInstance();
-		for( int i=0; i<nLines; i++ ){
-			startDate += rdn.nextInt(variation)-variation/2+inc;
-			Date date = new Date( startDate*1000 );
-			cal.setTime(date);
-			int idxActor = rdn.nextInt(nVtx);
-			int idxTarget = rdn.nextInt(nVtx);
-			while( idxTarget==idxActor )
-				idxTarget = rdn.nextInt(nVtx);
-			StringBuilder sb = new StringBuilder();
-			sb.append("{\"actor\": \"").append(vertice[idxActor]).append("\",");
-			sb.append("\"target\": \"").append(vertice[idxTarget]).append("\",");
-			sb.append("\"created_time\": \"");
-
-			sb.append(cal.get(Calendar.YEAR)).append('-');
-			if( cal.get(Calendar.MONTH)<10 ) sb.append('0');
-			sb.append(cal.get(Calendar.MONTH)).append('-');
-			if( cal.get(Calendar.DAY_OF_MONTH)<10 ) sb.append('0');
-			sb.append(cal.get(Calendar.DAY_OF_MONTH)).append('T');
-
-			if( cal.get(Calendar.HOUR)<10 ) sb.append('0');
-			sb.append(cal.get(Calendar.HOUR)).append(':');
-			if( cal.get(Calendar.MINUTE)<10 ) sb.append('0');
-			sb.append(cal.get(Calendar.MINUTE)).append(':');
-			if( cal.get(Calendar.SECOND)<10 ) sb.append('0');
-			sb.append(cal.get(Calendar.SECOND)).append("Z\"}");
-			writer.println( sb.toString() );
-		}
-
-		writer.close();
+	/**
+	 * @param seed The random number seed
+	 * @param records The number of lines
+	 * @param vertices The number of different persons, at least 2
+	 * @param skew The Zipf exponent of the activity of the persons, 0 for uniform
+	 * @param rate The average number of transactions per second
+	 * @param start The time stamp in epoch seconds of the first line
+	 * @param outOfOrder The ratio of the late transactions
+	 * @param maxLateness The most seconds a late transaction is behind
+	 * @param duplicateRate The ratio of the transactions repeating a recent edge
+	 * @param malformedRate The ratio of the malformed lines
+	 */
+	public genTestCase( long seed, long records, int vertices, double skew, double rate, long start,
+			double outOfOrder, int maxLateness, double duplicateRate, double malformedRate ){
+		if( records<0 || vertices<2 || skew<0 || rate<=0 || maxLateness<0 )
+			throw new IllegalArgumentException("The records, vertices, skew, rate and lateness must be positive, with at least 2 vertices");
+		this.seed = seed;
+		this.records = records;
+		this.vertices = vertices;
+		this.skew = skew;
+		this.rate = rate;
+		this.start = start;
+		this.outOfOrder = outOfOrder;
+		this.maxLateness = maxLateness;
+		this.duplicateRate = duplicateRate;
+		this.malformedRate = malformedRate;
 	}
 
-	private static String excelStyleString( int n ){
-		if( n<26 ) return String.valueOf( (char)('A'+n) );
-		else {
-			StringBuilder sb = new StringBuilder();
-			sb.append( excelStyleString(n/26-1) );
-			sb.append( excelStyleString(n%26) );
-			return sb.toString();
+	/**
+	 * This method generates the blocks on a pool of threads and writes them in
+	 * order, with at most twice as many blocks in memory as there are threads
+	 * @param output The file of the lines
+	 * @param threads The number of generating threads
+	 * @param medians The <code>Medians</code> of the expected medians, or null
+	 * @param expected The file of the expected medians, or null
+	 * @throws IOException if a file cannot be written
+	 */
+	public void run( Path output, int threads, Medians medians, Path expected ) throws IOException {
+		if( threads<=0 ) throw new IllegalArgumentException("The number of threads must be positive");
+		ExecutorService pool = Executors.newFixedThreadPool( threads );
+		try (FileChannel lines = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				FileChannel expectedChannel = expected==null ? null : FileChannel.open(expected, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer out = ByteBuffer.allocate( 1<<20 );
+			ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+			long blocks = (records+BLOCK_SIZE-1)/BLOCK_SIZE;
+			long submitted = 0;
+			while( submitted<blocks || !pending.isEmpty() ){
+				while( submitted<blocks && pending.size()<2*threads ){
+					final long index = submitted++;
+					pending.add( pool.submit(new Callable<Block>(){
+						public Block call(){
+							return generate( index );
+						}
+					}) );
+				}
+				Block block = get( pending.poll() );
+				ByteBuffer bytes = ByteBuffer.wrap( block.bytes, 0, block.length );
+				while( bytes.hasRemaining() ) lines.write( bytes );
+				if( medians!=null ){
+					for( int i=0; i<block.size; i++ ){
+						if( !block.valid[i] || !medians.add(block.actor[i], block.target[i], block.time[i]) ) continue;
+						if( out.remaining()<16 ) drain( expectedChannel, out );
+						putMedian( out, medians.median() );
+					}
+				}
+			}
+			if( medians!=null ) drain( expectedChannel, out );
+		} finally {
+			pool.shutdownNow();
 		}
 	}
-}
 
+	/**
+	 * The medians of the degrees after the valid records, in their order
+	 */
+	public interface Medians {
+		/**
+		 * @return If the record has an output
+		 */
+		boolean add( int actor, int target, long timeInSeconds );
+
+		/**
+		 * @return The median degree after the last record
+		 */
+		double median();
+	}
+
+	/**
+	 * Computes the medians the plainest way, sharing no code with
+	 * <code>PeriodGraph</code>: every edge is kept in a map to its time stamp,
+	 * the expired edges are found by scanning the map, and the degrees are
+	 * counted from the edges and sorted for every median. A record more than a
+	 * window before the latest one is accepted without a change, and a repeated
+	 * edge only moves its time stamp forward, without expiring anything. It costs
+	 * O(E+V log V) per record, so it is meant for small inputs.
+	 */
+	public static class Reference implements Medians {
+		private final int window;
+		private final HashMap<Long, Long> edges;
+		private long lastTime;
+
+		/**
+		 * @param window The time window in seconds
+		 */
+		public Reference( int window ){
+			this.window = window;
+			edges = new HashMap<Long, Long>();
+			lastTime = 0;
+		}
+
+		public boolean add( int actor, int target, long timeInSeconds ){
+			if( lastTime-timeInSeconds>=window ) return true;
+			long edge = actor<target ? ((long)actor<<32)|target : ((long)target<<32)|actor;
+			Long time = edges.get( edge );
+			if( time!=null ){
+				if( time<timeInSeconds ) edges.put( edge, timeInSeconds );
+				return true;
+			}
+			if( timeInSeconds>lastTime ){
+				lastTime = timeInSeconds;
+				Iterator<Long> times = edges.values().iterator();
+				while( times.hasNext() )
+					if( lastTime-times.next()>=window ) times.remove();
+			}
+			edges.put( edge, timeInSeconds );
+			return true;
+		}
+
+		public double median(){
+			HashMap<Integer, Integer> degrees = new HashMap<Integer, Integer>();
+			for( long edge : edges.keySet() ){
+				count( degrees, (int)(edge>>>32) );
+				count( degrees, (int)edge );
+			}
+			int n = degrees.size();
+			if( n==0 ) return 0;
+			int[] sorted = new int[n];
+			int i = 0;
+			for( int degree : degrees.values() ) sorted[i++] = degree;
+			Arrays.sort( sorted );
+			return n%2==1 ? sorted[n/2] : (sorted[n/2-1]+sorted[n/2])/2.0;
+		}
+
+		private static void count( HashMap<Integer, Integer> degrees, int vertex ){
+			Integer degree = degrees.get( vertex );
+			degrees.put( vertex, degree==null ? 1 : degree+1 );
+		}
+	}
+
+	/**
+	 * Computes the medians with a <code>PeriodGraph</code>, for the inputs too
+	 * large for the <code>Reference</code>
+	 */
+	public static class GraphMedians implements Medians {
+		private final PeriodGraph graph;
+
+		/**
+		 * @param window The time window in seconds
+		 */
+		public GraphMedians( int window ){
+			graph = new PeriodGraph( window );
+		}
+
+		public boolean add( int actor, int target, long timeInSeconds ){
+			return graph.addTransaction( actor, target, timeInSeconds );
+		}
+
+		public double median(){
+			return graph.getMedian();
+		}
+	}
+
+	/**
+	 * The records of a block and their lines
+	 */
+	private static class Block {
+		int size;
+		int[] actor;
+		int[] target;
+		long[] time;
+		boolean[] valid;
+		byte[] bytes;
+		int length;
+	}
+
+	/**
+	 * This method generates a block of records with its own random numbers
+	 * @param index The index of the block
+	 * @return The block
+	 */
+	private Block generate( long index ){
+		SplittableRandom random = new SplittableRandom( seed*0x9E3779B97F4A7C15L+index );
+		ZipfSampler zipf = skew>0 ? new ZipfSampler( vertices, skew ) : null;
+		Block block = new Block();
+		long first = index*BLOCK_SIZE;
+		block.size = (int)Math.min( BLOCK_SIZE, records-first );
+		block.actor = new int[block.size];
+		block.target = new int[block.size];
+		block.time = new long[block.size];
+		block.valid = new boolean[block.size];
+		block.bytes = new byte[block.size*128+64];
+		block.length = 0;
+		LineWriter line = new LineWriter( block );
+
+		for( int i=0; i<block.size; i++ ){
+			long t = start+(long)((first+i)/rate);
+			if( maxLateness>0 && random.nextDouble()<outOfOrder ) t -= 1+random.nextInt( maxLateness );
+			int actor, target;
+			if( i>0 && random.nextDouble()<duplicateRate ){
+				// Repeat one of the recent edges, in either direction
+				int j = i-1-random.nextInt( Math.min(i, 1024) );
+				boolean swap = random.nextBoolean();
+				actor = swap ? block.target[j] : block.actor[j];
+				target = swap ? block.actor[j] : block.target[j];
+			} else {
+				actor = draw( zipf, random );
+				do target = draw( zipf, random ); while( target==actor );
+			}
+			block.actor[i] = actor;
+			block.target[i] = target;
+			block.time[i] = t;
+			block.valid[i] = !(random.nextDouble()<malformedRate);
+			if( block.valid[i] ) line.transaction( actor, target, t );
+			else line.malformed( actor, target, t, random.nextInt(4) );
+		}
+		return block;
+	}
+
+	private int draw( ZipfSampler zipf, SplittableRandom random ){
+		return zipf==null ? random.nextInt( vertices ) : zipf.sample( random )-1;
+	}
+
+	/**
+	 * Formats the lines of a block into its bytes
+	 */
+	private static class LineWriter {
+		private final Block block;
+		private long cachedDay;
+		private final byte[] date;
+
+		LineWriter( Block block ){
+			this.block = block;
+			cachedDay = Long.MIN_VALUE;
+			date = new byte[11];
+		}
+
+		void transaction( int actor, int target, long t ){
+			put( "{\"created_time\": \"" );
+			time( t );
+			put( "\", \"target\": \"" );
+			name( target );
+			put( "\", \"actor\": \"" );
+			name( actor );
+			put( "\"}\n" );
+		}
+
+		/**
+		 * This method writes one of the kinds of malformed lines: not JSON, a
+		 * missing actor, an empty target or a time stamp of another format
+		 */
+		void malformed( int actor, int target, long t, int kind ){
+			switch( kind ){
+			case 0:
+				put( "this is not a transaction\n" );
+				break;
+			case 1:
+				put( "{\"created_time\": \"" );
+				time( t );
+				put( "\", \"target\": \"" );
+				name( target );
+				put( "\"}\n" );
+				break;
+			case 2:
+				put( "{\"created_time\": \"" );
+				time( t );
+				put( "\", \"target\": \"\", \"actor\": \"" );
+				name( actor );
+				put( "\"}\n" );
+				break;
+			default:
+				put( "{\"created_time\": \"" );
+				put( String.valueOf(t) );
+				put( "\", \"target\": \"" );
+				name( target );
+				put( "\", \"actor\": \"" );
+				name( actor );
+				put( "\"}\n" );
+			}
+		}
+
+		private void name( int id ){
+			put( "user-" );
+			number( id, 1 );
+		}
+
+		/**
+		 * This method writes the time stamp as yyyy-MM-ddTHH:mm:ssZ
+		 */
+		private void time( long t ){
+			long day = Math.floorDiv( t, 86400L );
+			int seconds = (int)(t-day*86400L);
+			if( day!=cachedDay ){
+				cachedDay = day;
+				civil( day );
+			}
+			System.arraycopy( date, 0, block.bytes, block.length, date.length );
+			block.length += date.length;
+			number( seconds/3600, 2 );
+			put( ":" );
+			number( seconds/60%60, 2 );
+			put( ":" );
+			number( seconds%60, 2 );
+			put( "Z" );
+		}
+
+		/**
+		 * This method formats an epoch day as yyyy-MM-ddT into the date cache,
+		 * with the days-to-civil algorithm of the proleptic Gregorian calendar
+		 */
+		private void civil( long day ){
+			long z = day+719468;
+			long era = Math.floorDiv( z, 146097L );
+			long doe = z-era*146097;
+			long yoe = (doe-doe/1460+doe/36524-doe/146096)/365;
+			long doy = doe-(365*yoe+yoe/4-yoe/100);
+			long mp = (5*doy+2)/153;
+			int d = (int)(doy-(153*mp+2)/5+1);
+			int m = (int)(mp<10 ? mp+3 : mp-9);
+			long y = yoe+era*400+(m<=2 ? 1 : 0);
+			// Formatted at the end of the block bytes, then moved to the cache
+			int saved = block.length;
+			number( (int)y, 4 );
+			put( "-" );
+			number( m, 2 );
+			put( "-" );
+			number( d, 2 );
+			put( "T" );
+			System.arraycopy( block.bytes, saved, date, 0, date.length );
+			block.length = saved;
+		}
+
+		/**
+		 * This method writes a non-negative number with at least the given digits
+		 */
+		private void number( int value, int digits ){
+			int length = 1;
+			for( int v=value/10; v>0; v/=10 ) length++;
+			length = Math.max( length, digits );
+			for( int i=length-1; i>=0; i-- ){
+				block.bytes[block.length+i] = DIGITS[value%10];
+				value /= 10;
+			}
+			block.length += length;
+		}
+
+		private void put( String s ){
+			for( int i=0; i<s.length(); i++ ) block.bytes[block.length++] = (byte)s.charAt(i);
+		}
+	}
+
+	/**
+	 * Draws the ranks 1 to n of a Zipf distribution in constant time and memory,
+	 * with the rejection-inversion method of W. Hormann and G. Derflinger
+	 */
+	private static class ZipfSampler {
+		private final int n;
+		private final double exponent;
+		private final double hIntegralX1;
+		private final double hIntegralN;
+		private final double s;
+
+		ZipfSampler( int n, double exponent ){
+			this.n = n;
+			this.exponent = exponent;
+			hIntegralX1 = hIntegral( 1.5 )-1;
+			hIntegralN = hIntegral( n+0.5 );
+			s = 2-hIntegralInverse( hIntegral(2.5)-h(2) );
+		}
+
+		int sample( SplittableRandom random ){
+			while( true ){
+				double u = hIntegralN+random.nextDouble()*(hIntegralX1-hIntegralN);
+				double x = hIntegralInverse( u );
+				int k = (int)(x+0.5);
+				if( k<1 ) k = 1;
+				else if( k>n ) k = n;
+				if( k-x<=s || u>=hIntegral(k+0.5)-h(k) ) return k;
+			}
+		}
+
+		private double h( double x ){
+			return Math.exp( -exponent*Math.log(x) );
+		}
+
+		private double hIntegral( double x ){
+			double logX = Math.log( x );
+			return helper2( (1-exponent)*logX )*logX;
+		}
+
+		private double hIntegralInverse( double x ){
+			double t = x*(1-exponent);
+			if( t<-1 ) t = -1;
+			return Math.exp( helper1(t)*x );
+		}
+
+		/** log(1+x)/x, also close to 0 */
+		private static double helper1( double x ){
+			return Math.abs(x)>1e-8 ? Math.log1p(x)/x : 1-x*(0.5-x*(1/3.0-0.25*x));
+		}
+
+		/** (exp(x)-1)/x, also close to 0 */
+		private static double helper2( double x ){
+			return Math.abs(x)>1e-8 ? Math.expm1(x)/x : 1+x*0.5*(1+x/3.0*(1+0.25*x));
+		}
+	}
+
+	/**
+	 * This method writes a median as the "%.2f" of <code>median_degree</code>,
+	 * a median being always a whole or a half number
+	 */
+	private static void putMedian( ByteBuffer out, double median ){
+		long twice = Math.round( median*2 );
+		String whole = Long.toString( twice/2 );
+		for( int i=0; i<whole.length(); i++ ) out.put( (byte)whole.charAt(i) );
+		out.put( (byte)'.' ).put( (byte)(twice%2==0 ? '0' : '5') ).put( (byte)'0' ).put( (byte)'\n' );
+	}
+
+	private static void drain( FileChannel channel, ByteBuffer buf ) throws IOException {
+		buf.flip();
+		while( buf.hasRemaining() ) channel.write( buf );
+		buf.clear();
+	}
+
+	private static Block get( Future<Block> future ) throws IOException {
+		try {
+			return future.get();
+		} catch( InterruptedException ex ){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a generated block");
+		} catch( ExecutionException ex ){
+			throw new IOException( "Cannot generate a block", ex.getCause() );
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package src;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -14,25 +16,435 @@ import org.json.simple.parser.JSONParser;
 /**
  * <h1>median_degree</h1>
  * This is the main function reads the input text file and output the PeriodGraph
- * results.
+ * results. The input is read through a memory-mapped <code>TransactionReader</code>
+ * by default, and can be gzip-compressed, or a binary log written by --convert
+ * in the default mode, with --lateness, --windows or --offheap. The medians are
+ * written by a <code>MedianWriter</code>. The options are:
+ * <pre>
+ * --changes-only        write a median only when it changes, with the number of
+ *                       lines it holds for, separated by a tab
+ * --convert=FILE        write the input as a binary <code>TransactionLogWriter</code>
+ *                       log to FILE instead of computing the medians
+ * --log-block=N         with --convert, the number of lines in a block (4096)
+ * --json-simple         read line by line with the json-simple parser instead
+ * --pipeline            read, parse, update the graph and write on separate
+ *                       threads with <code>PipelinedIngest</code>
+ * --batch-size=N        the number of records in a pipeline or tenant batch (4096)
+ * --queue-capacity=N    the number of batches waiting between two pipeline stages (16)
+ * --median-per-batch    with --pipeline, apply each batch at once and write only
+ *                       the median after it, for bulk backfills
+ * --parallel            parse chunks of the file on several threads with
+ *                       <code>ParallelIngest</code>, updating the graph in order
+ * --threads=N           the number of parsing threads (the number of cores)
+ * --chunk-size=N        the approximate size in bytes of a parallel chunk (8MB)
+ * --input=FILE          the input file (venmo_input/venmo-trans.txt)
+ * --output=FILE         the output file (venmo_output/output.txt, the
+ *                       standard output with --serve)
+ * --window=N            the length of the time window in seconds (60)
+ * --windows=N,M,...     track several windows at once with a
+ *                       <code>MultiWindowGraph</code>, writing their medians
+ *                       on one line from the shortest window to the longest
+ * --serve               keep running on a stream of transactions with
+ *                       <code>StreamService</code>, from the standard input;
+ *                       the invalid lines are reported on the standard error
+ * --listen=PORT         with --serve, read the connections to a local TCP port
+ *                       instead of the standard input
+ * --query-port=PORT     with --serve, answer the local HTTP queries /stats and
+ *                       /median on this port
+ * --checkpoint=FILE     with --serve, recover the graph from the snapshot FILE
+ *                       and its log FILE.log, log every transaction and write a
+ *                       new snapshot from time to time with <code>GraphCheckpoint</code>
+ * --checkpoint-every=N  the number of transactions between two snapshots (1000000)
+ * --lateness=N          hold the transactions back for N seconds of allowed
+ *                       lateness and apply them in time order with a
+ *                       <code>ReorderBuffer</code>, in the default mode and with
+ *                       --serve; the medians follow the order they are applied in
+ * --late-output=FILE    with --lateness, write the transactions too late to be
+ *                       put in order to FILE instead of applying them
+ * --top=K               print the K persons with the highest degrees after every
+ *                       median, as tab separated name:degree, in the default
+ *                       mode and with --serve
+ * --tenant-key=FIELD    keep one graph per value of the field FIELD of the lines
+ *                       with a <code>PartitionedEngine</code>, and write the
+ *                       value and the median separated by a tab
+ * --workers=N           with --tenant-key, the number of worker threads (the cores)
+ * --offheap             keep the edges, their time stamps and the degrees outside
+ *                       the Java heap with an <code>OffHeapGraph</code>, in
+ *                       memory-mapped temporary files of java.io.tmpdir
+ * --offheap-dir=DIR     like --offheap, in memory-mapped temporary files of DIR
+ * --offheap-direct      like --offheap, in direct buffers, which cannot hold more
+ *                       than -XX:MaxDirectMemorySize (by default the -Xmx heap size)
+ * --offheap-edges=N     with --offheap, the number of live edges expected (1048576)
+ * --sketch              estimate the medians in a fixed memory with a
+ *                       <code>SketchGraph</code>, hashing the names instead of
+ *                       keeping them
+ * --sketch-vertices=N   with --sketch, the number of sampled persons kept (65536)
+ * --sketch-edges=N      with --sketch, the number of edges kept (262144)
+ * --sketch-compare      with --sketch, also run the exact <code>PeriodGraph</code>
+ *                       and print the errors of the estimates at the end
+ * --metrics             count the transactions and time the parse, decode,
+ *                       edge update, expiry and median stages with
+ *                       <code>GraphMetrics</code>, exposed through JMX; not with
+ *                       --windows, --offheap, --tenant-key or --sketch
+ * --metrics-dump=N      with --metrics, print the metrics to the standard error
+ *                       every N seconds and at the end
+ * --metrics-sample=N    with --metrics, time one in N operations of each stage (64)
+ * </pre>
  *
  * @author Fuquan Wang
  */
 public class median_degree {
 	public static void main(String[] args){
-		JSONParser jsonparser = new JSONParser();
-		Path file = Paths.get("venmo_input/venmo-trans.txt");
+		Options options = new Options(args);
+		try {
+			options.check( "convert", "log-block", "changes-only", "json-simple", "pipeline", "batch-size", "queue-capacity", "median-per-batch", "parallel", "threads", "chunk-size",
+					"input", "output", "window", "windows", "serve", "listen", "query-port",
+					"checkpoint", "checkpoint-every", "tenant-key", "workers", "offheap", "offheap-dir", "offheap-direct", "offheap-edges", "sketch", "sketch-vertices", "sketch-edges", "sketch-compare", "top", "lateness", "late-output", "metrics", "metrics-dump", "metrics-sample" );
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			return;
+		}
+		Path file = Paths.get(options.get("input", "venmo_input/venmo-trans.txt"));
+		if( options.has("convert") ){
+			convert( file, options );
+			return;
+		}
 
-		PrintWriter writer = null;
+		MedianWriter writer = null;
 		try{
-			writer = new PrintWriter(new OutputStreamWriter( new FileOutputStream("venmo_output/output.txt"), "utf-8"));
+			writer = options.has("serve") && !options.has("output") ? new MedianWriter(Channels.newChannel(System.out))
+					: MedianWriter.open(Paths.get(options.get("output", "venmo_output/output.txt")));
+			writer.setChangesOnly( options.has("changes-only") );
 		} catch (IOException ex) {
 			System.out.println(ex);
 			return;
 		}
 
-		PeriodGraph graph = new PeriodGraph(60);
-		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+		GraphMetrics metrics = null;
+		try {
+			int period = options.getInt("window", 60);
+			if( options.has("metrics") && (options.has("windows") || options.has("offheap") || options.has("offheap-dir") || options.has("offheap-direct")
+					|| options.has("tenant-key") || options.has("sketch")) )
+				throw new IllegalArgumentException("The option --metrics is only supported by the modes with a PeriodGraph, not with --windows, --offheap, --tenant-key or --sketch");
+			if( options.has("metrics") ){
+				metrics = new GraphMetrics( options.getInt("metrics-sample", 64) );
+				metrics.register( "median_degree" );
+				if( options.has("metrics-dump") ) metrics.startDump( System.err, options.getInt("metrics-dump", 10) );
+			}
+			int top = options.getInt("top", 0);
+			if( top>0 && (options.has("windows") || options.has("json-simple") || options.has("pipeline") || options.has("parallel") || options.has("offheap") || options.has("offheap-dir") || options.has("offheap-direct") || options.has("tenant-key") || options.has("sketch")) )
+				throw new IllegalArgumentException("The option --top is only supported in the default mode and with --serve");
+			if( (options.has("lateness") || options.has("late-output")) && (options.has("windows") || options.has("json-simple") || options.has("pipeline")
+					|| options.has("parallel") || options.has("offheap") || options.has("offheap-dir") || options.has("offheap-direct") || options.has("tenant-key") || options.has("sketch")) )
+				throw new IllegalArgumentException("The option --lateness is only supported in the default mode and with --serve");
+			if( options.has("changes-only") && (top>0 || options.has("windows") || options.has("tenant-key") || options.has("serve")) )
+				throw new IllegalArgumentException("The option --changes-only needs one median per line, without --top, --windows, --tenant-key or --serve");
+			if( options.has("windows") ) readMultiWindow( file, writer, options.get("windows", "") );
+			else if( options.has("tenant-key") ) readPartitioned( file, period, writer, options );
+			else if( options.has("offheap") || options.has("offheap-dir") || options.has("offheap-direct") ) readOffHeap( file, period, writer, options );
+			else if( options.has("sketch") ) readSketch( file, period, writer, options );
+			else if( options.has("serve") ) serve( period, writer, options, metrics );
+			else if( options.has("json-simple") ) readJsonSimple( file, newGraph(period, metrics, top), writer );
+			else if( options.has("pipeline") ) readPipelined( file, newGraph(period, metrics, top), writer, options );
+			else if( options.has("parallel") ) readParallel( file, newGraph(period, metrics, top), writer, options );
+			else if( options.has("lateness") ) readReordered( file, newGraph(period, metrics, top), writer, options, top );
+			else readMapped( file, newGraph(period, metrics, top), writer, top );
+		} catch (IOException x) {
+			System.err.format("IOException: %s%n", x);
+			return;
+		} catch (IllegalArgumentException x) {
+			System.err.println(x.getMessage());
+			return;
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException x) {
+				System.err.format("IOException: %s%n", x);
+			}
+			if( metrics!=null && options.has("metrics-dump") ){
+				metrics.stopDump();
+				System.err.print( metrics.dump() );
+			}
+		}
+	}
+
+	/**
+	 * This method creates the <code>PeriodGraph</code> of the modes with one
+	 * graph, only when one of them runs, as its <code>TimeWheel</code> grows
+	 * with the window
+	 * @param metrics The <code>GraphMetrics</code>, or null
+	 * @param top The number of the highest degree persons printed after every median
+	 */
+	private static PeriodGraph newGraph( int period, GraphMetrics metrics, int top ){
+		PeriodGraph graph = new PeriodGraph(period);
+		graph.setMetrics( metrics );
+		if( top>0 ) graph.trackTopDegrees();
+		return graph;
+	}
+
+	/**
+	 * This method parses the input file in place and updates all the windows of
+	 * a <code>MultiWindowGraph</code>
+	 * @param windows The comma separated lengths of the windows in seconds
+	 */
+	private static void readMultiWindow( Path file, MedianWriter writer, String windows ) throws IOException {
+		String[] values = windows.split(",");
+		int[] periods = new int[values.length];
+		for( int i=0; i<values.length; i++ ){
+			try {
+				periods[i] = Integer.parseInt( values[i].trim() );
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("The option --windows needs comma separated integers: "+windows);
+			}
+		}
+		MultiWindowGraph graph = new MultiWindowGraph( periods );
+		try (TransactionSource reader = TransactionSource.open(file, graph.getDictionary())) {
+			while (reader.next()) {
+				if( reader.status()==TransactionParser.VALID
+						&& graph.addTransaction( reader.actor(), reader.target(), reader.time() ) ){
+					for( int i=0; i<graph.windows(); i++ ){
+						if( i>0 ) writer.write(' ');
+						writer.printMedian( graph.getMedian(i) );
+					}
+					writer.println();
+				} else
+					System.out.println("Line "+reader.lineNumber()+" is not a valid transaction, no new output generated");
+			}
+		}
+	}
+
+	/**
+	 * This method converts the input file to a binary log and prints the sizes
+	 */
+	private static void convert( Path file, Options options ){
+		Path log = Paths.get( options.get("convert", "") );
+		try {
+			long start = System.nanoTime();
+			long bytes = TransactionLogWriter.convert( file, log, options.getInt("log-block", TransactionLogWriter.BLOCK_RECORDS) );
+			System.err.format("Converted %d bytes into %d bytes (%.1f%%) in %.2f seconds%n", Files.size(file), bytes,
+					100.0*bytes/Math.max(1, Files.size(file)), (System.nanoTime()-start)/1e9);
+		} catch (IOException x) {
+			System.err.format("IOException: %s%n", x);
+		} catch (IllegalArgumentException x) {
+			System.err.println(x.getMessage());
+		}
+	}
+
+	/**
+	 * This method keeps one graph per tenant on the workers of a
+	 * <code>PartitionedEngine</code>
+	 */
+	private static void readPartitioned( Path file, int period, MedianWriter writer, Options options ) throws IOException {
+		String keyField = options.get("tenant-key", "");
+		if( keyField.isEmpty() ) throw new IllegalArgumentException("The option --tenant-key needs the name of a field");
+		PartitionedEngine engine = new PartitionedEngine( period,
+				options.getInt("workers", Runtime.getRuntime().availableProcessors()), options.getInt("batch-size", 4096) );
+		engine.run( file, keyField, new PrintWriter(writer) );
+		System.err.format("%d tenant graphs created, %d evicted%n", engine.getTenants(), engine.getEvicted());
+	}
+
+	/**
+	 * This method parses the input file in place and updates an
+	 * <code>OffHeapGraph</code> in the mapped files of --offheap-dir or the
+	 * temporary directory, or in direct buffers with --offheap-direct
+	 */
+	private static void readOffHeap( Path file, int period, MedianWriter writer, Options options ) throws IOException {
+		Path directory = options.has("offheap-direct") ? null
+				: Paths.get(options.get("offheap-dir", System.getProperty("java.io.tmpdir")));
+		try (OffHeapGraph graph = new OffHeapGraph( period, directory, options.getInt("offheap-edges", 1<<20) );
+				TransactionSource reader = TransactionSource.open(file, graph.getDictionary())) {
+			while (reader.next()) {
+				if( reader.status()==TransactionParser.VALID
+						&& graph.addTransaction( reader.actor(), reader.target(), reader.time() ) ){
+					writer.printlnMedian( graph.getMedian() );
+				} else
+					System.out.println("Line "+reader.lineNumber()+" is not a valid transaction, no new output generated");
+			}
+		}
+	}
+
+	/**
+	 * This method estimates the medians with a <code>SketchGraph</code>, and
+	 * compares them with the exact ones of a <code>PeriodGraph</code> if asked to
+	 */
+	private static void readSketch( Path file, int period, MedianWriter writer, Options options ) throws IOException {
+		SketchGraph sketch = new SketchGraph( period, options.getInt("sketch-vertices", 1<<16), options.getInt("sketch-edges", 1<<18) );
+		PeriodGraph exact = options.has("sketch-compare") ? new PeriodGraph( period ) : null;
+		long outputs = 0, exactOutputs = 0, maxErrorAt = 0;
+		double totalError = 0, maxError = 0;
+		try (TransactionReader reader = new TransactionReader(file, exact==null ? null : exact.getDictionary())) {
+			reader.setHashing( true );
+			while (reader.next()) {
+				if( reader.status()==TransactionParser.VALID
+						&& sketch.addTransaction( reader.actorHash(), reader.targetHash(), reader.time() ) ){
+					double median = sketch.getMedian();
+					writer.printlnMedian( median );
+					outputs++;
+					if( exact!=null && exact.addTransaction( reader.actor(), reader.target(), reader.time() ) ){
+						double error = Math.abs( median-exact.getMedian() );
+						if( error==0 ) exactOutputs++;
+						totalError += error;
+						if( error>maxError ){
+							maxError = error;
+							maxErrorAt = reader.lineNumber();
+						}
+					}
+				} else
+					System.out.println("Line "+reader.lineNumber()+" is not a valid transaction, no new output generated");
+			}
+		}
+		System.err.format("Sketch of %.1f MB: sample rate %s, %d sampled persons, %d stored edges%n",
+				sketch.memoryBytes()/1e6, sketch.getSampleRate(), sketch.getSampledVertices(), sketch.getStoredEdges());
+		if( exact!=null && outputs>0 )
+			System.err.format("Compared with the exact medians: %.2f%% exact, mean error %.4f, max error %.2f at line %d"
+					+", %d persons estimated for %d%n",
+					100.0*exactOutputs/outputs, totalError/outputs, maxError, maxErrorAt,
+					sketch.getEstimatedVertices(), exact.getVertexCount());
+	}
+
+	/**
+	 * This method keeps the graph running on the standard input or a local TCP
+	 * port with a <code>StreamService</code>
+	 */
+	private static void serve( int period, MedianWriter writer, Options options, GraphMetrics metrics ) throws IOException {
+		GraphCheckpoint checkpoint = null;
+		PeriodGraph graph;
+		if( options.has("checkpoint") ){
+			checkpoint = new GraphCheckpoint( Paths.get(options.get("checkpoint", "")) );
+			long start = System.nanoTime();
+			graph = checkpoint.recover( period );
+			System.err.format("Recovered %d edges of %d transactions in %.3f seconds%n",
+					graph.getEdgeCount(), checkpoint.sequence(), (System.nanoTime()-start)/1e9);
+		} else
+			graph = new PeriodGraph( period );
+		graph.setMetrics( metrics );
+
+		StreamService service = new StreamService( graph, new PrintWriter(writer) );
+		if( checkpoint!=null ) service.setCheckpoint( checkpoint, options.getInt("checkpoint-every", 1000000) );
+		service.setTop( options.getInt("top", 0) );
+		PrintWriter tooLate = openLateOutput( options );
+		ReorderBuffer reorder = null;
+		if( options.has("lateness") ) reorder = service.setReorder( options.getInt("lateness", 0), tooLate );
+		if( options.has("query-port") ){
+			int port = service.startQueryServer( options.getInt("query-port", 0) );
+			System.err.println("Answering queries on http://127.0.0.1:"+port+"/stats");
+		}
+		try {
+			if( options.has("listen") ) service.listen( options.getInt("listen", 0) );
+			else service.ingest( Channels.newChannel(System.in) );
+			service.finish();
+			if( checkpoint!=null ) checkpoint.checkpoint();
+			if( reorder!=null ) System.err.println(reorder.report());
+		} finally {
+			service.stopQueryServer();
+			if( checkpoint!=null ) checkpoint.close();
+			if( tooLate!=null ) tooLate.close();
+		}
+	}
+
+	/**
+	 * This method parses the input file in place with a <code>TransactionReader</code>
+	 * @param top The number of the highest degree persons printed after every median
+	 */
+	private static void readMapped( Path file, PeriodGraph graph, MedianWriter writer, int top ) throws IOException {
+		PrintWriter topWriter = new PrintWriter( writer );
+		try (TransactionSource reader = TransactionSource.open(file, graph.getDictionary())) {
+			reader.setMetrics( graph.getMetrics() );
+			while (reader.next()) {
+				if( reader.status()==TransactionParser.VALID
+						&& graph.addTransaction( reader.actor(), reader.target(), reader.time() ) ){
+					if( top>0 ){
+						writer.printMedian( graph.getMedian() );
+						graph.printTopDegrees( topWriter, top );
+						writer.println();
+					} else
+						writer.printlnMedian( graph.getMedian() );
+				} else
+					System.out.println("Line "+reader.lineNumber()+" is not a valid transaction, no new output generated");
+			}
+		}
+	}
+
+	/**
+	 * This method parses the input file in place and applies the transactions
+	 * through a <code>ReorderBuffer</code>, reporting the late ones at the end
+	 * @param top The number of the highest degree persons printed after every median
+	 */
+	private static void readReordered( Path file, final PeriodGraph graph, final MedianWriter writer, Options options,
+			final int top ) throws IOException {
+		final PrintWriter tooLate = openLateOutput( options );
+		final PrintWriter topWriter = new PrintWriter( writer );
+		ReorderBuffer reorder = new ReorderBuffer( graph, options.getInt("lateness", 0), new ReorderBuffer.Output(){
+			public void applied( int actor, int target, long timeInSeconds ) throws IOException {
+				if( top>0 ){
+					writer.printMedian( graph.getMedian() );
+					graph.printTopDegrees( topWriter, top );
+					writer.println();
+				} else
+					writer.printlnMedian( graph.getMedian() );
+			}
+
+			public void tooLate( int actor, int target, long timeInSeconds, long lateness ){
+				tooLate.println( ReorderBuffer.toJson(graph.getDictionary(), actor, target, timeInSeconds) );
+			}
+		}, tooLate!=null );
+		try (TransactionSource reader = TransactionSource.open(file, graph.getDictionary())) {
+			reader.setMetrics( graph.getMetrics() );
+			while (reader.next()) {
+				if( reader.status()!=TransactionParser.VALID
+						|| !reorder.add( reader.actor(), reader.target(), reader.time() ) )
+					System.out.println("Line "+reader.lineNumber()+" is not a valid transaction, no new output generated");
+			}
+			reorder.flush();
+			System.err.println(reorder.report());
+		} finally {
+			if( tooLate!=null ) tooLate.close();
+		}
+	}
+
+	/**
+	 * @return The writer of the <code>--late-output</code> file, or null if the
+	 * too late transactions are applied
+	 */
+	private static PrintWriter openLateOutput( Options options ) throws IOException {
+		if( !options.has("late-output") ) return null;
+		return new PrintWriter( new OutputStreamWriter(new FileOutputStream(options.get("late-output", "")), "utf-8") );
+	}
+
+	/**
+	 * This method runs the reading, parsing, graph update and writing as a
+	 * <code>PipelinedIngest</code>
+	 */
+	private static void readPipelined( Path file, PeriodGraph graph, MedianWriter writer, Options options ) throws IOException {
+		if( TransactionLogReader.isLog(file) )
+			throw new IllegalArgumentException("The option --pipeline needs a JSON input");
+		PipelinedIngest pipeline = new PipelinedIngest( options.getInt("batch-size", 4096), options.getInt("queue-capacity", 16) );
+		pipeline.setMedianPerBatch( options.has("median-per-batch") );
+		try (ReadableByteChannel channel = TransactionReader.openChannel(file)) {
+			pipeline.run( channel, graph, writer );
+		}
+	}
+
+	/**
+	 * This method parses chunks of the input file in parallel with <code>ParallelIngest</code>
+	 */
+	private static void readParallel( Path file, PeriodGraph graph, MedianWriter writer, Options options ) throws IOException {
+		if( TransactionReader.isGzip(file) || TransactionLogReader.isLog(file) )
+			throw new IllegalArgumentException("The option --parallel needs an uncompressed JSON input");
+		ParallelIngest ingest = new ParallelIngest( options.getInt("threads", Runtime.getRuntime().availableProcessors()),
+				options.getInt("chunk-size", 8<<20) );
+		ingest.run( file, graph, writer );
+	}
+
+	/**
+	 * This method reads the input file line by line and parses them with json-simple
+	 */
+	private static void readJsonSimple( Path file, PeriodGraph graph, MedianWriter writer ) throws IOException {
+		if( TransactionLogReader.isLog(file) )
+			throw new IllegalArgumentException("The option --json-simple needs a JSON input");
+		JSONParser jsonparser = new JSONParser();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				Channels.newInputStream(TransactionReader.openChannel(file)), StandardCharsets.UTF_8))) {
 			String line = null;
 			while ((line = reader.readLine()) != null) {
 				try {
@@ -41,19 +453,13 @@ public class median_degree {
 					String actor = (String) jsonObject.get("actor");
 					String target = (String) jsonObject.get("target");
 					if( graph.addTransaction( actor, target, createTime ) ){
-						writer.format( "%.2f", graph.getMedian() );
-						writer.println();
+						writer.printlnMedian( graph.getMedian() );
 					}
 				} catch (ParseException pe){
 					System.out.println("position: " + pe.getPosition());
 					System.out.println(pe);
 				}
 			}
-		} catch (IOException x) {
-			System.err.format("IOException: %s%n", x);
-			return;
-		} finally {
-			writer.close();
 		}
 	}
 }